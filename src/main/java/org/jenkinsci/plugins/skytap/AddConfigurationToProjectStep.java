@@ -147,10 +147,26 @@ public class AddConfigurationToProjectStep extends SkytapAction {
 		// create request for skytap API
 		HttpPost hp = SkytapUtils.buildHttpPostRequest(requestUrl,authCredentials);
 
-		// execute request
+		// execute request - if a cached project id no longer exists, the
+		// project name is looked up again once
 		String httpRespBody;
 		try {
-			httpRespBody = SkytapUtils.executeHttpRequest(hp);
+			try {
+				httpRespBody = SkytapUtils.executeHttpRequestForResource(hp);
+			} catch (SkytapNotFoundException e) {
+				if (projectName.equals("")
+						|| !SkytapUtils.evictCachedId(SkytapResolutionCache.PROJECT, projectName, authCredentials)) {
+					throw e;
+				}
+				JenkinsLogger.log("Cached project ID " + runtimeProjectID + " was not found. Looking up project name again.");
+				runtimeProjectID = SkytapUtils.getProjectID(projectName, authCredentials);
+				if (runtimeProjectID.equals("")) {
+					JenkinsLogger.error("Please provide a valid project name or ID.");
+					return false;
+				}
+				hp = SkytapUtils.buildHttpPostRequest(buildRequestURL(runtimeProjectID, runtimeConfigurationID), authCredentials);
+				httpRespBody = SkytapUtils.executeHttpRequest(hp);
+			}
 		} catch (SkytapException e) {
 			JenkinsLogger.error("Skytap Exception: " + e.getMessage());
 			return false;
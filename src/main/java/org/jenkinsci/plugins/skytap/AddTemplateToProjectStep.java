@@ -112,8 +112,25 @@ public class AddTemplateToProjectStep extends SkytapAction {
 		// execute request
 		String httpRespBody = "";
 		
+		// if a cached project id no longer exists, the project name is looked
+		// up again once
 		try {
-			httpRespBody = SkytapUtils.executeHttpRequest(hp);
+			try {
+				httpRespBody = SkytapUtils.executeHttpRequestForResource(hp);
+			} catch (SkytapNotFoundException e) {
+				if (projectName.equals("")
+						|| !SkytapUtils.evictCachedId(SkytapResolutionCache.PROJECT, projectName, authCredentials)) {
+					throw e;
+				}
+				JenkinsLogger.log("Cached project ID " + runtimeProjectID + " was not found. Looking up project name again.");
+				runtimeProjectID = SkytapUtils.getProjectID(projectName, authCredentials);
+				if (runtimeProjectID.equals("")) {
+					JenkinsLogger.error("Please provide a valid project name or ID.");
+					return false;
+				}
+				hp = SkytapUtils.buildHttpPostRequest(buildAddTemplateRequestURL(runtimeProjectID, runtimeTemplateID), authCredentials);
+				httpRespBody = SkytapUtils.executeHttpRequest(hp);
+			}
 		} catch (SkytapException e) {
 			JenkinsLogger.error("Skytap Exception: " + e.getMessage());
 			return false;
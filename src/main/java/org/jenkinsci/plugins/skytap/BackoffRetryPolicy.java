@@ -0,0 +1,177 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Exponential backoff with full jitter. The delay before attempt n is chosen
+ * at random between zero and min(maxDelay, baseDelay * 2^(n-1)), so that
+ * builds which failed at the same moment do not all retry at the same moment.
+ * A Retry-After hint from the server takes precedence over the computed delay.
+ * Retrying stops once the total time spent on the request would exceed
+ * maxElapsed. Gateway errors are only retried for idempotent requests.
+ */
+public class BackoffRetryPolicy implements RetryPolicy, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_BASE_DELAY_SECONDS = 2;
+	public static final int DEFAULT_MAX_DELAY_SECONDS = 30;
+	public static final int DEFAULT_MAX_ELAPSED_SECONDS = 120;
+
+	// 422 and 423 are returned while a Skytap resource is busy or locked
+	public static final String DEFAULT_RETRYABLE_STATUS_CODES = "422, 423, 429, 502, 503, 504";
+
+	private static final Random random = new Random();
+
+	// policy used when a build step does not override it
+	private static volatile BackoffRetryPolicy globalDefault = new BackoffRetryPolicy(
+			DEFAULT_BASE_DELAY_SECONDS, DEFAULT_MAX_DELAY_SECONDS,
+			DEFAULT_MAX_ELAPSED_SECONDS, DEFAULT_RETRYABLE_STATUS_CODES);
+
+	private final int baseDelaySeconds;
+	private final int maxDelaySeconds;
+	private final int maxElapsedSeconds;
+	private final String retryableStatusCodes;
+
+	// parsed from retryableStatusCodes on first use
+	private transient Set<Integer> retryableCodes;
+
+	@DataBoundConstructor
+	public BackoffRetryPolicy(int baseDelaySeconds, int maxDelaySeconds,
+			int maxElapsedSeconds, String retryableStatusCodes) {
+
+		this.baseDelaySeconds = baseDelaySeconds > 0 ? baseDelaySeconds
+				: DEFAULT_BASE_DELAY_SECONDS;
+		this.maxDelaySeconds = maxDelaySeconds >= this.baseDelaySeconds ? maxDelaySeconds
+				: this.baseDelaySeconds;
+		this.maxElapsedSeconds = maxElapsedSeconds >= 0 ? maxElapsedSeconds
+				: DEFAULT_MAX_ELAPSED_SECONDS;
+
+		if (retryableStatusCodes == null) {
+			this.retryableStatusCodes = DEFAULT_RETRYABLE_STATUS_CODES;
+		} else {
+			this.retryableStatusCodes = retryableStatusCodes;
+		}
+	}
+
+	public static BackoffRetryPolicy getGlobalDefault() {
+		return globalDefault;
+	}
+
+	public static void setGlobalDefault(BackoffRetryPolicy policy) {
+		if (policy != null) {
+			globalDefault = policy;
+		}
+	}
+
+	public boolean isRetryable(String method, int statusCode) {
+
+		if (!getRetryableCodes().contains(statusCode)) {
+			return false;
+		}
+
+		// a gateway error may come after Skytap has acted on the request,
+		// so only requests which can safely be repeated are retried
+		if (statusCode == 502 || statusCode == 504) {
+			return method.equals("GET") || method.equals("PUT")
+					|| method.equals("DELETE");
+		}
+
+		return true;
+	}
+
+	public long getRetryDelay(int attempt, long elapsedMillis,
+			long serverDelayMillis) {
+
+		long delay;
+
+		if (serverDelayMillis >= 0) {
+			// the server knows best when the resource will be free
+			delay = serverDelayMillis;
+		} else {
+			// cap the exponent so the shift cannot overflow
+			int exponent = Math.min(Math.max(attempt - 1, 0), 20);
+			long ceiling = Math.min(maxDelaySeconds * 1000L,
+					baseDelaySeconds * 1000L << exponent);
+			delay = (long) (random.nextDouble() * ceiling);
+		}
+
+		if (elapsedMillis + delay > maxElapsedSeconds * 1000L) {
+			return -1;
+		}
+
+		return delay;
+	}
+
+	private synchronized Set<Integer> getRetryableCodes() {
+
+		if (retryableCodes == null) {
+
+			Set<Integer> codes = new HashSet<Integer>();
+
+			for (String code : retryableStatusCodes.split("[,\\s]+")) {
+				try {
+					if (!code.equals("")) {
+						codes.add(Integer.valueOf(code));
+					}
+				} catch (NumberFormatException e) {
+					// ignore entries which are not status codes
+				}
+			}
+
+			retryableCodes = codes;
+		}
+
+		return retryableCodes;
+	}
+
+	public int getBaseDelaySeconds() {
+		return baseDelaySeconds;
+	}
+
+	public int getMaxDelaySeconds() {
+		return maxDelaySeconds;
+	}
+
+	public int getMaxElapsedSeconds() {
+		return maxElapsedSeconds;
+	}
+
+	public String getRetryableStatusCodes() {
+		return retryableStatusCodes;
+	}
+
+	@Override
+	public String toString() {
+		return "base " + baseDelaySeconds + "s, cap " + maxDelaySeconds
+				+ "s, give up after " + maxElapsedSeconds + "s, retry on "
+				+ retryableStatusCodes;
+	}
+
+}
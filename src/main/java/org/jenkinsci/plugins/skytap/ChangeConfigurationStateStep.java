@@ -22,6 +22,7 @@
 package org.jenkinsci.plugins.skytap;
 
 import java.io.FileNotFoundException;
+import java.util.concurrent.TimeUnit;
 
 import hudson.EnvVars;
 import hudson.Extension;
@@ -29,7 +30,6 @@ import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapActionDescriptor;
@@ -55,6 +55,13 @@ public class ChangeConfigurationStateStep extends SkytapAction {
 	// backing off
 	private static final int BASE_RETRY_INTERVAL_SECONDS = 20;
 
+	// time Skytap is given to act on a state change request before the
+	// runstate counts
+	private static final int MIN_SETTLE_SECONDS = 10;
+
+	// longest wait for the environment before and after halting it
+	private static final int HALT_WAIT_SECONDS = 60;
+
 	// these vars will be initialized when the step is run
 
 	@XStreamOmitField
@@ -155,50 +162,98 @@ public class ChangeConfigurationStateStep extends SkytapAction {
 
 		}
 
+		// how long this transition took before decides when to look for it;
+		// without statistics the environment is polled as usual
+		String statsKey = null;
+
+		try {
+			statsKey = SkytapTransitionStats.getKey(EnvironmentSnapshot.get(
+					runtimeConfigurationID, this.authCredentials));
+		} catch (SkytapException e) {
+			JenkinsLogger.log("Transition statistics are not available: " + e.getMessage());
+		}
+
+		final String initialRunState = currentRunState;
+		SkytapPoller.Schedule schedule = statsKey == null ? null
+				: SkytapTransitionStats.getSchedule(statsKey, initialRunState,
+						targetRunState);
+
+		if (schedule != null) {
+			JenkinsLogger.log("Polling around the usual duration of a " + initialRunState + " to " + targetRunState + " transition.");
+		}
+
 		// execute the initial state change request
+		long requestedAt = System.currentTimeMillis();
 		sendStateChangeRequest(runtimeConfigurationID, targetRunState);
 
-		// poll and retry until correct state is achieved
-		for (int i = 1; i <= this.NUMBER_OF_RETRIES; i++) {
+		// wait for the runstate through the shared poller, so that builds
+		// waiting on the same environment share its reads
+		SkytapPoller.Watch watch = EnvironmentSnapshot.watchUntilRunstate(
+				runtimeConfigurationID, this.authCredentials, targetRunState,
+				TimeUnit.SECONDS.toMillis(MIN_SETTLE_SECONDS), schedule);
 
-			// sleep to give Skytap time to change VM runstate
-			try {
+		final String confId = runtimeConfigurationID;
+		final String runstate = targetRunState;
+		final SkytapPoller.Watch transition = watch;
 
-				//TODO: the backoff methodology for responding
-				// to busy runstates needs to be reconsidered
-				// but a change to a simple exponential backoff
-				// will do for now-- jchenry
-				int sleepTime = (int)Math.pow(2,i)*BASE_RETRY_INTERVAL_SECONDS;
+		// did it succeed? if not retry the state change again
+		Waiter.Condition transitioned = new Waiter.Condition() {
 
-				JenkinsLogger.log("Sleeping for " + sleepTime + " seconds.");
+			private String currentRunState = initialRunState;
 
+			public boolean isMet(int attempt) throws SkytapException {
 
+				boolean met = transition.isDone() && transition.await(0);
 
-				Thread.sleep(sleepTime * 1000);
-			} catch (InterruptedException e1) {
-				JenkinsLogger.error(e1.getMessage());
-			}
+				// the latest read is shared with later lookups in the build
+				JsonElement configuration = transition.getLastResponse();
 
-			// retrieve the runstate
-			JenkinsLogger.log("Checking environment runstate..");
+				if (configuration != null) {
+					currentRunState = EnvironmentSnapshot.share(confId,
+							configuration, authCredentials).getRunstate();
+				} else if (transition.getLastError() != null) {
+					JenkinsLogger.error("Error retrieving current runstate: " + transition.getLastError().getMessage());
+				}
 
+				JenkinsLogger.log("Current runstate=" + currentRunState);
 
-			try {
-				currentRunState = getCurrentConfigurationRunstate(runtimeConfigurationID);
-			} catch (SkytapException e) {
-				JenkinsLogger.error("Error retrieving current runstate: " + e.getMessage());
+				// send another request but only if state is not 'busy'
+				if (!met && !currentRunState.equals("busy")) {
+					sendStateChangeRequest(confId, runstate);
+				}
+
+				return met;
 			}
+		};
 
+		//TODO: the backoff methodology for responding
+		// to busy runstates needs to be reconsidered
+		// but a change to a simple exponential backoff
+		// will do for now-- jchenry
+		try {
+
+			Waiter.Result result = new Waiter("Runstate " + targetRunState,
+					transitioned, Waiter.doubling(BASE_RETRY_INTERVAL_SECONDS),
+					this.NUMBER_OF_RETRIES, 0, Waiter.awaiting(watch))
+					.waitUntil();
 
-			JenkinsLogger.log("Current runstate=" + currentRunState);
+			if (result.isMet()) {
+				if (statsKey != null) {
+					SkytapTransitionStats.record(statsKey, initialRunState,
+							targetRunState, System.currentTimeMillis() - requestedAt);
+				}
 
-			// did it succeed? if so step succeeds, if not retry the state
-			// change again
-			if (currentRunState.equals(targetRunState)) {
-				// Sleep for a few seconds to make sure the Config is stable, then we can exit
+				// make sure the environment and its VMs are stable, then we can exit
+				SkytapReadinessProbe probe = SkytapReadinessProbe.inRunstate(targetRunState);
 				try {
-					Thread.sleep(10000);
-				} catch (InterruptedException e) {
+					if (!SkytapReadinessProbe.awaitEnvironment(runtimeConfigurationID,
+							this.authCredentials, probe,
+							SkytapReadinessProbe.DEFAULT_TIMEOUT_SECONDS)) {
+						JenkinsLogger.error("Warning: environment " + runtimeConfigurationID
+								+ " is in runstate " + targetRunState + " but is not ready: "
+								+ probe.getReason());
+					}
+				} catch (SkytapException e) {
 					JenkinsLogger.error("Error: " + e.getMessage());
 				}
 
@@ -206,14 +261,14 @@ public class ChangeConfigurationStateStep extends SkytapAction {
 				JenkinsLogger.defaultLogMessage("Runstate transitioned successfully.");
 				JenkinsLogger.defaultLogMessage("----------------------------------------");
 				return true;
-			} else {
-
-				// send another request but only if state is not 'busy'
-
-				if(!currentRunState.equals("busy")){
-				sendStateChangeRequest(runtimeConfigurationID, targetRunState);
-				}
 			}
+
+		} catch (SkytapException e) {
+			JenkinsLogger.error("Error retrieving current runstate: " + e.getMessage());
+			JenkinsLogger.defaultLogMessage("----------------------------------------");
+			return false;
+		} finally {
+			watch.cancel(false);
 		}
 
 		// if our target runstate was stopped and the VM did not shutdown
@@ -223,19 +278,23 @@ public class ChangeConfigurationStateStep extends SkytapAction {
 
 			JenkinsLogger.defaultLogMessage("Shutdown has failed. Attempting to halt VM.");
 
-			// Sleep for a minute to make sure the VM is stable, then we can issue the state change request
+			// wait for up to a minute for the VM to be stable, then we can issue the state change request
 			try {
-				Thread.sleep(60000);
-			} catch (InterruptedException e) {
+				SkytapReadinessProbe.awaitEnvironment(runtimeConfigurationID,
+						this.authCredentials, SkytapReadinessProbe.idle(),
+						HALT_WAIT_SECONDS);
+			} catch (SkytapException e) {
 				JenkinsLogger.error("Error: " + e.getMessage());
 			}
 
 			sendStateChangeRequest(runtimeConfigurationID, "halted");
 
-			JenkinsLogger.log("Sleeping for 60 seconds.");
 			try {
-				Thread.sleep(60000);
-			} catch (InterruptedException e) {
+				SkytapReadinessProbe.awaitEnvironment(runtimeConfigurationID,
+						this.authCredentials,
+						SkytapReadinessProbe.inRunstate("stopped"),
+						HALT_WAIT_SECONDS);
+			} catch (SkytapException e) {
 				JenkinsLogger.error("Error: " + e.getMessage());
 			}
 			JenkinsLogger.log("Checking if VM is powered down ...");
@@ -342,7 +401,7 @@ public class ChangeConfigurationStateStep extends SkytapAction {
 	 * @param targetState
 	 * @return
 	 */
-	private Boolean isConfigStateTransitionValid(String currentState,
+	static Boolean isConfigStateTransitionValid(String currentState,
 			String targetState) {
 
 		// according to skytap api guide, these transitions are not valid:
@@ -374,35 +433,10 @@ public class ChangeConfigurationStateStep extends SkytapAction {
 
 		JenkinsLogger.log("Retrieving Current Runstate ...");
 
-		// build HTTP GET request to check runstate
-		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
-		sb.append("configurations/");
-		sb.append(skytapConfigId);
-		String getRequest = sb.toString();
-
-		// build http request
-		HttpGet hg = SkytapUtils.buildHttpGetRequest(getRequest,
-				this.authCredentials);
-
-		// execute HTTP GET request
-		String getResponse = "";
-
-
-		try {
-			getResponse = SkytapUtils.executeHttpRequest(hg);
-		} catch (Exception e) {
-			throw new SkytapException(e.getMessage());
-		}
-
-		String skytapRunstate = "";
-
-		try {
-			skytapRunstate = SkytapUtils.getValueFromJsonResponseBody(getResponse, "runstate");
-		} catch (NullPointerException ex) {
-			throw new SkytapException("Response was null or empty.");
-		}
-
-		return skytapRunstate;
+		// the runstate changes on its own, so always read it again; the
+		// snapshot is then shared with later lookups in the build
+		return EnvironmentSnapshot.refresh(skytapConfigId,
+				this.authCredentials).getRunstate();
 
 	}
 
@@ -22,6 +22,7 @@
 package org.jenkinsci.plugins.skytap;
 
 import java.io.FileNotFoundException;
+import java.util.concurrent.TimeUnit;
 
 import hudson.EnvVars;
 import hudson.Extension;
@@ -54,6 +55,10 @@ public class ChangeContainerStateStep extends SkytapAction {
 	// backing off
 	private static final int BASE_RETRY_INTERVAL_SECONDS = 20;
 
+	// time Skytap is given to act on a state change request before the
+	// runstate counts
+	private static final int MIN_SETTLE_SECONDS = 10;
+
 	// these vars will be initialized when the step is run
 
 	@XStreamOmitField
@@ -168,40 +173,61 @@ public class ChangeContainerStateStep extends SkytapAction {
 		// execute the initial state change request
 		sendStateChangeRequest(runtimeContainerID, targetContainerAction);
 
-		// poll and retry until correct state is achieved
-		for (int i = 1; i <= this.NUMBER_OF_RETRIES; i++) {
+		// wait for the runstate through the shared poller, so that builds
+		// waiting on the same container share its reads
+		final String targetState = targetContainerState;
+		SkytapPoller.Watch watch = SkytapPoller.watch(
+				buildContainerURL(runtimeContainerID), this.authCredentials,
+				new SkytapPoller.Condition() {
+					public boolean isSatisfied(JsonElement container) {
+						return targetState.equals(getStatus(container));
+					}
+				}, TimeUnit.SECONDS.toMillis(MIN_SETTLE_SECONDS));
 
-			// sleep to give Skytap time to change VM runstate
-			try {
+		final String containerId = runtimeContainerID;
+		final String containerAction = targetContainerAction;
+		final String initialRunState = currentRunState;
+		final SkytapPoller.Watch transition = watch;
 
-				int sleepTime = BASE_RETRY_INTERVAL_SECONDS * i;
+		// did it succeed? if not retry the state change again
+		Waiter.Condition transitioned = new Waiter.Condition() {
 
-				JenkinsLogger.log("Sleeping for " + sleepTime + " seconds.");
-				Thread.sleep(sleepTime * 1000);
-			} catch (InterruptedException e1) {
-				JenkinsLogger.error(e1.getMessage());
-			}
+			private String currentRunState = initialRunState;
+
+			public boolean isMet(int attempt) throws SkytapException {
+
+				boolean met = transition.isDone() && transition.await(0);
+
+				if (transition.getLastResponse() != null) {
+					currentRunState = getStatus(transition.getLastResponse());
+				} else if (transition.getLastError() != null) {
+					JenkinsLogger.error("Error retrieving current container runstate: " + transition.getLastError().getMessage());
+				}
+
+				JenkinsLogger.log("Current Container Runstate=" + currentRunState);
 
-			// retrieve the runstate
-			JenkinsLogger.log("Checking environment runstate..");
-			
-			
-			try {
-				currentRunState = getCurrentContainerRunstate(runtimeContainerID);
-			} catch (SkytapException e) {
-				JenkinsLogger.error("Error retrieving current container runstate: " + e.getMessage());
+				// send another request but only if state is not 'busy'
+				if (!met && !currentRunState.equals("busy")) {
+					sendStateChangeRequest(containerId, containerAction);
+				}
+
+				return met;
 			}
-			
-			
-			JenkinsLogger.log("Current Container Runstate=" + currentRunState);
-
-			// did it succeed? if so step succeeds, if not retry the state
-			// change again
-			if (currentRunState.equals(targetContainerState)) {
-				// Sleep for a few seconds to make sure the Config is stable, then we can exit
+		};
+
+		try {
+
+			Waiter.Result result = new Waiter("Container runstate "
+					+ targetContainerState, transitioned,
+					Waiter.linear(BASE_RETRY_INTERVAL_SECONDS),
+					this.NUMBER_OF_RETRIES, 0, Waiter.awaiting(watch))
+					.waitUntil();
+
+			if (result.isMet()) {
+				// read the container once more to make sure the runstate is stable, then we can exit
 				try {
-					Thread.sleep(10000);
-				} catch (InterruptedException e) {
+					awaitStableContainer(runtimeContainerID, targetState);
+				} catch (SkytapException e) {
 					JenkinsLogger.error("Error: " + e.getMessage());
 				}
 
@@ -209,14 +235,14 @@ public class ChangeContainerStateStep extends SkytapAction {
 				JenkinsLogger.defaultLogMessage("Container Runstate transitioned successfully.");
 				JenkinsLogger.defaultLogMessage("----------------------------------------");
 				return true;
-			} else {
-				
-				// send another request but only if state is not 'busy'
-				
-				if(!currentRunState.equals("busy")){
-				sendStateChangeRequest(runtimeContainerID, targetContainerAction);
-				}
 			}
+
+		} catch (SkytapException e) {
+			JenkinsLogger.error("Error retrieving current container runstate: " + e.getMessage());
+			JenkinsLogger.defaultLogMessage("----------------------------------------");
+			return false;
+		} finally {
+			watch.cancel(false);
 		}
 
 		JenkinsLogger.defaultLogMessage("----------------------------------------");
@@ -333,11 +359,7 @@ public class ChangeContainerStateStep extends SkytapAction {
 		JenkinsLogger.log("Retrieving Current Container Runstate ...");
 
 		// build HTTP GET request to check runstate
-		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
-		sb.append("v2/containers/");
-		sb.append(skytapContainerId);
-		sb.append(".json");
-		String getRequest = sb.toString();
+		String getRequest = buildContainerURL(skytapContainerId);
 
 		// build http request
 		HttpGet hg = SkytapUtils.buildHttpGetRequest(getRequest,
@@ -365,6 +387,53 @@ public class ChangeContainerStateStep extends SkytapAction {
 
 	}
 
+	/**
+	 * Waits for a read of the container which still finds it in the target
+	 * runstate. A container has no busy flag, so a second read in the same
+	 * state is what makes it stable.
+	 *
+	 * @param skytapContainerId
+	 * @param targetState
+	 * @throws SkytapException
+	 */
+	private void awaitStableContainer(String skytapContainerId,
+			final String targetState) throws SkytapException {
+
+		SkytapPoller.Watch watch = SkytapPoller.watch(
+				buildContainerURL(skytapContainerId), this.authCredentials,
+				new SkytapPoller.Condition() {
+					public boolean isSatisfied(JsonElement container) {
+						return targetState.equals(getStatus(container));
+					}
+				});
+
+		try {
+			if (!watch.await(TimeUnit.SECONDS.toMillis(MIN_SETTLE_SECONDS))) {
+				JenkinsLogger.log("Container runstate has not settled yet.");
+			}
+		} finally {
+			watch.cancel(false);
+		}
+	}
+
+	private String buildContainerURL(String skytapContainerId) {
+
+		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
+		sb.append("v2/containers/");
+		sb.append(skytapContainerId);
+		sb.append(".json");
+
+		return sb.toString();
+	}
+
+	private static String getStatus(JsonElement container) {
+
+		JsonElement status = container.getAsJsonObject().get("status");
+
+		return status == null || status.isJsonNull() ? "" : status
+				.getAsString();
+	}
+
 	public String getContainerID() {
 		return containerID;
 	}
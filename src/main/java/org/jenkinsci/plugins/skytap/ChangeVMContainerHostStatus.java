@@ -21,10 +21,7 @@
 //                        
 package org.jenkinsci.plugins.skytap;
 
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
 
 import org.apache.commons.httpclient.Header;
@@ -39,7 +36,6 @@ import hudson.model.BuildListener;
 
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.BasicHttpEntity;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapActionDescriptor;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -262,37 +258,15 @@ public class ChangeVMContainerHostStatus extends SkytapAction {
 		// build put request url
 		String requestURL = buildRequestURL(confId, vmId, tgtStatus);
 
-		// create request for Skytap API
-		HttpPut hp = SkytapUtils.buildHttpPutRequest(requestURL,
-				this.authCredentials);
-
-		// add content to request - vpn identifier
-		BasicHttpEntity he = new BasicHttpEntity();
-		he.setContentEncoding("gzip");
-		he.setContentType("application/json");
-
 		String jsonString = "{\"container_host\" :false}";
 		// json string for connected attribute
 		if (tgtStatus.equals("enabled")) {
 			jsonString = "{\"container_host\" :true}";
 		}
 
-		InputStream stream;
-		try {
-			stream = new ByteArrayInputStream(jsonString.getBytes("UTF-8"));
-			Integer len = jsonString.getBytes("UTF-8").length;
-			long llen = len.longValue();
-
-			he.setContent(stream);
-			he.setContentLength(llen);
-
-		} catch (UnsupportedEncodingException e) {
-			JenkinsLogger
-					.error("Error encoding json string for connected attribute: "
-							+ e.getMessage());
-
-		}
-		hp.setEntity(he);
+		// create request for Skytap API
+		HttpPut hp = SkytapUtils.buildHttpPutRequest(requestURL,
+				this.authCredentials, jsonString);
 
 		// execute request
 		String httpRespBody = "";
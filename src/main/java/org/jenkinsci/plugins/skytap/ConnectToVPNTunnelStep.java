@@ -21,10 +21,7 @@
 //                        
 package org.jenkinsci.plugins.skytap;
 
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
 
 import hudson.Extension;
@@ -35,7 +32,6 @@ import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.BasicHttpEntity;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapActionDescriptor;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -260,13 +256,12 @@ public class ConnectToVPNTunnelStep extends SkytapAction {
 			return false;
 		}
 
-		// pause before exiting to allow VPN and environment to settle down
-		int sleepTime = this.RETRY_INTERVAL_SECONDS;
-		JenkinsLogger.log("Pausing for " + sleepTime + " seconds.");
-
+		// wait before exiting to allow VPN and environment to settle down
 		try {
-			Thread.sleep(sleepTime * 1000);
-		} catch (InterruptedException e1) {
+			SkytapReadinessProbe.awaitEnvironment(runtimeConfigurationID,
+					this.authCredentials, SkytapReadinessProbe.idle(),
+					this.RETRY_INTERVAL_SECONDS);
+		} catch (SkytapException e1) {
 			JenkinsLogger.error(e1.getMessage());
 		}
 
@@ -275,98 +270,92 @@ public class ConnectToVPNTunnelStep extends SkytapAction {
 		return true;
 	}
 
-	private Boolean executeVPNConnect(String confId, String netId, String vpnId) {
+	private Boolean executeVPNConnect(final String confId,
+			final String netId, final String vpnId) {
 
-		String connectResponse = "";
-		Boolean vpnConnectedSuccessfully = false;
-		int pollAttempts = 0;
+		Waiter.Condition connected = new Waiter.Condition() {
+			public boolean isMet(int attempt) {
 
-		while (!vpnConnectedSuccessfully
-				&& pollAttempts < this.NUMBER_OF_RETRIES) {
+				String connectResponse = connectVPNToConfiguration(confId,
+						netId, vpnId);
 
-			connectResponse = this.connectVPNToConfiguration(confId, netId,
-					vpnId);
+				JenkinsLogger.log("Connect Response: " + connectResponse);
 
-			JenkinsLogger.log("Connect Response: " + connectResponse);
-
-			if (connectResponse.equals("") || connectResponse == null) {
-				JenkinsLogger.error("Response was null or empty.");
-			}
-
-			// check response for errors
-			try {
-				SkytapUtils.checkResponseForErrors(connectResponse);
-
-				// no errors.. then connect succeeded.
-				vpnConnectedSuccessfully = true;
+				if (connectResponse == null || connectResponse.equals("")) {
+					JenkinsLogger.error("Response was null or empty.");
+				}
 
-			} catch (SkytapException e) {
-				JenkinsLogger.error("Skytap Error: " + e.getError());
+				// check response for errors
+				try {
+					SkytapUtils.checkResponseForErrors(connectResponse);
 
-				// wait before trying again
-				int sleepTime = this.RETRY_INTERVAL_SECONDS;
-				JenkinsLogger.log("Sleeping for " + sleepTime + " seconds.");
+					// no errors.. then connect succeeded.
+					return true;
 
-				try {
-					Thread.sleep(sleepTime * 1000);
-				} catch (InterruptedException e1) {
-					JenkinsLogger.error(e1.getMessage());
+				} catch (SkytapException e) {
+					JenkinsLogger.error("Skytap Error: " + e.getError());
+					return false;
 				}
 			}
+		};
 
-			pollAttempts++;
-
-		}
-
-		return vpnConnectedSuccessfully;
+		return retryWhenIdle("Connecting VPN " + vpnId, confId, connected);
 	}
 
-	private Boolean executeVPNAttach(String confId, String netId, String vpnId) {
-
-		Boolean vpnAttachedSuccessfully = false;
-		int pollAttempts = 0;
-		String attachResponse = "";
+	private Boolean executeVPNAttach(final String confId, final String netId,
+			final String vpnId) {
 
-		while (!vpnAttachedSuccessfully
-				&& pollAttempts < this.NUMBER_OF_RETRIES) {
+		Waiter.Condition attached = new Waiter.Condition() {
+			public boolean isMet(int attempt) {
 
-			attachResponse = this
-					.attachVPNToConfiguration(confId, netId, vpnId);
+				String attachResponse = attachVPNToConfiguration(confId,
+						netId, vpnId);
 
-			JenkinsLogger.log("Attach Response: " + attachResponse);
+				JenkinsLogger.log("Attach Response: " + attachResponse);
 
-			if (attachResponse.equals("") || attachResponse == null) {
-				JenkinsLogger.error("Response was null or empty.");
-			} else {
+				if (attachResponse == null || attachResponse.equals("")) {
+					JenkinsLogger.error("Response was null or empty.");
+					return false;
+				}
 
 				try {
 					SkytapUtils.checkResponseForErrors(attachResponse);
 
 					// if no exception is thrown, attach succeeded
-					vpnAttachedSuccessfully = true;
+					return true;
 
 				} catch (SkytapException e) {
 					JenkinsLogger.error("Skytap Error: " + e.getError());
-
-					// wait before trying again
-					int sleepTime = this.RETRY_INTERVAL_SECONDS;
-					JenkinsLogger
-							.log("Sleeping for " + sleepTime + " seconds.");
-
-					try {
-						Thread.sleep(sleepTime * 1000);
-					} catch (InterruptedException e1) {
-						JenkinsLogger.error(e1.getMessage());
-					}
-
+					return false;
 				}
-
 			}
+		};
+
+		return retryWhenIdle("Attaching VPN " + vpnId, confId, attached);
+	}
 
-			pollAttempts++;
+	/**
+	 * Retries a request until it succeeds. Before each retry, the environment
+	 * is given the retry interval and then polled until it is idle, for at
+	 * most another interval.
+	 *
+	 * @param description
+	 * @param confId
+	 * @param request
+	 * @return true if the request succeeded
+	 */
+	private Boolean retryWhenIdle(String description, String confId,
+			Waiter.Condition request) {
 
+		try {
+			return new Waiter(description, request,
+					Waiter.every(this.RETRY_INTERVAL_SECONDS),
+					this.NUMBER_OF_RETRIES, 0, Waiter.untilIdle(confId,
+							this.authCredentials)).waitUntil().isMet();
+		} catch (SkytapException e) {
+			JenkinsLogger.error(e.getMessage());
+			return false;
 		}
-		return vpnAttachedSuccessfully;
 	}
 
 	private String connectVPNToConfiguration(String confId, String networkId,
@@ -375,35 +364,13 @@ public class ConnectToVPNTunnelStep extends SkytapAction {
 		// build url
 		String reqUrl = this.buildConnectRequestURL(confId, networkId, vpnId);
 
-		// create request
-		HttpPut hp = SkytapUtils.buildHttpPutRequest(reqUrl,
-				this.authCredentials);
-
-		// add content to request - vpn identifier
-		BasicHttpEntity he = new BasicHttpEntity();
-		he.setContentEncoding("gzip");
-		he.setContentType("application/json");
-
 		// json string for connected attribute
 		String jsonString = "{\"connected\" :true}";
 
-		InputStream stream;
-		try {
-			stream = new ByteArrayInputStream(jsonString.getBytes("UTF-8"));
-			Integer len = jsonString.getBytes("UTF-8").length;
-			long llen = len.longValue();
-
-			he.setContent(stream);
-			he.setContentLength(llen);
-
-		} catch (UnsupportedEncodingException e) {
-			JenkinsLogger
-					.error("Error encoding json string for connected attribute: "
-							+ e.getMessage());
-
-		}
+		// create request
+		HttpPut hp = SkytapUtils.buildHttpPutRequest(reqUrl,
+				this.authCredentials, jsonString);
 
-		hp.setEntity(he);
 		String response = "";
 
 		try {
@@ -449,34 +416,12 @@ public class ConnectToVPNTunnelStep extends SkytapAction {
 		// build url
 		String requestUrl = this.buildRequestURL(confId, networkId);
 
-		// create request
-		HttpPost hp = SkytapUtils.buildHttpPostRequest(requestUrl,
-				this.authCredentials);
-
-		// add content to request - vpn identifier
-		BasicHttpEntity he = new BasicHttpEntity();
-		he.setContentEncoding("gzip");
-		he.setContentType("application/json");
-
 		// json string for vpn id
 		String jsonString = "{\"id\":\"" + vpnId + "\"}";
 
-		InputStream stream;
-		try {
-			stream = new ByteArrayInputStream(jsonString.getBytes("UTF-8"));
-			Integer len = jsonString.getBytes("UTF-8").length;
-			long llen = len.longValue();
-
-			he.setContent(stream);
-			he.setContentLength(llen);
-
-		} catch (UnsupportedEncodingException e) {
-			JenkinsLogger.error("Error encoding json string for vpn id: "
-					+ e.getMessage());
-
-		}
-
-		hp.setEntity(he);
+		// create request
+		HttpPost hp = SkytapUtils.buildHttpPostRequest(requestUrl,
+				this.authCredentials, jsonString);
 
 		JenkinsLogger.log("HTTP POST request: " + hp.toString());
 
@@ -34,7 +34,6 @@ import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.FilePath;
 
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
@@ -228,11 +227,12 @@ public class CreateConfigurationStep extends SkytapAction {
 			return false;
 		}
 
-		// Sleep for a a few seconds to make sure the Config is stable, then we
-		// can exit
+		// make sure the Config is stable, then we can exit
 		try {
-			Thread.sleep(10000);
-		} catch (InterruptedException e) {
+			SkytapReadinessProbe.awaitEnvironment(jo.get("id").getAsString(),
+					this.authCredentials, SkytapReadinessProbe.idle(),
+					SkytapReadinessProbe.DEFAULT_TIMEOUT_SECONDS);
+		} catch (SkytapException e) {
 			JenkinsLogger.error("Error: " + e.getMessage());
 		}
 
@@ -286,58 +286,32 @@ public class CreateConfigurationStep extends SkytapAction {
 		JenkinsLogger.log("Checking availability of template with id: "
 				+ tempId);
 
-		// build busy check request
-		String requestURL = buildCheckTemplateURL(tempId);
-		HttpGet hg = SkytapUtils.buildHttpGetRequest(requestURL,
-				this.authCredentials);
-
-		// repeatedly execute request until template is not busy
-		String httpRespBody = "";
-		Boolean templateIsAvailable = false;
+		// the poller reads the template until it is no longer busy
+		SkytapPoller.Watch watch = SkytapPoller.watch(
+				buildCheckTemplateURL(tempId), this.authCredentials,
+				SkytapReadinessProbe.idle());
 
 		try {
-
-			int numPollingAttempts = 0;
-
-			while (!templateIsAvailable
-					&& (numPollingAttempts < this.NUMBER_OF_RETRIES)) {
-
-				httpRespBody = SkytapUtils.executeHttpRequest(hg);
-
-				// get json object from the response
-				JsonParser parser = new JsonParser();
-				JsonElement je = parser.parse(httpRespBody);
-				JsonObject jo = je.getAsJsonObject();
-
-				// get busy status - if busy in returned
-				// JSON array is 'null', means template is not busy
-
-				if (jo.get("busy").isJsonNull()) {
-					templateIsAvailable = true;
-					JenkinsLogger.log("Template is available.");
-				} else {
-					templateIsAvailable = false;
-					JenkinsLogger.log("Template is busy.");
-
-					// wait before trying again
-					int sleepTime = this.RETRY_INTERVAL_SECONDS;
-					JenkinsLogger
-							.log("Sleeping for " + sleepTime + " seconds.");
-					Thread.sleep(sleepTime * 1000);
-				}
-
-				numPollingAttempts++;
+			Waiter.Result result = new Waiter("Template " + tempId
+					+ " availability", Waiter.satisfied(watch),
+					Waiter.every(this.RETRY_INTERVAL_SECONDS),
+					this.NUMBER_OF_RETRIES, 0, Waiter.awaiting(watch))
+					.waitUntil();
+
+			if (result.isMet()) {
+				JenkinsLogger.log("Template is available.");
+			} else {
+				JenkinsLogger.log("Template is busy.");
 			}
 
-			return templateIsAvailable;
+			return result.isMet();
 
 		} catch (SkytapException ex) {
 			JenkinsLogger.error("Request returned an error: " + ex.getError());
 			JenkinsLogger.error("Failing build step.");
 			return false;
-		} catch (InterruptedException e1) {
-			JenkinsLogger.error(e1.getMessage());
-			return false;
+		} finally {
+			watch.cancel(false);
 		}
 
 	}
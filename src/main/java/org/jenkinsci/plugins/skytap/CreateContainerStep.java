@@ -2,10 +2,7 @@ package org.jenkinsci.plugins.skytap;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.io.IOException;
 import java.io.Writer;
 import java.net.URLEncoder;
@@ -17,7 +14,6 @@ import hudson.FilePath;
 
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.BasicHttpEntity;
 import org.jenkinsci.plugins.skytap.CreatePublishURLStep.RequirePasswordBlock;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapActionDescriptor;
@@ -147,51 +143,8 @@ public class CreateContainerStep extends SkytapAction {
 			return false;
 		}
 
-		// add content to request - Create Container
-		BasicHttpEntity he = new BasicHttpEntity();
-		he.setContentEncoding("gzip");
-		he.setContentType("application/json");
-
 		// json string for container registry id
-
-		StringBuilder bodyString = new StringBuilder("{\"container_registry_id\":" + runtimeContainerRegistryId + ",\n");
-		bodyString.append("\"repository\":\"" + repositoryName + "\"");
-		if (!containerName.isEmpty()) {
-			bodyString.append(",\"name\":\"" + containerName + "\"");
-		}
-		bodyString.append(",");
-		bodyString.append("\"operation\": {");
-		if (exposeAllPorts) {
-			bodyString.append("\"expose_all_ports\":true");
-		}  else {
-			bodyString.append("\"expose_all_ports\":false");
-		}
-		if (!containerCommand.isEmpty()) {
-			bodyString.append(",\"command\":\"" + containerCommand + "\"");
-		}
-
-		bodyString.append("}");
-		bodyString.append("}");
-
-		String jsonString = bodyString.toString();
-//		JenkinsLogger.log("DEBUG BodyString = " + jsonString);
-
-
-		InputStream stream;
-		try {
-			stream = new ByteArrayInputStream(jsonString.getBytes("UTF-8"));
-			Integer len = jsonString.getBytes("UTF-8").length;
-			long llen = len.longValue();
-
-			he.setContent(stream);
-			he.setContentLength(llen);
-
-		} catch (UnsupportedEncodingException e) {
-			JenkinsLogger.error("Error encoding json string for vpn id: "
-					+ e.getMessage());
-
-		}
-
+		String jsonString = buildRequestBody(runtimeContainerRegistryId);
 
 		// build post request url
 		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
@@ -207,17 +160,29 @@ public class CreateContainerStep extends SkytapAction {
 
 		// build request
 		HttpPost hp = SkytapUtils.buildHttpPostRequest(createContainerURL,
-				authCredentials);
+				authCredentials, jsonString);
 
-		hp.setEntity(he);
 		String postResponse = "";
 
 		JenkinsLogger.log("Creating new container created with name \"" + containerName
 				+ "\" ");
 
-		// execute request
+		// execute request - if a cached container registry id no longer
+		// exists, the registry name is looked up again once
 		try {
-			postResponse = SkytapUtils.executeHttpRequest(hp);
+			try {
+				postResponse = SkytapUtils.executeHttpRequestForResource(hp);
+			} catch (SkytapNotFoundException e) {
+				if (!SkytapUtils.evictCachedId(SkytapResolutionCache.CONTAINER_REGISTRY, containerRegistryName, authCredentials)) {
+					throw e;
+				}
+				JenkinsLogger.log("Cached container registry ID " + runtimeContainerRegistryId + " was not found. Looking up registry name again.");
+				runtimeContainerRegistryId = SkytapUtils.getContainerRegistryIdFromName(
+						containerRegistryName, authCredentials);
+				hp = SkytapUtils.buildHttpPostRequest(createContainerURL,
+						authCredentials, buildRequestBody(runtimeContainerRegistryId));
+				postResponse = SkytapUtils.executeHttpRequest(hp);
+			}
 		} catch (SkytapException e) {
 			JenkinsLogger.error(e.getMessage());
 			return false;
@@ -235,6 +200,9 @@ public class CreateContainerStep extends SkytapAction {
 		JenkinsLogger.log("New container created with name \"" + containerName
 				+ "\"");
 
+		// lookups of the new container should not fail from a stale miss
+		SkytapNegativeCache.invalidate(SkytapResolutionCache.CONTAINER, runtimeConfigurationID);
+
 
 		String expContainerSaveFile = SkytapUtils.expandEnvVars(
 				build, containerSaveFilename);
@@ -309,6 +277,30 @@ public class CreateContainerStep extends SkytapAction {
 
 	}
 
+	private String buildRequestBody(String registryId) {
+
+		StringBuilder bodyString = new StringBuilder("{\"container_registry_id\":" + registryId + ",\n");
+		bodyString.append("\"repository\":\"" + repositoryName + "\"");
+		if (!containerName.isEmpty()) {
+			bodyString.append(",\"name\":\"" + containerName + "\"");
+		}
+		bodyString.append(",");
+		bodyString.append("\"operation\": {");
+		if (exposeAllPorts) {
+			bodyString.append("\"expose_all_ports\":true");
+		}  else {
+			bodyString.append("\"expose_all_ports\":false");
+		}
+		if (!containerCommand.isEmpty()) {
+			bodyString.append(",\"command\":\"" + containerCommand + "\"");
+		}
+
+		bodyString.append("}");
+		bodyString.append("}");
+
+		return bodyString.toString();
+	}
+
 	public String getConfigurationID() {
 		return configurationID;
 	}
@@ -22,12 +22,9 @@
 package org.jenkinsci.plugins.skytap;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -38,18 +35,13 @@ import hudson.model.AbstractBuild;
 import hudson.FilePath;
 import hudson.util.Secret;
 
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.BasicHttpEntity;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapActionDescriptor;
 import org.kohsuke.stapler.DataBoundConstructor;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.thoughtworks.xstream.annotations.XStreamOmitField;
 
 public class CreatePublishURLStep extends SkytapAction {
@@ -202,15 +194,6 @@ public class CreatePublishURLStep extends SkytapAction {
 
 		JenkinsLogger.log("Request URL: " + reqUrl);
 
-		// create request
-		HttpPost hp = SkytapUtils.buildHttpPostRequest(reqUrl,
-				this.authCredentials);
-
-		// add content to request - vms
-		BasicHttpEntity he = new BasicHttpEntity();
-		he.setContentEncoding("gzip");
-		he.setContentType("application/json");
-
 		// json string for connected attribute
 		StringBuilder sb = new StringBuilder("");
 		sb.append("{\"publish_set\":{\"publish_set_type\":\"single_url\",");
@@ -248,22 +231,10 @@ public class CreatePublishURLStep extends SkytapAction {
 		// {"publish_set":{"publish_set_type":"single_url",
 		// "vms":[{"access":"use","vm_ref":"2128250"}],"password":null,"name":"blah"}}
 
-		InputStream stream;
-		try {
-			stream = new ByteArrayInputStream(jsonString.getBytes("UTF-8"));
-			Integer len = jsonString.getBytes("UTF-8").length;
-			long llen = len.longValue();
-
-			he.setContent(stream);
-			he.setContentLength(llen);
-
-		} catch (UnsupportedEncodingException e) {
-			JenkinsLogger
-					.error("Error encoding json string for connected attribute: "
-							+ e.getMessage());
-		}
+		// create request
+		HttpPost hp = SkytapUtils.buildHttpPostRequest(reqUrl,
+				this.authCredentials, jsonString);
 
-		hp.setEntity(he);
 		String response = "";
 
 		response = SkytapUtils.executeHttpRequest(hp);
@@ -281,34 +252,11 @@ public class CreatePublishURLStep extends SkytapAction {
 
 	private List<String> getVMIds(String confId) throws SkytapException {
 
-		List<String> vmList = new ArrayList<String>();
-
-		// build request
-		String reqUrl = "https://cloud.skytap.com/configurations/" + confId;
-
-		HttpGet hg = SkytapUtils.buildHttpGetRequest(reqUrl,
-				this.authCredentials);
-
-		// extract vm ids
-		String response = SkytapUtils.executeHttpRequest(hg);
-
-		// check response for errors
-		SkytapUtils.checkResponseForErrors(response);
-
-		// get id and name of newly created template
-		JsonParser parser = new JsonParser();
-		JsonElement je = parser.parse(response);
-		JsonArray ja = (JsonArray) je.getAsJsonObject().get("vms");
-
-		Iterator iter = ja.iterator();
-
-		while (iter.hasNext()) {
-			JsonElement vmElement = (JsonElement) iter.next();
-			String vmElementId = vmElement.getAsJsonObject().get("id")
-					.getAsString();
+		List<String> vmList = EnvironmentSnapshot.get(confId,
+				this.authCredentials).getVmIds();
 
-			vmList.add(vmElementId);
-			JenkinsLogger.log("VM ID: " + vmElementId);
+		for (String vmId : vmList) {
+			JenkinsLogger.log("VM ID: " + vmId);
 		}
 
 		return vmList;
@@ -173,10 +173,12 @@ public class CreateTemplateFromConfigurationStep extends SkytapAction {
 			return false;
 		}
 
-		// Sleep for a 10 seconds to make sure the Template is stable, then we can exit
+		// make sure the Template is stable, then we can exit
 		try {
-			Thread.sleep(10000);
-		} catch (InterruptedException e) {
+			SkytapReadinessProbe.awaitTemplate(this.runtimeTemplateID,
+					this.authCredentials,
+					SkytapReadinessProbe.DEFAULT_TIMEOUT_SECONDS);
+		} catch (SkytapException e) {
 			JenkinsLogger.error("Error: " + e.getMessage());
 		}
 
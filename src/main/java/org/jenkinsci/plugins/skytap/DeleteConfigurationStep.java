@@ -23,7 +23,8 @@ package org.jenkinsci.plugins.skytap;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import hudson.Extension;
 import hudson.model.AbstractBuild;
@@ -31,16 +32,13 @@ import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapActionDescriptor;
 import org.kohsuke.stapler.DataBoundConstructor;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.thoughtworks.xstream.annotations.XStreamOmitField;
 
 public class DeleteConfigurationStep extends SkytapAction {
@@ -81,57 +79,20 @@ public class DeleteConfigurationStep extends SkytapAction {
 
 		ArrayList tunnelIdList = new ArrayList();
 
-		// build network listing url
-		String listNetworksURL = buildNetworkListURL(configId);
-
 		JenkinsLogger.log("Getting network list for environment with id: "
 				+ configId);
 
-		// execute http get
-		HttpGet hg = SkytapUtils.buildHttpGetRequest(listNetworksURL,
+		// the environment lists its networks along with their tunnels
+		EnvironmentSnapshot snapshot = EnvironmentSnapshot.get(configId,
 				this.authCredentials);
 
-		// execute request
-		String httpRespBody = "";
-
-		try {
-			httpRespBody = SkytapUtils.executeHttpRequest(hg);
-		} catch (SkytapException e1) {
-			throw e1;
-		}
-
-		try {
-			SkytapUtils.checkResponseForErrors(httpRespBody);
-		}catch (SkytapException e2){
-			throw e2;
-		}
-		
-		// get JSON Array of networks
-		JsonParser parser = new JsonParser();
-		JsonElement je = parser.parse(httpRespBody);
-		JsonArray ja = je.getAsJsonArray();
-
-		Iterator iter = ja.iterator();
-
 		// iterate through each network and get tunnels
-		while (iter.hasNext()) {
-			JsonElement networkElement = (JsonElement) iter.next();
-
-			String networkId = networkElement.getAsJsonObject().get("id")
-					.getAsString();
+		for (EnvironmentSnapshot.Network network : snapshot.getNetworks()) {
 
 			JenkinsLogger.log("Getting tunnels for network with id: "
-					+ networkId);
+					+ network.getId());
 
-			JsonElement tunnelsElement = networkElement.getAsJsonObject().get(
-					"tunnels");
-			JsonArray tunnelArray = tunnelsElement.getAsJsonArray();
-
-			// loop through tunnels and retrieve ids
-			for (int i = 0; i < tunnelArray.size(); i++) {
-				JsonElement tunnelElement = tunnelArray.get(i);
-				String id = tunnelElement.getAsJsonObject().get("id")
-						.getAsString();
+			for (String id : network.getTunnelIds()) {
 				JenkinsLogger.log("Adding tunnel: " + id + " to list.");
 
 				tunnelIdList.add(id);
@@ -143,17 +104,6 @@ public class DeleteConfigurationStep extends SkytapAction {
 
 	}
 
-	private String buildNetworkListURL(String configId) {
-
-		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
-		sb.append("configurations/");
-		sb.append(configId);
-		sb.append("/networks");
-		// https://cloud.skytap.com/configurations/1155792/networks
-
-		return sb.toString();
-	}
-
 	private String buildDisconnectTunnelURL(String tunnelId) {
 
 		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
@@ -167,37 +117,6 @@ public class DeleteConfigurationStep extends SkytapAction {
 		// https://cloud.skytap.com/tunnels/tunnel-794010-998866/
 	}
 
-	/**
-	 * Executes API request to disconnect a connection between 2 networks
-	 * (tunnel).
-	 * 
-	 * @param tid
-	 * @throws SkytapException
-	 */
-	private void disconnectTunnel(String tid) throws SkytapException {
-
-		JenkinsLogger.log("Disconnecting tunnel with id: " + tid);
-
-		// build request url
-		String reqUrl = buildDisconnectTunnelURL(tid);
-
-		// execute request
-		String httpRespBody = "";
-
-		HttpDelete hd = SkytapUtils.buildHttpDeleteRequest(reqUrl,
-				authCredentials);
-
-		httpRespBody = SkytapUtils.executeHttpDeleteRequest(hd);
-
-		if (httpRespBody.equals("")) {
-			throw new SkytapException(
-					"An error occurred while attempting to disconnect " + tid);
-		} else {
-			JenkinsLogger.log("Tunnel " + tid
-					+ " was disconnected successfully.");
-		}
-	}
-
 	public Boolean executeStep(AbstractBuild build,
 			SkytapGlobalVariables globalVars) {
 
@@ -252,18 +171,28 @@ public class DeleteConfigurationStep extends SkytapAction {
 
 		JenkinsLogger.log("Disconnecting connected networks ...");
 
+		// tunnels are independent of each other, so disconnect them all
+		// concurrently and then wait for the results
+		SkytapApiClient client = new SkytapApiClient(this.authCredentials);
+		List<Future<JsonElement>> disconnects = new ArrayList<Future<JsonElement>>();
+
 		for (int i = 0; i < tunnelIdList.size(); i++) {
 
 			String tunnelId = tunnelIdList.get(i).toString();
-			try {
-				disconnectTunnel(tunnelId);
-			} catch (SkytapException e) {
-				JenkinsLogger.error(e.getMessage());
-				return false;
-			}
+			JenkinsLogger.log("Disconnecting tunnel with id: " + tunnelId);
+			disconnects.add(client.delete(buildDisconnectTunnelURL(tunnelId)));
+		}
 
+		try {
+			SkytapApiClient.awaitAll(disconnects);
+		} catch (SkytapException e) {
+			JenkinsLogger.error(e.getMessage());
+			return false;
 		}
 
+		JenkinsLogger.log(tunnelIdList.size()
+				+ " tunnel(s) were disconnected successfully.");
+
 		JenkinsLogger.log("Sending delete request for environment id "
 				+ this.runtimeConfigurationID);
 
@@ -284,49 +213,44 @@ public class DeleteConfigurationStep extends SkytapAction {
 
 	}
 
-	private Boolean attemptDeleteConfiguration(String confId) {
+	private Boolean attemptDeleteConfiguration(final String confId) {
 
 		// build delete environment url
 		String requestURL = buildRequestURL(confId);
 
 		// create request for Skytap API
-		HttpDelete hd = SkytapUtils.buildHttpDeleteRequest(requestURL,
+		final HttpDelete hd = SkytapUtils.buildHttpDeleteRequest(requestURL,
 				this.authCredentials);
 
 		// repeat request until environment
-		// becomes available and can be deleted
-		String httpRespBody = "";
-		Boolean configDeletedSuccessfully = false;
-
-		int pollAttempts = 0;
-
-		while (!configDeletedSuccessfully
-				&& (pollAttempts < this.NUMBER_OF_RETRIES)) {
-
-			// wait for a time before attempting delete
-			int sleepTime = this.RETRY_INTERVAL_SECONDS;
-			JenkinsLogger.log("Sleeping for " + sleepTime + " seconds.");
-			try {
-				Thread.sleep(sleepTime * 1000);
-			} catch (InterruptedException e1) {
-				JenkinsLogger.error(e1.getMessage());
-			}
+		// becomes available and can be deleted, waiting for it to become
+		// idle before each attempt
+		Waiter.Condition deleted = new Waiter.Condition() {
+			public boolean isMet(int attempt) {
 
-			httpRespBody = SkytapUtils.executeHttpDeleteRequest(hd);
+				String httpRespBody = SkytapUtils.executeHttpDeleteRequest(hd);
 
-			if (httpRespBody.equals("")) {
-				JenkinsLogger
-						.error("An error occurred while attempting to delete "
-								+ confId);
-				pollAttempts++;
+				if (httpRespBody.equals("")) {
+					JenkinsLogger
+							.error("An error occurred while attempting to delete "
+									+ confId);
+					return false;
+				}
 
-			} else {
-				configDeletedSuccessfully = true;
+				return true;
 			}
+		};
 
+		try {
+			return new Waiter("Deleting environment " + confId, deleted,
+					Waiter.delayed(this.RETRY_INTERVAL_SECONDS,
+							Waiter.every(this.RETRY_INTERVAL_SECONDS)),
+					this.NUMBER_OF_RETRIES, 0, Waiter.untilIdle(confId,
+							this.authCredentials)).waitUntil().isMet();
+		} catch (SkytapException e) {
+			JenkinsLogger.error(e.getMessage());
+			return false;
 		}
-
-		return configDeletedSuccessfully;
 	}
 
 	private String buildRequestURL(String configId) {
@@ -134,49 +134,43 @@ public class DeleteContainerStep extends SkytapAction {
 
 	}
 
-	private Boolean attemptDeleteContainer(String confId) {
+	private Boolean attemptDeleteContainer(final String confId) {
 
 		// build delete container url
 		String requestURL = buildRequestURL(confId);
 
 		// create request for Skytap API
-		HttpDelete hd = SkytapUtils.buildHttpDeleteRequest(requestURL,
+		final HttpDelete hd = SkytapUtils.buildHttpDeleteRequest(requestURL,
 				this.authCredentials);
 
 		// repeat request until container
-		// becomes available and can be deleted
-		String httpRespBody = "";
-		Boolean containerDeletedSuccessfully = false;
-
-		int pollAttempts = 0;
-
-		while (!containerDeletedSuccessfully
-				&& (pollAttempts < this.NUMBER_OF_RETRIES)) {
-
-			// wait for a time before attempting delete
-			int sleepTime = this.RETRY_INTERVAL_SECONDS;
-			JenkinsLogger.log("Sleeping for " + sleepTime + " seconds.");
-			try {
-				Thread.sleep(sleepTime * 1000);
-			} catch (InterruptedException e1) {
-				JenkinsLogger.error(e1.getMessage());
-			}
+		// becomes available and can be deleted, waiting for a time before
+		// each attempt
+		Waiter.Condition deleted = new Waiter.Condition() {
+			public boolean isMet(int attempt) {
 
-			httpRespBody = SkytapUtils.executeHttpDeleteRequest(hd);
+				String httpRespBody = SkytapUtils.executeHttpDeleteRequest(hd);
 
-			if (httpRespBody.contains("error")) {
-				JenkinsLogger
-						.error("An error occurred while attempting to delete "
-								+ confId);
-				pollAttempts++;
+				if (httpRespBody.contains("error")) {
+					JenkinsLogger
+							.error("An error occurred while attempting to delete "
+									+ confId);
+					return false;
+				}
 
-			} else {
-				containerDeletedSuccessfully = true;
+				return true;
 			}
+		};
 
+		try {
+			return new Waiter("Deleting container " + confId, deleted,
+					Waiter.delayed(this.RETRY_INTERVAL_SECONDS,
+							Waiter.every(this.RETRY_INTERVAL_SECONDS)),
+					this.NUMBER_OF_RETRIES, 0).waitUntil().isMet();
+		} catch (SkytapException e) {
+			JenkinsLogger.error(e.getMessage());
+			return false;
 		}
-
-		return containerDeletedSuccessfully;
 	}
 
 	private String buildRequestURL(String containerId) {
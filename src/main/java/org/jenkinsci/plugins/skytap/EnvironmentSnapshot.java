@@ -0,0 +1,565 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.HttpGet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * The state of a Skytap environment - its VMs and their interfaces, its
+ * networks and their tunnels, and its runstate - read from a single
+ * /configurations/{id} response.
+ *
+ * A snapshot is shared by the steps of a build through SkytapResolutionCache,
+ * so that lookups of VM ids, network ids and tunnels made by different steps
+ * are answered by one read. Any request which changes something in Skytap
+ * drops the shared snapshots (see SkytapUtils), and readers of the runstate
+ * always call {@link #refresh(String, String)}, as the runstate changes
+ * without the plugin doing anything.
+ *
+ * Every snapshot carries a version, which is higher for snapshots read
+ * later, so that callers holding one can tell whether it has been replaced.
+ */
+public final class EnvironmentSnapshot {
+
+	private static final AtomicLong versions = new AtomicLong();
+
+	private final String id;
+	private final String name;
+	private final String templateId;
+	private final long version;
+	private final long fetchedAt;
+	private final String runstate;
+	private final boolean busy;
+	private final List<Vm> vms;
+	private final List<Network> networks;
+
+	private EnvironmentSnapshot(String id, String name, String templateId,
+			String runstate, boolean busy, List<Vm> vms, List<Network> networks) {
+		this.id = id;
+		this.name = name;
+		this.templateId = templateId;
+		this.version = versions.incrementAndGet();
+		this.fetchedAt = System.currentTimeMillis();
+		this.runstate = runstate;
+		this.busy = busy;
+		this.vms = Collections.unmodifiableList(vms);
+		this.networks = Collections.unmodifiableList(networks);
+	}
+
+	/**
+	 * Returns the snapshot of the environment shared by the current build,
+	 * reading the environment if there is none.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @return snapshot
+	 * @throws SkytapException
+	 */
+	public static EnvironmentSnapshot get(String confId, String authCredentials)
+			throws SkytapException {
+
+		EnvironmentSnapshot snapshot = SkytapResolutionCache.getSnapshot(
+				confId, authCredentials);
+
+		if (snapshot != null) {
+			JenkinsLogger.log("Using environment " + confId + " as read earlier in this build (version " + snapshot.getVersion() + ").");
+			return snapshot;
+		}
+
+		// a shared environment may be kept fresh in the background
+		snapshot = SkytapEnvironmentRefresher.getSnapshot(confId,
+				authCredentials);
+
+		if (snapshot != null) {
+			JenkinsLogger.log("Using environment " + confId + " as read in the background (version " + snapshot.getVersion() + ").");
+			share(snapshot, authCredentials);
+			return snapshot;
+		}
+
+		return refresh(confId, authCredentials);
+	}
+
+	/**
+	 * Reads the environment from Skytap and shares the new snapshot with the
+	 * rest of the build.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @return snapshot
+	 * @throws SkytapException
+	 */
+	public static EnvironmentSnapshot refresh(String confId,
+			String authCredentials) throws SkytapException {
+
+		EnvironmentSnapshot snapshot = fetch(confId, authCredentials);
+		share(snapshot, authCredentials);
+		SkytapEnvironmentRefresher.track(snapshot, authCredentials);
+		SkytapCatalog.addEnvironment(snapshot, authCredentials);
+
+		return snapshot;
+	}
+
+	/**
+	 * Reads the environment from Skytap without sharing the snapshot.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @return snapshot
+	 * @throws SkytapException
+	 */
+	static EnvironmentSnapshot fetch(String confId, String authCredentials)
+			throws SkytapException {
+
+		HttpGet hg = SkytapUtils.buildHttpGetRequest(buildURL(confId),
+				authCredentials);
+
+		String response = SkytapUtils.executeHttpRequest(hg);
+
+		if (response == null || response.equals("")) {
+			throw new SkytapException("Response was null or empty.");
+		}
+
+		SkytapUtils.checkResponseForErrors(response);
+
+		return fromConfiguration(confId, new JsonParser().parse(response));
+	}
+
+	/**
+	 * Watches the environment through the shared SkytapPoller until it
+	 * reaches the given runstate.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @param runstate
+	 * @param delayMillis
+	 *            time to give Skytap before the runstate counts
+	 * @return watch
+	 */
+	public static SkytapPoller.Watch watchUntilRunstate(final String confId,
+			String authCredentials, final String runstate, long delayMillis) {
+		return watchUntilRunstate(confId, authCredentials, runstate,
+				delayMillis, null);
+	}
+
+	/**
+	 * Watches the environment through the shared SkytapPoller until it
+	 * reaches the given runstate, reading it when the schedule says.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @param runstate
+	 * @param delayMillis
+	 *            time to give Skytap before the runstate counts
+	 * @param schedule
+	 *            schedule of reads, or null to read at every poller tick
+	 * @return watch
+	 */
+	public static SkytapPoller.Watch watchUntilRunstate(final String confId,
+			String authCredentials, final String runstate, long delayMillis,
+			SkytapPoller.Schedule schedule) {
+
+		return SkytapPoller.watch(buildURL(confId), authCredentials,
+				new SkytapPoller.Condition() {
+					public boolean isSatisfied(JsonElement configuration) {
+						EnvironmentSnapshot snapshot = fromConfiguration(
+								confId, configuration);
+						return !snapshot.isBusy()
+								&& runstate.equals(snapshot.getRunstate());
+					}
+				}, delayMillis, schedule);
+	}
+
+	/**
+	 * Watches the environment through the shared SkytapPoller until it is
+	 * no longer busy.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @param delayMillis
+	 *            time to give Skytap before the environment counts as idle
+	 * @return watch
+	 */
+	public static SkytapPoller.Watch watchUntilIdle(final String confId,
+			String authCredentials, long delayMillis) {
+
+		return SkytapPoller.watch(buildURL(confId), authCredentials,
+				new SkytapPoller.Condition() {
+					public boolean isSatisfied(JsonElement configuration) {
+						return !fromConfiguration(confId, configuration)
+								.isBusy();
+					}
+				}, delayMillis);
+	}
+
+	/**
+	 * Makes a snapshot from an environment which has already been retrieved
+	 * from the Skytap API.
+	 *
+	 * @param confId
+	 * @param configuration
+	 * @return snapshot
+	 */
+	public static EnvironmentSnapshot fromConfiguration(String confId,
+			JsonElement configuration) {
+
+		JsonObject jo = configuration.getAsJsonObject();
+
+		String runstate = getString(jo, "runstate");
+		boolean busy = isBusy(jo);
+
+		List<Vm> vms = new ArrayList<Vm>();
+		for (JsonElement vmElement : getArray(jo, "vms")) {
+			JsonObject vmObject = vmElement.getAsJsonObject();
+
+			List<Interface> interfaces = new ArrayList<Interface>();
+			for (JsonElement interfaceElement : getArray(vmObject, "interfaces")) {
+				JsonObject interfaceObject = interfaceElement.getAsJsonObject();
+				interfaces.add(new Interface(getString(interfaceObject, "id"),
+						getString(interfaceObject, "network_id"), getString(
+								interfaceObject, "network_name")));
+			}
+
+			vms.add(new Vm(getString(vmObject, "id"), getString(vmObject,
+					"name"), getString(vmObject, "runstate"), interfaces));
+		}
+
+		List<Network> networks = new ArrayList<Network>();
+		for (JsonElement networkElement : getArray(jo, "networks")) {
+			JsonObject networkObject = networkElement.getAsJsonObject();
+
+			List<String> tunnelIds = new ArrayList<String>();
+			for (JsonElement tunnelElement : getArray(networkObject, "tunnels")) {
+				tunnelIds.add(getString(tunnelElement.getAsJsonObject(), "id"));
+			}
+
+			networks.add(new Network(getString(networkObject, "id"), getString(
+					networkObject, "name"), tunnelIds));
+		}
+
+		String templateId = getString(jo, "template_id");
+
+		return new EnvironmentSnapshot(confId, getString(jo, "name"),
+				templateId.equals("") ? null : templateId, runstate, busy, vms,
+				networks);
+	}
+
+	/**
+	 * Shares a snapshot with the rest of the current build.
+	 *
+	 * @param snapshot
+	 * @param authCredentials
+	 */
+	public static void share(EnvironmentSnapshot snapshot,
+			String authCredentials) {
+		SkytapResolutionCache.putSnapshot(snapshot, authCredentials);
+	}
+
+	/**
+	 * Shares an environment read on the build's behalf, e.g. by the
+	 * SkytapPoller, as if the build had read it itself.
+	 *
+	 * @param confId
+	 * @param configuration
+	 * @param authCredentials
+	 * @return snapshot
+	 */
+	public static EnvironmentSnapshot share(String confId,
+			JsonElement configuration, String authCredentials) {
+
+		EnvironmentSnapshot snapshot = fromConfiguration(confId,
+				configuration);
+		share(snapshot, authCredentials);
+		SkytapEnvironmentRefresher.track(snapshot, authCredentials);
+
+		return snapshot;
+	}
+
+	private static String buildURL(String confId) {
+
+		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
+		sb.append("configurations/");
+		sb.append(confId);
+
+		return sb.toString();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return id of the template the environment was created from, or null
+	 *         if Skytap does not say
+	 */
+	public String getTemplateId() {
+		return templateId;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getFetchedAt() {
+		return fetchedAt;
+	}
+
+	public String getRunstate() {
+		return runstate;
+	}
+
+	public boolean isBusy() {
+		return busy;
+	}
+
+	public List<Vm> getVms() {
+		return vms;
+	}
+
+	public List<String> getVmIds() {
+
+		List<String> vmIds = new ArrayList<String>();
+
+		for (Vm vm : vms) {
+			vmIds.add(vm.getId());
+		}
+
+		return vmIds;
+	}
+
+	public List<Network> getNetworks() {
+		return networks;
+	}
+
+	/**
+	 * @param netName
+	 * @return id of the named network
+	 * @throws SkytapException
+	 *             if the environment has no network with that name
+	 */
+	public String getNetworkId(String netName) throws SkytapException {
+
+		JenkinsLogger.log("Searching environments's networks for network: "
+				+ netName);
+
+		for (Network network : networks) {
+			JenkinsLogger.log("Network Name: " + network.getName());
+
+			if (netName.equals(network.getName())) {
+				JenkinsLogger.log("Network Name Matched.");
+				JenkinsLogger.log("Network ID: " + network.getId());
+				return network.getId();
+			}
+		}
+
+		throw new SkytapException("No network matching name \"" + netName
+				+ "\"" + " is associated with environments id " + id + ".");
+	}
+
+	/**
+	 * @return ids of the tunnels of all of the environment's networks
+	 */
+	public List<String> getTunnelIds() {
+
+		List<String> tunnelIds = new ArrayList<String>();
+
+		for (Network network : networks) {
+			tunnelIds.addAll(network.getTunnelIds());
+		}
+
+		return tunnelIds;
+	}
+
+	/**
+	 * @param other
+	 *            an earlier snapshot of the same environment
+	 * @return true if nothing the snapshot holds has changed since
+	 */
+	public boolean isUnchangedFrom(EnvironmentSnapshot other) {
+		return other != null && getContent().equals(other.getContent());
+	}
+
+	private String getContent() {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(runstate).append('|').append(busy);
+
+		for (Vm vm : vms) {
+			sb.append("|vm:").append(vm.getId()).append(',')
+					.append(vm.getName()).append(',')
+					.append(vm.getRunstate());
+			for (Interface i : vm.getInterfaces()) {
+				sb.append(',').append(i.getId()).append('/')
+						.append(i.getNetworkId());
+			}
+		}
+
+		for (Network network : networks) {
+			sb.append("|network:").append(network.getId()).append(',')
+					.append(network.getName()).append(',')
+					.append(network.getTunnelIds());
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Tells whether Skytap reports an environment, template or VM as busy.
+	 * Templates report null in the busy field when idle and environments
+	 * may report false; any other value means an operation is under way.
+	 *
+	 * @param jo
+	 *            resource as returned by the Skytap API
+	 * @return true if it is busy
+	 */
+	static boolean isBusy(JsonObject jo) {
+
+		if ("busy".equals(getString(jo, "runstate"))) {
+			return true;
+		}
+
+		JsonElement busy = jo.get("busy");
+
+		return busy != null
+				&& !busy.isJsonNull()
+				&& !(busy.isJsonPrimitive()
+						&& busy.getAsJsonPrimitive().isBoolean() && !busy
+							.getAsBoolean());
+	}
+
+	private static JsonArray getArray(JsonObject jo, String field) {
+
+		JsonElement je = jo.get(field);
+
+		if (je == null || !je.isJsonArray()) {
+			return new JsonArray();
+		}
+
+		return je.getAsJsonArray();
+	}
+
+	private static String getString(JsonObject jo, String field) {
+
+		JsonElement je = jo.get(field);
+
+		if (je == null || je.isJsonNull()) {
+			return "";
+		}
+
+		return je.getAsString();
+	}
+
+	public static final class Vm {
+
+		private final String id;
+		private final String name;
+		private final String runstate;
+		private final List<Interface> interfaces;
+
+		Vm(String id, String name, String runstate, List<Interface> interfaces) {
+			this.id = id;
+			this.name = name;
+			this.runstate = runstate;
+			this.interfaces = Collections.unmodifiableList(interfaces);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getRunstate() {
+			return runstate;
+		}
+
+		public List<Interface> getInterfaces() {
+			return interfaces;
+		}
+	}
+
+	public static final class Interface {
+
+		private final String id;
+		private final String networkId;
+		private final String networkName;
+
+		Interface(String id, String networkId, String networkName) {
+			this.id = id;
+			this.networkId = networkId;
+			this.networkName = networkName;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getNetworkId() {
+			return networkId;
+		}
+
+		public String getNetworkName() {
+			return networkName;
+		}
+	}
+
+	public static final class Network {
+
+		private final String id;
+		private final String name;
+		private final List<String> tunnelIds;
+
+		Network(String id, String name, List<String> tunnelIds) {
+			this.id = id;
+			this.name = name;
+			this.tunnelIds = Collections.unmodifiableList(tunnelIds);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public List<String> getTunnelIds() {
+			return tunnelIds;
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.FilePath;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
+import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapActionDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.thoughtworks.xstream.annotations.XStreamOmitField;
+
+public class GetVMIDsStep extends SkytapAction {
+
+	private final String configurationID;
+	private final String configurationFile;
+
+	private final String vmNames;
+
+	private final String vmIdFile;
+
+	// these will be initialized when the step is run
+	@XStreamOmitField
+	private String runtimeConfigurationID;
+
+	@XStreamOmitField
+	private String authCredentials;
+
+	@DataBoundConstructor
+	public GetVMIDsStep(String configurationID, String configurationFile,
+			String vmNames, String vmIdFile) {
+
+		super("Get VM IDs Step");
+
+		this.configurationID = configurationID;
+		this.configurationFile = configurationFile;
+		this.vmNames = vmNames;
+		this.vmIdFile = vmIdFile;
+
+	}
+
+	public Boolean executeStep(AbstractBuild build,
+			SkytapGlobalVariables globalVars) {
+
+		JenkinsLogger
+				.defaultLogMessage("----------------------------------------");
+		JenkinsLogger.defaultLogMessage("Get VM IDs");
+		JenkinsLogger
+				.defaultLogMessage("----------------------------------------");
+
+		if (preFlightSanityChecks() == false) {
+			return false;
+		}
+
+		this.authCredentials = SkytapUtils.getAuthCredentials(build);
+		// get runtime environment id
+		String expConfigFile = SkytapUtils.expandEnvVars(build, configurationFile);
+		if (!expConfigFile.equals("")) {
+			expConfigFile = SkytapUtils.convertFileNameToFullPath(build,
+					expConfigFile);
+		}
+		try {
+			runtimeConfigurationID = SkytapUtils.getRuntimeId(build, configurationID,
+					expConfigFile);
+		} catch (FileNotFoundException e) {
+			JenkinsLogger.error("Error retrieving environment id: "
+					+ e.getMessage());
+			return false;
+		}
+
+		List<String> names = splitNames(SkytapUtils.expandEnvVars(build, vmNames));
+
+		// resolve all of the names from a single vm list
+		Map<String, String> vmIds;
+		try {
+			vmIds = SkytapUtils.getVMIDsFromNames(runtimeConfigurationID, names, authCredentials);
+		} catch (SkytapException e) {
+			JenkinsLogger.error(e.getMessage());
+			return false;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> vmId : vmIds.entrySet()) {
+			sb.append(vmId.getKey()).append("=").append(vmId.getValue()).append("\n");
+		}
+
+		String expVmIdFile = SkytapUtils.expandEnvVars(build, vmIdFile);
+		expVmIdFile = SkytapUtils.convertFileNameToFullPath(build, expVmIdFile);
+		JenkinsLogger.log("Outputting " + vmIds.size() + " VM IDs to file: " + expVmIdFile);
+
+		try {
+
+			// output to the file system
+			FilePath fp = new FilePath(build.getWorkspace(), expVmIdFile);
+			fp.write(sb.toString(), null);
+
+		} catch (IOException e) {
+			JenkinsLogger.error("Error: " + e.getMessage());
+
+			JenkinsLogger.error("Skytap Plugin failed to save VM IDs to file: "
+					+ expVmIdFile);
+			return false;
+		} catch (InterruptedException e) {
+			JenkinsLogger.error("Error: " + e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Splits the names entered by the user on commas and new lines.
+	 *
+	 * @param names
+	 * @return non-empty names, in the order they were entered
+	 */
+	static List<String> splitNames(String names) {
+
+		List<String> result = new ArrayList<String>();
+
+		for (String name : names.split("[,\\r\\n]")) {
+			name = name.trim();
+			if (!name.equals("") && !result.contains(name)) {
+				result.add(name);
+			}
+		}
+
+		return result;
+	}
+
+	private Boolean preFlightSanityChecks() {
+
+		// check whether user entered both values for conf id/conf file
+		if (!this.configurationID.equals("")
+				&& !this.configurationFile.equals("")) {
+			JenkinsLogger
+					.error("Values were provided for both environment ID and file. Please provide just one or the other.");
+			return false;
+		}
+
+		// check whether we have neither conf id or file
+		if (this.configurationFile.equals("")
+				&& this.configurationID.equals("")) {
+			JenkinsLogger
+					.error("No value was provided for environment ID or file. Please provide either a valid Skytap environment ID, or a valid environment file.");
+			return false;
+		}
+
+		// make sure vm names and the save file were provided
+		if (splitNames(this.vmNames).isEmpty() || this.vmIdFile.equals("")) {
+			JenkinsLogger
+					.error("One or more arguments were omitted. Please provide all of the following: VM names and VM ID save file.");
+			return false;
+		}
+
+		return true;
+
+	}
+
+	public String getConfigurationID() {
+		return configurationID;
+	}
+
+	public String getConfigurationFile() {
+		return configurationFile;
+	}
+
+	public String getVmNames() {
+		return vmNames;
+	}
+
+	public String getVmIdFile() {
+		return vmIdFile;
+	}
+
+	@Extension
+	public static final SkytapActionDescriptor D = new SkytapActionDescriptor(
+			GetVMIDsStep.class, "Get VM IDs");
+
+}
@@ -28,14 +28,40 @@ public final class JenkinsLogger {
 	private static BuildListener listener;
 	private static Boolean loggingEnabled;
 
+	// set on threads doing background work, which belongs to no build log;
+	// messages are also dropped before any build has set a listener
+	private static final ThreadLocal<Boolean> muted = new ThreadLocal<Boolean>();
+
 	public JenkinsLogger(BuildListener listener, Boolean loggingEnabled) {
 		JenkinsLogger.listener = listener;
 		JenkinsLogger.loggingEnabled = loggingEnabled;
 	}
 
+	/**
+	 * Discards messages logged by the current thread, e.g. a background
+	 * refresh which is not part of any build.
+	 *
+	 * @param mute
+	 */
+	public static void setMuted(boolean mute) {
+		if (mute) {
+			muted.set(Boolean.TRUE);
+		} else {
+			muted.remove();
+		}
+	}
+
+	public static boolean isMuted() {
+		return muted.get() != null;
+	}
+
 	public static void log(String message) {
 
-		if (loggingEnabled) {
+		if (muted.get() != null || listener == null) {
+			return;
+		}
+
+		if (Boolean.TRUE.equals(loggingEnabled)) {
 			listener.getLogger().println(message);
 		}
 
@@ -48,10 +74,16 @@ public final class JenkinsLogger {
 	 * @param message
 	 */
 	public static void defaultLogMessage(String message){
+		if (muted.get() != null || listener == null) {
+			return;
+		}
 		listener.getLogger().println(message);
 	}
 
 	public static void error(String error) {
+		if (muted.get() != null || listener == null) {
+			return;
+		}
 		listener.getLogger().println(error);
 	}
 
@@ -187,6 +187,9 @@ public class MergeTemplateIntoConfigurationStep extends SkytapAction {
 				+ " was successfully merged to environment "
 				+ runtimeConfigurationID);
 
+		// the merged vms may have names which were missing before
+		SkytapNegativeCache.invalidate(SkytapResolutionCache.VM, runtimeConfigurationID);
+
 		return true;
 
 	}
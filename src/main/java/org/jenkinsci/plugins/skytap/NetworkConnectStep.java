@@ -22,11 +22,11 @@
 package org.jenkinsci.plugins.skytap;
 
 import java.io.FileNotFoundException;
+import java.util.concurrent.Future;
 
 import hudson.Extension;
 import hudson.model.AbstractBuild;
 
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapAction;
@@ -34,8 +34,6 @@ import org.jenkinsci.plugins.skytap.SkytapBuilder.SkytapActionDescriptor;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.thoughtworks.xstream.annotations.XStreamOmitField;
 
 public class NetworkConnectStep extends SkytapAction {
@@ -147,23 +145,63 @@ public class NetworkConnectStep extends SkytapAction {
 			return false;
 		}
 
-		// get network ids for source and target network names
-		String runtimeSourceNetworkID = "";
-		String runtimeTargetNetworkID = "";
+		// get network ids for source and target network names - unless they
+		// were resolved or the environments were read by an earlier step,
+		// both environments are retrieved concurrently
+		String runtimeSourceNetworkID = SkytapResolutionCache.get(
+				SkytapResolutionCache.NETWORK,
+				runtimeSourceNetworkConfigurationID, sourceNetworkName,
+				this.authCredentials);
+		String runtimeTargetNetworkID = SkytapResolutionCache.get(
+				SkytapResolutionCache.NETWORK,
+				runtimeTargetNetworkConfigurationID, targetNetworkName,
+				this.authCredentials);
+
+		try {
+			if (runtimeSourceNetworkID == null) {
+				runtimeSourceNetworkID = resolveNetworkIdFromSnapshot(
+						runtimeSourceNetworkConfigurationID, sourceNetworkName);
+			}
+			if (runtimeTargetNetworkID == null) {
+				runtimeTargetNetworkID = resolveNetworkIdFromSnapshot(
+						runtimeTargetNetworkConfigurationID, targetNetworkName);
+			}
+		} catch (SkytapException e1) {
+			JenkinsLogger.error(e1.getError());
+			return false;
+		}
+
+		SkytapApiClient client = new SkytapApiClient(this.authCredentials);
+		Future<JsonElement> sourceConfiguration = null;
+		Future<JsonElement> targetConfiguration = null;
+
+		if (runtimeSourceNetworkID == null) {
+			sourceConfiguration = client
+					.get(buildConfigurationURL(runtimeSourceNetworkConfigurationID));
+		}
+		if (runtimeTargetNetworkID == null) {
+			targetConfiguration = client
+					.get(buildConfigurationURL(runtimeTargetNetworkConfigurationID));
+		}
 
 		try {
-			runtimeSourceNetworkID = SkytapUtils.getNetworkIdFromName(
-					runtimeSourceNetworkConfigurationID, sourceNetworkName,
-					this.authCredentials);
+			if (sourceConfiguration != null) {
+				runtimeSourceNetworkID = resolveNetworkId(sourceConfiguration,
+						runtimeSourceNetworkConfigurationID, sourceNetworkName);
+			}
 		} catch (SkytapException e1) {
+			if (targetConfiguration != null) {
+				targetConfiguration.cancel(true);
+			}
 			JenkinsLogger.error(e1.getError());
 			return false;
 		}
 
 		try {
-			runtimeTargetNetworkID = SkytapUtils.getNetworkIdFromName(
-					runtimeTargetNetworkConfigurationID, targetNetworkName,
-					this.authCredentials);
+			if (targetConfiguration != null) {
+				runtimeTargetNetworkID = resolveNetworkId(targetConfiguration,
+						runtimeTargetNetworkConfigurationID, targetNetworkName);
+			}
 		} catch (SkytapException e1) {
 			JenkinsLogger.error(e1.getError());
 			return false;
@@ -257,6 +295,54 @@ public class NetworkConnectStep extends SkytapAction {
 		return sb.toString();
 	}
 
+	private String resolveNetworkId(Future<JsonElement> configuration,
+			String confId, String netName) throws SkytapException {
+
+		EnvironmentSnapshot snapshot = EnvironmentSnapshot.fromConfiguration(
+				confId, SkytapApiClient.await(configuration));
+		EnvironmentSnapshot.share(snapshot, this.authCredentials);
+
+		return resolveNetworkId(snapshot, netName);
+	}
+
+	/**
+	 * Resolves the network from the environment as read earlier in the
+	 * build, if it has been.
+	 *
+	 * @return network id, or null if the environment has not been read
+	 */
+	private String resolveNetworkIdFromSnapshot(String confId, String netName)
+			throws SkytapException {
+
+		EnvironmentSnapshot snapshot = SkytapResolutionCache.getSnapshot(
+				confId, this.authCredentials);
+
+		if (snapshot == null) {
+			return null;
+		}
+
+		return resolveNetworkId(snapshot, netName);
+	}
+
+	private String resolveNetworkId(EnvironmentSnapshot snapshot,
+			String netName) throws SkytapException {
+
+		String networkId = snapshot.getNetworkId(netName);
+		SkytapResolutionCache.put(SkytapResolutionCache.NETWORK,
+				snapshot.getId(), netName, this.authCredentials, networkId);
+
+		return networkId;
+	}
+
+	private String buildConfigurationURL(String confId) {
+
+		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
+		sb.append("configurations/");
+		sb.append(confId);
+
+		return sb.toString();
+	}
+
 	private String buildCheckTargetNetworkURL(String confId, String netId) {
 
 		JenkinsLogger.log("Building request url ...");
@@ -284,65 +370,50 @@ public class NetworkConnectStep extends SkytapAction {
 		JenkinsLogger.log("Checking availability of target network with id: "
 				+ tgtNetId + " in environment with id: " + tgtConfigId);
 
-		// build busy check request
+		// wait through the shared poller, so that builds waiting on the same
+		// network share its reads
 		String requestURL = buildCheckTargetNetworkURL(tgtConfigId, tgtNetId);
-		HttpGet hg = SkytapUtils.buildHttpGetRequest(requestURL,
-				this.authCredentials);
+		SkytapPoller.Watch watch = SkytapPoller.watch(requestURL,
+				this.authCredentials, new SkytapPoller.Condition() {
+					public boolean isSatisfied(JsonElement network) {
+
+						// if the status field does not even exist, the
+						// network is not connected to anything and therefore
+						// not busy
+						JsonElement status = network.getAsJsonObject().get(
+								"status");
 
-		// repeat request until target network is available
-		String httpRespBody = "";
-		Boolean networkIsAvailable = false;
+						return status == null
+								|| status.getAsString().equals("not_busy");
+					}
+				});
 
 		try {
-			int pollAttempts = 0;
-
-			while (!networkIsAvailable
-					&& (pollAttempts < this.NUMBER_OF_RETRIES)) {
-
-				httpRespBody = SkytapUtils.executeHttpRequest(hg);
-
-				// get json object from response
-				JsonParser parser = new JsonParser();
-				JsonElement je = parser.parse(httpRespBody);
-				JsonObject jo = je.getAsJsonObject();
-
-				// get busy status
-				
-				// first check if the status field does not even exist
-				// if that is the case, the network is not connected to
-				// anything and therefore not busy
-				
-				if (jo.get("status") == null){
-					JenkinsLogger.log("Target network is available.");
-					return true;
-				}
-				
-				if (jo.get("status").getAsString().equals("not_busy")) {
-					networkIsAvailable = true;
-					JenkinsLogger.log("Target network is available.");
-				} else {
-					networkIsAvailable = false;
-					JenkinsLogger.log("Target network is busy.");
-
-					// wait before trying again
-					int sleepTime = this.RETRY_INTERVAL_SECONDS;
-					JenkinsLogger
-							.log("Sleeping for " + sleepTime + " seconds.");
-					Thread.sleep(sleepTime * 1000);
-				}
-
-				pollAttempts++;
+
+			Waiter.Result result = new Waiter("Target network " + tgtNetId
+					+ " availability", Waiter.satisfied(watch),
+					Waiter.every(this.RETRY_INTERVAL_SECONDS),
+					this.NUMBER_OF_RETRIES, 0, Waiter.awaiting(watch))
+					.waitUntil();
+
+			if (result.isMet()) {
+				JenkinsLogger.log("Target network is available.");
+				return true;
+			}
+
+			if (watch.getLastError() != null) {
+				JenkinsLogger.error("Request returned an error: "
+						+ watch.getLastError().getError());
 			}
 
-			return networkIsAvailable;
+			return false;
 
 		} catch (SkytapException ex) {
 			JenkinsLogger.error("Request returned an error: " + ex.getError());
 			JenkinsLogger.error("Failing build step.");
 			return false;
-		} catch (InterruptedException e1) {
-			JenkinsLogger.error(e1.getMessage());
-			return false;
+		} finally {
+			watch.cancel(false);
 		}
 
 	}
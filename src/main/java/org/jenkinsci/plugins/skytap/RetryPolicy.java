@@ -0,0 +1,57 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+/**
+ * Decides whether, and after how long, a failed Skytap API request is
+ * retried. Implementations must be thread safe, since one policy is shared by
+ * all requests made by a build step.
+ */
+public interface RetryPolicy {
+
+	/**
+	 * Returns true if a response with the given HTTP status code may be
+	 * retried.
+	 *
+	 * @param method
+	 *            HTTP method of the request, e.g. "POST"
+	 * @param statusCode
+	 * @return
+	 */
+	boolean isRetryable(String method, int statusCode);
+
+	/**
+	 * Returns the number of milliseconds to wait before the next attempt, or a
+	 * negative value if the request should not be retried again.
+	 *
+	 * @param attempt
+	 *            number of attempts made so far, starting at 1
+	 * @param elapsedMillis
+	 *            time spent on the request since the first attempt
+	 * @param serverDelayMillis
+	 *            delay requested by the server in a Retry-After header, or a
+	 *            negative value if none was sent
+	 * @return delayMillis
+	 */
+	long getRetryDelay(int attempt, long elapsedMillis, long serverDelayMillis);
+
+}
@@ -0,0 +1,257 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+
+/**
+ * Non-blocking client for the Skytap API. Each call is submitted to a small
+ * shared pool and returns immediately with a Future, so that a step can issue
+ * independent requests concurrently and collect the results afterwards.
+ *
+ * Requests go through SkytapUtils and therefore share its pooled connections.
+ * Responses are parsed and checked for Skytap errors; a failed request
+ * surfaces as a SkytapException from {@link #await(Future)}.
+ */
+public class SkytapApiClient {
+
+	// upper bound on concurrent requests issued through this client
+	private static final int MAX_CONCURRENT_REQUESTS = 8;
+
+	private static ExecutorService executor;
+
+	private final String authCredentials;
+
+	public SkytapApiClient(String authCredentials) {
+		this.authCredentials = authCredentials;
+	}
+
+	public Future<JsonElement> get(String requestUrl) {
+		return submit(SkytapUtils.buildHttpGetRequest(requestUrl,
+				authCredentials));
+	}
+
+	/**
+	 * Sends a get request whose response is read by the given handler, e.g.
+	 * to scan it as a stream.
+	 *
+	 * @param requestUrl
+	 * @param handler
+	 * @return result of the handler
+	 */
+	public <T> Future<T> get(String requestUrl,
+			final SkytapResponseHandler<T> handler) {
+
+		final HttpRequestBase request = SkytapUtils.buildHttpGetRequest(
+				requestUrl, authCredentials);
+
+		return submit(new Callable<T>() {
+			public T call() throws SkytapException {
+				return SkytapUtils.executeHttpRequest(request, handler);
+			}
+		});
+	}
+
+	public Future<JsonElement> put(String requestUrl) {
+		return submit(SkytapUtils.buildHttpPutRequest(requestUrl,
+				authCredentials));
+	}
+
+	public Future<JsonElement> put(String requestUrl, HttpEntity body) {
+		return submit(withBody(
+				SkytapUtils.buildHttpPutRequest(requestUrl, authCredentials),
+				body));
+	}
+
+	public Future<JsonElement> post(String requestUrl) {
+		return submit(SkytapUtils.buildHttpPostRequest(requestUrl,
+				authCredentials));
+	}
+
+	public Future<JsonElement> post(String requestUrl, HttpEntity body) {
+		return submit(withBody(
+				SkytapUtils.buildHttpPostRequest(requestUrl, authCredentials),
+				body));
+	}
+
+	public Future<JsonElement> delete(String requestUrl) {
+		return submit(SkytapUtils.buildHttpDeleteRequest(requestUrl,
+				authCredentials));
+	}
+
+	/**
+	 * Blocks until the request has completed and returns its parsed response.
+	 *
+	 * @param future
+	 * @return response
+	 * @throws SkytapException
+	 */
+	public static <T> T await(Future<T> future) throws SkytapException {
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new SkytapException("Interrupted while waiting for Skytap response.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SkytapException) {
+				throw (SkytapException) cause;
+			}
+			throw new SkytapException(String.valueOf(cause));
+		}
+	}
+
+	/**
+	 * Waits for all of the given requests. If any of them failed, the first
+	 * failure is thrown once every request has finished.
+	 *
+	 * @param futures
+	 * @return responses, in the same order as the futures
+	 * @throws SkytapException
+	 */
+	public static <T> List<T> awaitAll(List<Future<T>> futures)
+			throws SkytapException {
+
+		List<T> results = new ArrayList<T>();
+		SkytapException firstError = null;
+
+		for (Future<T> future : futures) {
+			try {
+				results.add(await(future));
+			} catch (SkytapException e) {
+				if (firstError == null) {
+					firstError = e;
+				}
+				results.add(null);
+			}
+		}
+
+		if (firstError != null) {
+			throw firstError;
+		}
+
+		return results;
+	}
+
+	private static HttpRequestBase withBody(
+			HttpEntityEnclosingRequestBase request, HttpEntity body) {
+		request.setEntity(body);
+		return request;
+	}
+
+	private Future<JsonElement> submit(final HttpRequestBase request) {
+		return submit(new Callable<JsonElement>() {
+			public JsonElement call() throws SkytapException {
+				return execute(request);
+			}
+		});
+	}
+
+	private <T> Future<T> submit(final Callable<T> task) {
+
+		// requests keep the retry policy, build caches and logging of the
+		// step which issued them
+		final RetryPolicy retryPolicy = SkytapUtils.getRetryPolicy();
+		final SkytapResolutionCache resolutionCache = SkytapResolutionCache
+				.getCurrent();
+		final boolean muted = JenkinsLogger.isMuted();
+
+		return getExecutor().submit(new Callable<T>() {
+			public T call() throws Exception {
+				SkytapUtils.setRetryPolicy(retryPolicy);
+				SkytapResolutionCache.setCurrent(resolutionCache);
+				JenkinsLogger.setMuted(muted);
+				try {
+					return task.call();
+				} finally {
+					SkytapUtils.setRetryPolicy(null);
+					SkytapResolutionCache.setCurrent(null);
+					JenkinsLogger.setMuted(false);
+				}
+			}
+		});
+	}
+
+	private static JsonElement execute(HttpRequestBase request)
+			throws SkytapException {
+
+		String response;
+
+		if (request instanceof HttpDelete) {
+			response = SkytapUtils.executeHttpDeleteRequest((HttpDelete) request);
+
+			// an empty delete response means the request never completed
+			if (response.equals("")) {
+				throw new SkytapException("An error occurred while executing "
+						+ request.getRequestLine());
+			}
+		} else {
+			response = SkytapUtils.executeHttpRequest(request);
+		}
+
+		if (response == null || response.trim().equals("")) {
+			return JsonNull.INSTANCE;
+		}
+
+		SkytapUtils.checkResponseForErrors(response);
+
+		return new JsonParser().parse(response);
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+
+		if (executor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(
+					MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS, 60L,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new NamingThreadFactory(new DaemonThreadFactory(),
+							"Skytap API client"));
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+
+		return executor;
+	}
+
+}
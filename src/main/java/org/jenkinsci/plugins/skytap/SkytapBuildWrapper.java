@@ -27,6 +27,7 @@ import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.BuildableItemWithBuildWrappers;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.Secret;
@@ -75,6 +76,31 @@ public class SkytapBuildWrapper extends BuildWrapper {
 		return Secret.toString(authKey);
 	}
 
+	/**
+	 * Returns the encoded credentials a project is configured with, e.g. for
+	 * its configuration page.
+	 *
+	 * @param project
+	 * @return credentials, or null if the project has none
+	 */
+	public static String getAuthCredentials(AbstractProject project) {
+
+		if (!(project instanceof BuildableItemWithBuildWrappers)) {
+			return null;
+		}
+
+		SkytapBuildWrapper wrapper = ((BuildableItemWithBuildWrappers) project)
+				.getBuildWrappersList().get(SkytapBuildWrapper.class);
+
+		if (wrapper == null || wrapper.userId == null
+				|| wrapper.userId.equals("")) {
+			return null;
+		}
+
+		return SkytapUtils.encodeAuthCredentials(wrapper.userId + ":"
+				+ wrapper.getAuthKey());
+	}
+
 	@Override
 	  public BuildWrapper.Environment setUp(
 	      @SuppressWarnings("rawtypes") final AbstractBuild build,
@@ -27,35 +27,49 @@ import hudson.util.FormValidation;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.AbstractProject;
+import hudson.model.AutoCompletionCandidates;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
+import hudson.model.Item;
 import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.servlet.ServletException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class SkytapBuilder extends Builder {
 
     private final SkytapAction action;
 
+    // optional per-step override of the global retry policy
+    private final BackoffRetryPolicy retryPolicy;
+
     @DataBoundConstructor
-    public SkytapBuilder(SkytapAction action) {
+    public SkytapBuilder(SkytapAction action, BackoffRetryPolicy retryPolicy) {
         this.action = action;
+        this.retryPolicy = retryPolicy;
     }
 
     public SkytapAction getAction(){
     	return action;
     }
 
+    public BackoffRetryPolicy getRetryPolicy(){
+    	return retryPolicy;
+    }
+
     public static class SkytapAction implements ExtensionPoint, Describable<SkytapAction> {
         public String displayName;
         
@@ -92,7 +106,7 @@ public class SkytapBuilder extends Builder {
             return displayName;
         }
         
-        public FormValidation doCheckConfigurationID(@QueryParameter String configurationID, @QueryParameter String configurationFile) throws IOException, ServletException {
+        public FormValidation doCheckConfigurationID(@QueryParameter String configurationID, @QueryParameter String configurationFile, @AncestorInPath AbstractProject project) throws IOException, ServletException {
         	
         	// make sure the id is a valid number
         	try {
@@ -106,6 +120,15 @@ public class SkytapBuilder extends Builder {
         		return FormValidation.error("Please enter either a valid environment ID or a valid environment file. Build step will fail if both values are entered.");
         	}
         	
+        	// name the environment, if the catalog knows it
+        	String authCredentials = getCatalogCredentials(project);
+        	if (authCredentials != null && !configurationID.equals("")) {
+        		String name = SkytapCatalog.getEnvironmentName(authCredentials, configurationID);
+        		if (name != null) {
+        			return FormValidation.ok("Environment: " + name);
+        		}
+        	}
+        	
     	    return FormValidation.ok();
         	}
 
@@ -142,6 +165,83 @@ public class SkytapBuilder extends Builder {
         	
         	return FormValidation.ok();
         }
+
+        // completions come from the local catalog of the project's Skytap
+        // account, never from a live request
+
+        public AutoCompletionCandidates doAutoCompleteConfigurationID(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	String authCredentials = getCatalogCredentials(project);
+        	return toCandidates(authCredentials == null ? null : SkytapCatalog.completeEnvironmentIds(authCredentials, value));
+        }
+
+        public AutoCompletionCandidates doAutoCompleteSourceNetworkConfigurationID(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	return doAutoCompleteConfigurationID(value, project);
+        }
+
+        public AutoCompletionCandidates doAutoCompleteTargetNetworkConfigurationID(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	return doAutoCompleteConfigurationID(value, project);
+        }
+
+        public AutoCompletionCandidates doAutoCompleteTemplateID(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	String authCredentials = getCatalogCredentials(project);
+        	return toCandidates(authCredentials == null ? null : SkytapCatalog.completeTemplateIds(authCredentials, value));
+        }
+
+        public AutoCompletionCandidates doAutoCompleteProjectName(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	String authCredentials = getCatalogCredentials(project);
+        	return toCandidates(authCredentials == null ? null : SkytapCatalog.completeProjectNames(authCredentials, value));
+        }
+
+        public AutoCompletionCandidates doAutoCompleteVmName(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	String authCredentials = getCatalogCredentials(project);
+        	return toCandidates(authCredentials == null ? null : SkytapCatalog.completeVmNames(authCredentials, value));
+        }
+
+        public AutoCompletionCandidates doAutoCompleteNetworkName(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	String authCredentials = getCatalogCredentials(project);
+        	return toCandidates(authCredentials == null ? null : SkytapCatalog.completeNetworkNames(authCredentials, value));
+        }
+
+        public AutoCompletionCandidates doAutoCompleteConfigurationNetworkName(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	return doAutoCompleteNetworkName(value, project);
+        }
+
+        public AutoCompletionCandidates doAutoCompleteSourceNetworkName(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	return doAutoCompleteNetworkName(value, project);
+        }
+
+        public AutoCompletionCandidates doAutoCompleteTargetNetworkName(@QueryParameter String value, @AncestorInPath AbstractProject project) {
+        	return doAutoCompleteNetworkName(value, project);
+        }
+
+        /**
+         * Returns the credentials of the project being configured, if the
+         * user may configure it, and makes sure its account is in the
+         * catalog.
+         */
+        private static String getCatalogCredentials(AbstractProject project) {
+
+        	if (project == null || !project.hasPermission(Item.CONFIGURE)) {
+        		return null;
+        	}
+
+        	String authCredentials = SkytapBuildWrapper.getAuthCredentials(project);
+        	if (authCredentials != null) {
+        		SkytapCatalog.register(authCredentials);
+        	}
+        	return authCredentials;
+        }
+
+        private static AutoCompletionCandidates toCandidates(List<String> values) {
+
+        	AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+        	if (values != null) {
+        		for (String value : values) {
+        			candidates.add(value);
+        		}
+        	}
+        	return candidates;
+        }
         
     }
     
@@ -154,8 +254,19 @@ public class SkytapBuilder extends Builder {
 		// instantiate a Jenkins Logger for use by the steps
 		JenkinsLogger theLogger = new JenkinsLogger(listener, getDescriptor().isLoggingEnabled());
 		
-    	Boolean stepSucceeded = action.executeStep(build, globalVars);
-    	return stepSucceeded;
+		// requests made by this step use its own retry policy, if it has one
+		SkytapUtils.setRetryPolicy(retryPolicy);
+
+		// names resolved by earlier steps of this build are reused
+		SkytapResolutionCache.setCurrent(SkytapResolutionCache.forBuild(build));
+
+		try {
+			Boolean stepSucceeded = action.executeStep(build, globalVars);
+			return stepSucceeded;
+		} finally {
+			SkytapUtils.setRetryPolicy(null);
+			SkytapResolutionCache.setCurrent(null);
+		}
     }
 
     @Override
@@ -178,8 +289,43 @@ public class SkytapBuilder extends Builder {
 
 		private Boolean loggingEnabled = true;
 
+		// size of the shared http connection pool
+		private Integer connectionPoolSize = SkytapHttpClient.DEFAULT_POOL_SIZE;
+
+		// retry policy used by steps which do not override it
+		private BackoffRetryPolicy retryPolicy;
+
+		// client side limit on API requests per Skytap user
+		private Double requestsPerSecond;
+		private Integer requestBurst;
+
+		// memory used to cache GET responses for conditional requests
+		private Integer responseCacheSizeMB;
+
+		// shared cache of project and container registry ids
+		private Integer idCacheTtlMinutes;
+		private Integer idCacheStaleMinutes;
+		private Integer idCacheMaxEntries;
+
+		// background refresh of environments used by builds
+		private Boolean environmentRefreshEnabled;
+		private Integer environmentRefreshSeconds;
+
+		// readiness of published services after an environment starts
+		private Boolean readinessCheckServices;
+
 		public DescriptorImpl() {
 			load();
+			SkytapHttpClient.setPoolSize(getConnectionPoolSize());
+			BackoffRetryPolicy.setGlobalDefault(retryPolicy);
+			SkytapRateLimiter.configure(getRequestsPerSecond(), getRequestBurst());
+			SkytapResponseCache.setSizeMB(getResponseCacheSizeMB());
+			SkytapIdCache.configure(getIdCacheTtlMinutes(), getIdCacheStaleMinutes(), getIdCacheMaxEntries());
+			File cacheDir = new File(Jenkins.getInstance().getRootDir(), "skytap-cache");
+			SkytapIdCache.load(cacheDir);
+			SkytapTransitionStats.load(cacheDir);
+			SkytapEnvironmentRefresher.configure(isEnvironmentRefreshEnabled(), getEnvironmentRefreshSeconds());
+			SkytapReadinessProbe.configure(isReadinessCheckServices());
 		}
 
 		// Indicates that this builder can be used with all kinds of project types 
@@ -198,6 +344,34 @@ public class SkytapBuilder extends Builder {
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
 
         	loggingEnabled = formData.getBoolean("loggingEnabled");
+        	connectionPoolSize = formData.optInt("connectionPoolSize", SkytapHttpClient.DEFAULT_POOL_SIZE);
+        	SkytapHttpClient.setPoolSize(getConnectionPoolSize());
+
+        	retryPolicy = new BackoffRetryPolicy(
+        			formData.optInt("retryBaseDelaySeconds", BackoffRetryPolicy.DEFAULT_BASE_DELAY_SECONDS),
+        			formData.optInt("retryMaxDelaySeconds", BackoffRetryPolicy.DEFAULT_MAX_DELAY_SECONDS),
+        			formData.optInt("retryMaxElapsedSeconds", BackoffRetryPolicy.DEFAULT_MAX_ELAPSED_SECONDS),
+        			formData.optString("retryableStatusCodes", BackoffRetryPolicy.DEFAULT_RETRYABLE_STATUS_CODES));
+        	BackoffRetryPolicy.setGlobalDefault(retryPolicy);
+
+        	requestsPerSecond = formData.optDouble("requestsPerSecond", SkytapRateLimiter.DEFAULT_REQUESTS_PER_SECOND);
+        	requestBurst = formData.optInt("requestBurst", SkytapRateLimiter.DEFAULT_BURST);
+        	SkytapRateLimiter.configure(getRequestsPerSecond(), getRequestBurst());
+
+        	responseCacheSizeMB = formData.optInt("responseCacheSizeMB", SkytapResponseCache.DEFAULT_SIZE_MB);
+        	SkytapResponseCache.setSizeMB(getResponseCacheSizeMB());
+
+        	idCacheTtlMinutes = formData.optInt("idCacheTtlMinutes", SkytapIdCache.DEFAULT_TTL_MINUTES);
+        	idCacheStaleMinutes = formData.optInt("idCacheStaleMinutes", SkytapIdCache.DEFAULT_STALE_MINUTES);
+        	idCacheMaxEntries = formData.optInt("idCacheMaxEntries", SkytapIdCache.DEFAULT_MAX_ENTRIES);
+        	SkytapIdCache.configure(getIdCacheTtlMinutes(), getIdCacheStaleMinutes(), getIdCacheMaxEntries());
+
+        	environmentRefreshEnabled = formData.optBoolean("environmentRefreshEnabled", false);
+        	environmentRefreshSeconds = formData.optInt("environmentRefreshSeconds", SkytapEnvironmentRefresher.DEFAULT_INTERVAL_SECONDS);
+        	SkytapEnvironmentRefresher.configure(isEnvironmentRefreshEnabled(), getEnvironmentRefreshSeconds());
+
+        	readinessCheckServices = formData.optBoolean("readinessCheckServices", false);
+        	SkytapReadinessProbe.configure(isReadinessCheckServices());
         	
             save();
             return super.configure(req,formData);
@@ -207,6 +381,97 @@ public class SkytapBuilder extends Builder {
 			return loggingEnabled;
 		}
 
+		public int getRetryBaseDelaySeconds() {
+			return BackoffRetryPolicy.getGlobalDefault().getBaseDelaySeconds();
+		}
+
+		public int getRetryMaxDelaySeconds() {
+			return BackoffRetryPolicy.getGlobalDefault().getMaxDelaySeconds();
+		}
+
+		public int getRetryMaxElapsedSeconds() {
+			return BackoffRetryPolicy.getGlobalDefault().getMaxElapsedSeconds();
+		}
+
+		public String getRetryableStatusCodes() {
+			return BackoffRetryPolicy.getGlobalDefault().getRetryableStatusCodes();
+		}
+
+		public double getRequestsPerSecond() {
+			if (requestsPerSecond == null) {
+				return SkytapRateLimiter.DEFAULT_REQUESTS_PER_SECOND;
+			}
+			return requestsPerSecond;
+		}
+
+		public int getRequestBurst() {
+			if (requestBurst == null || requestBurst < 1) {
+				return SkytapRateLimiter.DEFAULT_BURST;
+			}
+			return requestBurst;
+		}
+
+		public int getResponseCacheSizeMB() {
+			if (responseCacheSizeMB == null || responseCacheSizeMB < 0) {
+				return SkytapResponseCache.DEFAULT_SIZE_MB;
+			}
+			return responseCacheSizeMB;
+		}
+
+		public int getIdCacheTtlMinutes() {
+			if (idCacheTtlMinutes == null || idCacheTtlMinutes < 0) {
+				return SkytapIdCache.DEFAULT_TTL_MINUTES;
+			}
+			return idCacheTtlMinutes;
+		}
+
+		public int getIdCacheStaleMinutes() {
+			if (idCacheStaleMinutes == null || idCacheStaleMinutes < 0) {
+				return SkytapIdCache.DEFAULT_STALE_MINUTES;
+			}
+			return idCacheStaleMinutes;
+		}
+
+		public int getIdCacheMaxEntries() {
+			if (idCacheMaxEntries == null || idCacheMaxEntries < 1) {
+				return SkytapIdCache.DEFAULT_MAX_ENTRIES;
+			}
+			return idCacheMaxEntries;
+		}
+
+		public boolean isEnvironmentRefreshEnabled() {
+			return environmentRefreshEnabled != null && environmentRefreshEnabled;
+		}
+
+		public int getEnvironmentRefreshSeconds() {
+			if (environmentRefreshSeconds == null || environmentRefreshSeconds < 1) {
+				return SkytapEnvironmentRefresher.DEFAULT_INTERVAL_SECONDS;
+			}
+			return environmentRefreshSeconds;
+		}
+
+		public boolean isReadinessCheckServices() {
+			return readinessCheckServices != null && readinessCheckServices;
+		}
+
+		/**
+		 * Clears the shared id cache - the button on the global configuration
+		 * page, which posts to it.
+		 */
+		@RequirePOST
+		public FormValidation doClearIdCache() {
+			Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+			return FormValidation.ok("Cleared " + SkytapIdCache.clear() + " cached IDs.");
+		}
+
+		public int getConnectionPoolSize() {
+			// null if the global settings were saved by an older version
+			if (connectionPoolSize == null || connectionPoolSize < 1) {
+				return SkytapHttpClient.DEFAULT_POOL_SIZE;
+			}
+			return connectionPoolSize;
+		}
+
         
     }
 }
@@ -0,0 +1,513 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Local catalog of the environments, templates and projects of the Skytap
+ * accounts used by jobs, and of the VM and network names in environments
+ * builds have read. It answers autocompletion on job configuration pages,
+ * so that typing never waits for, or causes, a Skytap request.
+ *
+ * Lists are read by a background task: an account is read shortly after
+ * a configuration page first asks for it, and again every fifteen minutes
+ * until no configuration page has asked for a day. Builds alone never add
+ * an account, so the catalog causes no Skytap requests unless someone
+ * configures a job. VM and network names are taken from environment
+ * snapshots as builds read them, for accounts already in the catalog, and
+ * indexed by the background task. The credentials of an account are kept
+ * in memory only.
+ */
+public final class SkytapCatalog {
+
+	// completions offered for one keystroke
+	private static final int MAX_COMPLETIONS = 20;
+
+	private static final long LIST_REFRESH_MILLIS = TimeUnit.MINUTES
+			.toMillis(15);
+
+	// accounts no configuration page has used for this long are dropped
+	private static final long ACCOUNT_IDLE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+	private static final int MAX_ACCOUNTS = 20;
+
+	// environments whose VM and network names are kept, per account
+	private static final int MAX_ENVIRONMENTS = 200;
+
+	// access ordered, so iteration starts at the least recently used
+	private static final LinkedHashMap<String, Account> accounts = new LinkedHashMap<String, Account>(
+			16, 0.75f, true);
+
+	private SkytapCatalog() {
+	}
+
+	/**
+	 * Makes sure the account is in the catalog, for a configuration page. A
+	 * new account is read by the next run of the background task.
+	 *
+	 * @param authCredentials
+	 */
+	public static void register(String authCredentials) {
+		getAccount(authCredentials);
+	}
+
+	/**
+	 * Records the VM and network names of an environment a build has read,
+	 * if its account is in the catalog. They are indexed by the next run of
+	 * the background task.
+	 *
+	 * @param snapshot
+	 * @param authCredentials
+	 */
+	public static void addEnvironment(EnvironmentSnapshot snapshot,
+			String authCredentials) {
+
+		Account account;
+
+		// unlike getAccount, this does not count as a use of the account
+		synchronized (SkytapCatalog.class) {
+			account = accounts.get(toKey(authCredentials));
+		}
+
+		if (account == null) {
+			return;
+		}
+
+		List<String> vmNames = new ArrayList<String>();
+		for (EnvironmentSnapshot.Vm vm : snapshot.getVms()) {
+			vmNames.add(vm.getName());
+		}
+
+		List<String> networkNames = new ArrayList<String>();
+		for (EnvironmentSnapshot.Network network : snapshot.getNetworks()) {
+			networkNames.add(network.getName());
+		}
+
+		synchronized (account) {
+			account.environmentNames.put(snapshot.getId(),
+					new EnvironmentNames(vmNames, networkNames));
+
+			Iterator<EnvironmentNames> it = account.environmentNames.values()
+					.iterator();
+			while (account.environmentNames.size() > MAX_ENVIRONMENTS
+					&& it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+
+			account.environmentNamesChanged = true;
+		}
+	}
+
+	/**
+	 * Rebuilds the VM and network name indexes of an account, if builds
+	 * have read environments since they were last built.
+	 *
+	 * @param account
+	 */
+	private static void indexEnvironmentNames(Account account) {
+
+		List<EnvironmentNames> environments;
+
+		synchronized (account) {
+			if (!account.environmentNamesChanged) {
+				return;
+			}
+			account.environmentNamesChanged = false;
+			environments = new ArrayList<EnvironmentNames>(
+					account.environmentNames.values());
+		}
+
+		// rebuilt rather than updated, so readers never see a trie being
+		// changed
+		SkytapNameTrie vmTrie = new SkytapNameTrie();
+		SkytapNameTrie networkTrie = new SkytapNameTrie();
+		for (EnvironmentNames names : environments) {
+			for (String name : names.vmNames) {
+				vmTrie.add(name);
+			}
+			for (String name : names.networkNames) {
+				networkTrie.add(name);
+			}
+		}
+		account.vmNames = vmTrie;
+		account.networkNames = networkTrie;
+	}
+
+	public static List<String> completeEnvironmentIds(String authCredentials,
+			String prefix) {
+		return getAccount(authCredentials).environments.completeIds(prefix);
+	}
+
+	public static List<String> completeTemplateIds(String authCredentials,
+			String prefix) {
+		return getAccount(authCredentials).templates.completeIds(prefix);
+	}
+
+	public static List<String> completeProjectNames(String authCredentials,
+			String prefix) {
+		return getAccount(authCredentials).projects.names.complete(prefix,
+				MAX_COMPLETIONS);
+	}
+
+	public static List<String> completeVmNames(String authCredentials,
+			String prefix) {
+		return getAccount(authCredentials).vmNames.complete(prefix,
+				MAX_COMPLETIONS);
+	}
+
+	public static List<String> completeNetworkNames(String authCredentials,
+			String prefix) {
+		return getAccount(authCredentials).networkNames.complete(prefix,
+				MAX_COMPLETIONS);
+	}
+
+	/**
+	 * @param authCredentials
+	 * @param id
+	 * @return name of the environment, or null if it is not in the catalog
+	 */
+	public static String getEnvironmentName(String authCredentials, String id) {
+		return getAccount(authCredentials).environments.namesById.get(id);
+	}
+
+	private static synchronized Account getAccount(String authCredentials) {
+
+		String key = toKey(authCredentials);
+		Account account = accounts.get(key);
+
+		if (account == null) {
+			account = new Account(authCredentials);
+			accounts.put(key, account);
+
+			Iterator<Account> it = accounts.values().iterator();
+			while (accounts.size() > MAX_ACCOUNTS && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+
+		account.lastUsed = System.currentTimeMillis();
+		return account;
+	}
+
+	private static String toKey(String authCredentials) {
+		return DigestUtils.sha256Hex(authCredentials);
+	}
+
+	/**
+	 * Indexes the names builds have read, and reads the lists of the
+	 * accounts which are due.
+	 */
+	static void refreshDueAccounts() {
+
+		List<Account> live = new ArrayList<Account>();
+		List<Account> due = new ArrayList<Account>();
+
+		synchronized (SkytapCatalog.class) {
+
+			long now = System.currentTimeMillis();
+
+			Iterator<Account> it = accounts.values().iterator();
+			while (it.hasNext()) {
+				Account account = it.next();
+
+				if (account.lastUsed + ACCOUNT_IDLE_MILLIS <= now) {
+					it.remove();
+					continue;
+				}
+
+				live.add(account);
+
+				if (account.lastListed + LIST_REFRESH_MILLIS <= now) {
+					due.add(account);
+				}
+			}
+		}
+
+		for (Account account : live) {
+			indexEnvironmentNames(account);
+		}
+
+		for (Account account : due) {
+
+			// leave the API alone while it is down
+			if (SkytapCircuitBreaker.isOpen()) {
+				return;
+			}
+
+			try {
+				account.environments = readListing(
+						"https://cloud.skytap.com/v2/configurations.json",
+						account.authCredentials);
+				account.templates = readListing(
+						"https://cloud.skytap.com/v2/templates.json",
+						account.authCredentials);
+				account.projects = readListing(
+						"https://cloud.skytap.com/v2/projects.json",
+						account.authCredentials);
+			} catch (SkytapException e) {
+				// keep what was read before, and try again next time
+			}
+
+			account.lastListed = System.currentTimeMillis();
+		}
+	}
+
+	private static Listing readListing(String url, String authCredentials)
+			throws SkytapException {
+
+		Map<String, String> namesById = new HashMap<String, String>();
+		SkytapPager<Integer> pager = new SkytapPager<Integer>(url,
+				authCredentials, new ListingReader(namesById));
+
+		try {
+			while (pager.hasNextPage()) {
+				pager.nextPage();
+			}
+		} finally {
+			pager.close();
+		}
+
+		return new Listing(namesById);
+	}
+
+	/**
+	 * Names and ids of one kind of object in an account, as last read.
+	 */
+	private static final class Listing {
+
+		private static final Listing EMPTY = new Listing(
+				Collections.<String, String> emptyMap());
+
+		private final Map<String, String> namesById;
+		private final SkytapNameTrie names = new SkytapNameTrie();
+		private final SkytapNameTrie ids = new SkytapNameTrie();
+
+		// ids of the objects with a given name
+		private final Map<String, List<String>> idsByName = new HashMap<String, List<String>>();
+
+		Listing(Map<String, String> namesById) {
+			this.namesById = namesById;
+
+			for (Map.Entry<String, String> entry : namesById.entrySet()) {
+				names.add(entry.getValue());
+				ids.add(entry.getKey());
+
+				List<String> sameName = idsByName.get(entry.getValue());
+				if (sameName == null) {
+					sameName = new ArrayList<String>(1);
+					idsByName.put(entry.getValue(), sameName);
+				}
+				sameName.add(entry.getKey());
+			}
+		}
+
+		/**
+		 * Ids starting with the prefix, or if none do, the ids of the
+		 * objects whose names start with it.
+		 */
+		List<String> completeIds(String prefix) {
+
+			List<String> matches = ids.complete(prefix, MAX_COMPLETIONS);
+
+			if (!matches.isEmpty()) {
+				return matches;
+			}
+
+			for (String name : names.complete(prefix, MAX_COMPLETIONS)) {
+				for (String id : idsByName.get(name)) {
+					if (matches.size() < MAX_COMPLETIONS) {
+						matches.add(id);
+					}
+				}
+			}
+
+			return matches;
+		}
+	}
+
+	private static final class Account {
+
+		private final String authCredentials;
+
+		private volatile Listing environments = Listing.EMPTY;
+		private volatile Listing templates = Listing.EMPTY;
+		private volatile Listing projects = Listing.EMPTY;
+
+		private volatile SkytapNameTrie vmNames = new SkytapNameTrie();
+		private volatile SkytapNameTrie networkNames = new SkytapNameTrie();
+
+		// vm and network names of environments builds have read; access
+		// ordered and guarded by the account
+		private final LinkedHashMap<String, EnvironmentNames> environmentNames = new LinkedHashMap<String, EnvironmentNames>(
+				16, 0.75f, true);
+
+		// whether the names above changed since they were indexed; guarded
+		// by the account
+		private boolean environmentNamesChanged;
+
+		private volatile long lastListed;
+		private volatile long lastUsed;
+
+		Account(String authCredentials) {
+			this.authCredentials = authCredentials;
+		}
+	}
+
+	private static final class EnvironmentNames {
+
+		private final List<String> vmNames;
+		private final List<String> networkNames;
+
+		EnvironmentNames(List<String> vmNames, List<String> networkNames) {
+			this.vmNames = vmNames;
+			this.networkNames = networkNames;
+		}
+	}
+
+	/**
+	 * Reads the ids and names of a page of a Skytap list as it is streamed.
+	 */
+	private static final class ListingReader implements
+			SkytapPager.PageReader<Integer> {
+
+		private final Map<String, String> namesById;
+
+		ListingReader(Map<String, String> namesById) {
+			this.namesById = namesById;
+		}
+
+		public Integer handleResponse(HttpResponse response)
+				throws IOException, SkytapException {
+
+			HttpEntity entity = response.getEntity();
+
+			if (entity == null) {
+				throw new SkytapException("Empty response: "
+						+ response.getStatusLine());
+			}
+
+			InputStream in = entity.getContent();
+
+			try {
+				JsonReader reader = new JsonReader(new InputStreamReader(in,
+						"UTF-8"));
+
+				if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+					String body = new JsonParser().parse(reader).toString();
+					SkytapUtils.checkResponseForErrors(body);
+					throw new SkytapException("Unexpected response: " + body);
+				}
+
+				int itemCount = 0;
+				reader.beginArray();
+
+				while (reader.hasNext()) {
+					itemCount++;
+
+					String id = null;
+					String name = null;
+
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String field = reader.nextName();
+
+						if (reader.peek() == JsonToken.NULL) {
+							reader.skipValue();
+						} else if (field.equals("id")) {
+							id = reader.nextString();
+						} else if (field.equals("name")) {
+							name = reader.nextString();
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+
+					if (id != null && name != null) {
+						synchronized (namesById) {
+							namesById.put(id, name);
+						}
+					}
+				}
+
+				reader.endArray();
+				return itemCount;
+
+			} finally {
+				in.close();
+			}
+		}
+
+		public int getItemCount(Integer page) {
+			return page;
+		}
+	}
+
+	/**
+	 * Reads the lists of accounts in the background.
+	 */
+	@Extension
+	public static class RefreshWork extends PeriodicWork {
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TimeUnit.MINUTES.toMillis(1);
+		}
+
+		@Override
+		protected void doRun() {
+
+			// this work belongs to no build
+			JenkinsLogger.setMuted(true);
+			try {
+				refreshDueAccounts();
+			} finally {
+				JenkinsLogger.setMuted(false);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,319 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker around all calls to the Skytap API. While Skytap is failing
+ * or very slow, the breaker opens and requests fail straight away instead of
+ * waiting for their timeouts, so that builds fail quickly and release their
+ * executors.
+ *
+ * The breaker is closed in normal operation. It opens once enough of the
+ * most recent calls have failed, or have been slower than the slow call
+ * threshold. After a cool-down period it lets a few trial calls through
+ * (half-open); if they all succeed it closes again, otherwise it re-opens.
+ *
+ * Server errors (5xx), timeouts and connection failures count as failures.
+ * Other responses, including 4xx errors, show the API is reachable and count
+ * as successes.
+ */
+public final class SkytapCircuitBreaker {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(SkytapCircuitBreaker.class.getName());
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	// number of most recent calls the failure and slow call rates are
+	// computed over
+	private static final int WINDOW_SIZE = 20;
+
+	// rates are not evaluated until the window holds this many calls
+	private static final int MINIMUM_CALLS = 10;
+
+	// percentage of failed or slow calls which opens the breaker
+	private static final int FAILURE_RATE_THRESHOLD = 50;
+	private static final int SLOW_CALL_RATE_THRESHOLD = 50;
+
+	// calls taking longer than this are counted as slow
+	private static final long SLOW_CALL_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+	// how long the breaker stays open before allowing trial calls
+	private static final long OPEN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+	// number of successful trial calls needed to close the breaker
+	private static final int HALF_OPEN_TRIAL_CALLS = 3;
+
+	private static State state = State.CLOSED;
+
+	// ring buffer of recent call outcomes
+	private static final boolean[] failedCalls = new boolean[WINDOW_SIZE];
+	private static final boolean[] slowCalls = new boolean[WINDOW_SIZE];
+	private static int windowPosition;
+	private static int windowCount;
+	private static int windowFailures;
+	private static int windowSlowCalls;
+
+	private static long openedAt;
+	private static int trialCallsPermitted;
+	private static int trialCallsSucceeded;
+
+	private static long rejectedCalls;
+	private static long timesOpened;
+	private static long lastTransition = System.currentTimeMillis();
+
+	private SkytapCircuitBreaker() {
+	}
+
+	/**
+	 * Called before each request. Throws if the breaker is open, or if it is
+	 * half-open and all trial calls are already in flight.
+	 *
+	 * @throws SkytapCircuitOpenException
+	 */
+	public static synchronized void acquirePermission()
+			throws SkytapCircuitOpenException {
+
+		if (state == State.OPEN && openMillisRemaining() == 0) {
+			transitionTo(State.HALF_OPEN);
+		}
+
+		if (state == State.OPEN
+				|| (state == State.HALF_OPEN && trialCallsPermitted >= HALF_OPEN_TRIAL_CALLS)) {
+			rejectedCalls++;
+			throw new SkytapCircuitOpenException(getOpenMessage());
+		}
+
+		if (state == State.HALF_OPEN) {
+			trialCallsPermitted++;
+		}
+	}
+
+	/**
+	 * Records the outcome of a request which received a response.
+	 *
+	 * @param statusCode
+	 * @param latencyMillis
+	 */
+	public static void recordResponse(int statusCode, long latencyMillis) {
+		record(statusCode >= 500, latencyMillis);
+	}
+
+	/**
+	 * Records a request which failed without a response, e.g. a timeout or a
+	 * refused connection.
+	 *
+	 * @param latencyMillis
+	 */
+	public static void recordFailure(long latencyMillis) {
+		record(true, latencyMillis);
+	}
+
+	/**
+	 * Records a request which was permitted but whose outcome says nothing
+	 * about the API, e.g. because the build was aborted.
+	 */
+	public static synchronized void recordIgnored() {
+
+		if (state == State.HALF_OPEN && trialCallsPermitted > 0) {
+			trialCallsPermitted--;
+		}
+	}
+
+	private static synchronized void record(boolean failed, long latencyMillis) {
+
+		boolean slow = latencyMillis >= SLOW_CALL_MILLIS;
+
+		switch (state) {
+
+		case HALF_OPEN:
+			if (failed || slow) {
+				transitionTo(State.OPEN);
+			} else if (++trialCallsSucceeded >= HALF_OPEN_TRIAL_CALLS) {
+				transitionTo(State.CLOSED);
+			}
+			break;
+
+		case CLOSED:
+			addToWindow(failed, slow);
+
+			if (windowCount >= MINIMUM_CALLS
+					&& (getFailureRate() >= FAILURE_RATE_THRESHOLD || getSlowCallRate() >= SLOW_CALL_RATE_THRESHOLD)) {
+				transitionTo(State.OPEN);
+			}
+			break;
+
+		default:
+			// calls which were already in flight when the breaker opened
+			break;
+		}
+	}
+
+	private static void addToWindow(boolean failed, boolean slow) {
+
+		if (windowCount == WINDOW_SIZE) {
+			// drop the oldest outcome
+			if (failedCalls[windowPosition]) {
+				windowFailures--;
+			}
+			if (slowCalls[windowPosition]) {
+				windowSlowCalls--;
+			}
+		} else {
+			windowCount++;
+		}
+
+		failedCalls[windowPosition] = failed;
+		slowCalls[windowPosition] = slow;
+
+		if (failed) {
+			windowFailures++;
+		}
+		if (slow) {
+			windowSlowCalls++;
+		}
+
+		windowPosition = (windowPosition + 1) % WINDOW_SIZE;
+	}
+
+	private static void transitionTo(State newState) {
+
+		State oldState = state;
+		state = newState;
+		lastTransition = System.currentTimeMillis();
+
+		if (newState == State.OPEN) {
+			openedAt = lastTransition;
+			timesOpened++;
+
+			// the window was cleared when the trial calls began
+			if (oldState == State.HALF_OPEN) {
+				LOGGER.log(Level.WARNING,
+						"Skytap API circuit breaker opened again after a failed trial call");
+			} else {
+				LOGGER.log(Level.WARNING,
+						"Skytap API circuit breaker opened after {0}% failed and {1}% slow calls",
+						new Object[] { getFailureRate(), getSlowCallRate() });
+			}
+		} else if (oldState != newState) {
+			LOGGER.log(Level.INFO, "Skytap API circuit breaker changed from {0} to {1}",
+					new Object[] { oldState, newState });
+		}
+
+		// every state starts with a clean slate
+		windowPosition = 0;
+		windowCount = 0;
+		windowFailures = 0;
+		windowSlowCalls = 0;
+		trialCallsPermitted = 0;
+		trialCallsSucceeded = 0;
+	}
+
+	private static long openMillisRemaining() {
+		return Math.max(0, openedAt + OPEN_MILLIS - System.currentTimeMillis());
+	}
+
+	private static String getOpenMessage() {
+		return "Skytap API is unavailable (circuit breaker open) - not sending request. Retrying in "
+				+ TimeUnit.MILLISECONDS.toSeconds(openMillisRemaining())
+				+ " seconds.";
+	}
+
+	/**
+	 * Returns true while requests are being rejected. Polling loops check
+	 * this so that they give up instead of sleeping between failed requests.
+	 *
+	 * @return open
+	 */
+	public static synchronized boolean isOpen() {
+		return state == State.OPEN && openMillisRemaining() > 0;
+	}
+
+	public static synchronized State getState() {
+
+		if (state == State.OPEN && openMillisRemaining() == 0) {
+			// trial calls will be let through on the next request
+			return State.HALF_OPEN;
+		}
+
+		return state;
+	}
+
+	/**
+	 * @return percentage of failed calls in the current window
+	 */
+	public static synchronized int getFailureRate() {
+		return windowCount == 0 ? 0 : windowFailures * 100 / windowCount;
+	}
+
+	/**
+	 * @return percentage of slow calls in the current window
+	 */
+	public static synchronized int getSlowCallRate() {
+		return windowCount == 0 ? 0 : windowSlowCalls * 100 / windowCount;
+	}
+
+	public static synchronized int getBufferedCalls() {
+		return windowCount;
+	}
+
+	public static synchronized long getRejectedCalls() {
+		return rejectedCalls;
+	}
+
+	public static synchronized long getTimesOpened() {
+		return timesOpened;
+	}
+
+	public static synchronized Date getLastTransition() {
+		return new Date(lastTransition);
+	}
+
+	/**
+	 * Closes the breaker and forgets all calls, for tests.
+	 */
+	static synchronized void reset() {
+		transitionTo(State.CLOSED);
+		rejectedCalls = 0;
+		timesOpened = 0;
+	}
+
+	/**
+	 * Ends the cool-down period of an open breaker now, for tests.
+	 */
+	static synchronized void endOpenPeriod() {
+		openedAt = System.currentTimeMillis() - OPEN_MILLIS;
+	}
+
+	public static synchronized long getSecondsUntilHalfOpen() {
+		return state == State.OPEN ? TimeUnit.MILLISECONDS
+				.toSeconds(openMillisRemaining()) : 0;
+	}
+
+}
@@ -0,0 +1,318 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Optionally keeps snapshots of the environments builds use fresh in the
+ * background, so that a build targeting a long-lived shared environment
+ * finds its VMs and networks already read (see EnvironmentSnapshot#get).
+ *
+ * Every environment a build reads joins a bounded working set; environments
+ * no build has used for a while are dropped, as are the least recently
+ * used ones once the set is full. Each environment is read again on its own
+ * schedule: at the configured interval while it is busy or changing, and
+ * up to sixteen times less often while it stays the same.
+ *
+ * The credentials of the build which last used an environment are kept in
+ * memory to read it; they are never written anywhere.
+ */
+public final class SkytapEnvironmentRefresher {
+
+	public static final int DEFAULT_INTERVAL_SECONDS = 60;
+
+	// upper bound on the interval, as a multiple of the configured one
+	private static final int MAX_BACKOFF_FACTOR = 16;
+
+	private static final int MAX_ENVIRONMENTS = 25;
+
+	// environments no build has used for this long are dropped
+	private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+	// how often the work runs to look for environments which are due
+	private static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	private static final Pattern CONFIGURATION_URL = Pattern
+			.compile("/configurations/(\\d+)");
+
+	private static boolean enabled = false;
+	private static long intervalMillis = TimeUnit.SECONDS
+			.toMillis(DEFAULT_INTERVAL_SECONDS);
+
+	// access ordered, so iteration starts at the least recently used
+	private static final LinkedHashMap<String, Environment> environments = new LinkedHashMap<String, Environment>(
+			16, 0.75f, true);
+
+	private SkytapEnvironmentRefresher() {
+	}
+
+	public static synchronized void configure(boolean enable,
+			int intervalSeconds) {
+
+		enabled = enable;
+		intervalMillis = TimeUnit.SECONDS.toMillis(Math.max(
+				TimeUnit.MILLISECONDS.toSeconds(TICK_MILLIS), intervalSeconds));
+
+		if (!enabled) {
+			environments.clear();
+		}
+	}
+
+	/**
+	 * Returns the background snapshot of an environment, if it is being kept
+	 * fresh and nothing has changed it since it was read.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @return snapshot, or null
+	 */
+	public static synchronized EnvironmentSnapshot getSnapshot(String confId,
+			String authCredentials) {
+
+		if (!enabled) {
+			return null;
+		}
+
+		Environment environment = environments.get(toKey(confId,
+				authCredentials));
+
+		if (environment == null) {
+			return null;
+		}
+
+		environment.lastUsed = System.currentTimeMillis();
+		return environment.snapshot;
+	}
+
+	/**
+	 * Adds an environment a build has just read to the working set, or
+	 * updates it.
+	 *
+	 * @param snapshot
+	 * @param authCredentials
+	 */
+	public static synchronized void track(EnvironmentSnapshot snapshot,
+			String authCredentials) {
+
+		if (!enabled) {
+			return;
+		}
+
+		String key = toKey(snapshot.getId(), authCredentials);
+		Environment environment = environments.get(key);
+
+		if (environment == null) {
+			environment = new Environment(snapshot.getId(), authCredentials);
+			environments.put(key, environment);
+		}
+
+		environment.lastUsed = System.currentTimeMillis();
+		update(environment, snapshot);
+
+		Iterator<Environment> it = environments.values().iterator();
+		while (environments.size() > MAX_ENVIRONMENTS && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Drops the background snapshots which a request may change, and reads
+	 * those environments again on the next run.
+	 *
+	 * @param requestUrl
+	 *            url of a request other than a GET
+	 */
+	public static synchronized void invalidate(String requestUrl) {
+
+		if (environments.isEmpty()) {
+			return;
+		}
+
+		// requests outside an environment, e.g. to tunnels, may still
+		// change any of them
+		Matcher m = CONFIGURATION_URL.matcher(requestUrl);
+		String confId = m.find() ? m.group(1) : null;
+
+		for (Environment environment : environments.values()) {
+			if (confId == null || confId.equals(environment.confId)) {
+				environment.invalidations++;
+				environment.snapshot = null;
+				environment.interval = intervalMillis;
+				environment.nextRefresh = 0;
+			}
+		}
+	}
+
+	public static synchronized int size() {
+		return environments.size();
+	}
+
+	/**
+	 * Reads the environments which are due.
+	 */
+	static void refreshDueEnvironments() {
+
+		List<Environment> due = new ArrayList<Environment>();
+
+		// invalidations of each environment when its read started
+		List<Long> invalidations = new ArrayList<Long>();
+
+		synchronized (SkytapEnvironmentRefresher.class) {
+
+			if (!enabled) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+
+			// values() iteration does not change the access order
+			Iterator<Environment> it = environments.values().iterator();
+			while (it.hasNext()) {
+				Environment environment = it.next();
+
+				if (environment.lastUsed + IDLE_MILLIS <= now) {
+					it.remove();
+				} else if (environment.nextRefresh <= now) {
+					due.add(environment);
+					invalidations.add(environment.invalidations);
+				}
+			}
+		}
+
+		for (int i = 0; i < due.size(); i++) {
+
+			Environment environment = due.get(i);
+
+			// leave the API alone while it is down
+			if (SkytapCircuitBreaker.isOpen()) {
+				return;
+			}
+
+			EnvironmentSnapshot snapshot;
+			try {
+				snapshot = EnvironmentSnapshot.fetch(environment.confId,
+						environment.authCredentials);
+				SkytapCatalog.addEnvironment(snapshot,
+						environment.authCredentials);
+			} catch (SkytapException e) {
+				snapshot = null;
+			}
+
+			synchronized (SkytapEnvironmentRefresher.class) {
+
+				// a request may have changed the environment while this
+				// was in flight; it is read again on the next run
+				if (environment.invalidations == invalidations.get(i)) {
+					update(environment, snapshot);
+				}
+			}
+		}
+	}
+
+	private static void update(Environment environment,
+			EnvironmentSnapshot snapshot) {
+
+		EnvironmentSnapshot previous = environment.snapshot;
+
+		if (snapshot != null && previous != null
+				&& previous.getVersion() > snapshot.getVersion()) {
+			// a build read the environment while this was in flight
+			return;
+		}
+
+		if (snapshot == null || snapshot.isBusy()
+				|| !snapshot.isUnchangedFrom(previous)) {
+			// busy, changing, or failing to read - look again soon
+			environment.interval = intervalMillis;
+		} else {
+			environment.interval = Math.min(environment.interval * 2,
+					intervalMillis * MAX_BACKOFF_FACTOR);
+		}
+
+		environment.snapshot = snapshot;
+		environment.nextRefresh = System.currentTimeMillis()
+				+ environment.interval;
+	}
+
+	private static String toKey(String confId, String authCredentials) {
+		return confId + "\n" + DigestUtils.sha256Hex(authCredentials);
+	}
+
+	private static final class Environment {
+
+		private final String confId;
+		private final String authCredentials;
+
+		// guarded by SkytapEnvironmentRefresher.class
+		private EnvironmentSnapshot snapshot;
+		private long interval;
+		private long nextRefresh;
+		private long lastUsed;
+
+		// number of requests which may have changed the environment
+		private long invalidations;
+
+		Environment(String confId, String authCredentials) {
+			this.confId = confId;
+			this.authCredentials = authCredentials;
+			this.interval = intervalMillis;
+		}
+	}
+
+	/**
+	 * Runs the background refresh.
+	 */
+	@Extension
+	public static class RefreshWork extends PeriodicWork {
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TICK_MILLIS;
+		}
+
+		@Override
+		protected void doRun() {
+
+			// this work belongs to no build
+			JenkinsLogger.setMuted(true);
+			try {
+				refreshDueEnvironments();
+			} finally {
+				JenkinsLogger.setMuted(false);
+			}
+		}
+	}
+
+}
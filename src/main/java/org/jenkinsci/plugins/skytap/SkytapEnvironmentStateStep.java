@@ -0,0 +1,553 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import jenkins.util.Timer;
+
+import java.util.Collections;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameListBoxModel;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+
+import com.google.gson.JsonElement;
+import com.google.inject.Inject;
+
+/**
+ * Pipeline step which changes the runstate of a Skytap environment, like
+ * ChangeConfigurationStateStep does for freestyle builds.
+ *
+ * The step does not hold an executor while the environment changes state.
+ * Its execution waits on the shared SkytapPoller and is called back by the
+ * Jenkins timer to look at the outcome. Requests are sent through
+ * SkytapApiClient and their responses picked up on a later callback, so the
+ * timer threads never wait on Skytap. The progress of the step is kept in
+ * its execution, which Pipeline saves with the build, so a step in flight
+ * carries on after Jenkins restarts.
+ *
+ * The Skytap user id and API security token come from a username with
+ * password credential, which is looked up when the step runs, so that
+ * neither appears in the Pipeline script or the saved build.
+ */
+public class SkytapEnvironmentStateStep extends AbstractStepImpl {
+
+	private final String environmentID;
+	private final String targetRunState;
+	private final String credentialsId;
+
+	@DataBoundConstructor
+	public SkytapEnvironmentStateStep(String environmentID,
+			String targetRunState, String credentialsId) {
+		this.environmentID = environmentID;
+		this.targetRunState = targetRunState;
+		this.credentialsId = credentialsId;
+	}
+
+	public String getEnvironmentID() {
+		return environmentID;
+	}
+
+	public String getTargetRunState() {
+		return targetRunState;
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	@Extension(optional = true)
+	public static final class DescriptorImpl extends
+			AbstractStepDescriptorImpl {
+
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "skytapEnvironmentState";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Change Skytap Environment State";
+		}
+
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item) {
+			return fillCredentialsIdItems(item);
+		}
+	}
+
+	/**
+	 * Lists the username with password credentials a Pipeline step of this
+	 * plugin may use.
+	 *
+	 * @param item
+	 * @return credentials
+	 */
+	static ListBoxModel fillCredentialsIdItems(Item item) {
+
+		if (item == null || !item.hasPermission(Item.CONFIGURE)) {
+			return new ListBoxModel();
+		}
+
+		return new StandardUsernameListBoxModel().withEmptySelection()
+				.withAll(CredentialsProvider.lookupCredentials(
+						StandardUsernamePasswordCredentials.class, item,
+						ACL.SYSTEM,
+						Collections.<DomainRequirement> emptyList()));
+	}
+
+	/**
+	 * Looks up the Skytap user id and API security token of a Pipeline step.
+	 *
+	 * @param run
+	 * @param credentialsId
+	 *            id of a username with password credential
+	 * @return encoded credentials for the Authorization header
+	 * @throws SkytapException
+	 *             if there is no such credential
+	 */
+	static String lookupAuthCredentials(Run<?, ?> run, String credentialsId)
+			throws SkytapException {
+
+		StandardUsernamePasswordCredentials credentials = CredentialsMatchers
+				.firstOrNull(CredentialsProvider.lookupCredentials(
+						StandardUsernamePasswordCredentials.class,
+						run.getParent(), ACL.SYSTEM,
+						Collections.<DomainRequirement> emptyList()),
+						CredentialsMatchers.withId(credentialsId));
+
+		if (credentials == null) {
+			throw new SkytapException("No Skytap credentials found with id "
+					+ credentialsId + ".");
+		}
+
+		return SkytapUtils.encodeAuthCredentials(credentials.getUsername()
+				+ ":" + credentials.getPassword().getPlainText());
+	}
+
+	public static final class Execution extends AbstractStepExecutionImpl {
+
+		private static final long serialVersionUID = 1L;
+
+		// same schedule as ChangeConfigurationStateStep: every attempt
+		// waits twice as long as the one before
+		private static final int NUMBER_OF_RETRIES = 7;
+		private static final int BASE_RETRY_INTERVAL_SECONDS = 20;
+
+		// time Skytap is given to act on a state change request before the
+		// runstate counts
+		private static final int MIN_SETTLE_SECONDS = 10;
+
+		// longest wait for the environment to be ready once it is in the
+		// target runstate
+		private static final int READY_TIMEOUT_SECONDS = SkytapReadinessProbe.DEFAULT_TIMEOUT_SECONDS;
+
+		// how soon to look again while a request is in flight
+		private static final long REQUEST_TICK_MILLIS = TimeUnit.SECONDS
+				.toMillis(1);
+
+		// requests are not retried on the timer thread; the step tries
+		// again on its next callback instead
+		private static final RetryPolicy NO_RETRY = new RetryPolicy() {
+			public boolean isRetryable(String method, int statusCode) {
+				return false;
+			}
+
+			public long getRetryDelay(int attempt, long elapsedMillis,
+					long serverDelayMillis) {
+				return -1;
+			}
+		};
+
+		@Inject(optional = true)
+		private transient SkytapEnvironmentStateStep step;
+
+		@StepContextParameter
+		private transient TaskListener listener;
+
+		@StepContextParameter
+		private transient Run<?, ?> run;
+
+		// progress, saved with the build
+		private String confId;
+		private String targetRunState;
+		private String credentialsId;
+		private long startedAt;
+		private String statsKey;
+		private String initialRunState;
+		private long requestedAt;
+		private boolean requestSent;
+		private int attempt;
+		private long attemptDeadline;
+		private long transitionedAt;
+
+		private boolean completed;
+
+		// looked up from the credential, never saved
+		private transient String authCredentials;
+
+		private transient SkytapPoller.Watch watch;
+		private transient SkytapReadinessProbe probe;
+		private transient ScheduledFuture<?> task;
+
+		// requests in flight on the SkytapApiClient pool
+		private transient Future<JsonElement> pendingRead;
+		private transient Future<JsonElement> pendingRequest;
+
+		@Override
+		public boolean start() throws Exception {
+
+			confId = step.getEnvironmentID();
+			targetRunState = step.getTargetRunState();
+			credentialsId = step.getCredentialsId();
+
+			if (confId == null || confId.trim().equals("")) {
+				throw new AbortException(
+						"No value was provided for environment ID.");
+			}
+
+			// fail at once if the credential is missing
+			try {
+				getAuthCredentials();
+			} catch (SkytapException e) {
+				throw new AbortException(e.getMessage());
+			}
+
+			log("Changing runstate of environment " + confId + " to "
+					+ targetRunState + ".");
+
+			startedAt = System.currentTimeMillis();
+
+			schedule(0);
+
+			// the step completes from a timer callback
+			return false;
+		}
+
+		@Override
+		public synchronized void stop(Throwable cause) throws Exception {
+			complete();
+			getContext().onFailure(cause);
+		}
+
+		@Override
+		public void onResume() {
+			super.onResume();
+			log("Resuming wait for environment " + confId + ".");
+			schedule(0);
+		}
+
+		private synchronized void schedule(long delayMillis) {
+			task = Timer.get().schedule(new Runnable() {
+				public void run() {
+					check();
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Runs on the Jenkins timer. Nothing in here waits for Skytap: the
+		 * requests it sends go through SkytapApiClient, which carries the
+		 * retry policy and muted logging over to its own threads.
+		 */
+		private synchronized void check() {
+
+			if (completed) {
+				return;
+			}
+
+			// SkytapUtils logs to the build of a freestyle step
+			JenkinsLogger.setMuted(true);
+			SkytapUtils.setRetryPolicy(NO_RETRY);
+
+			try {
+				if (advance(System.currentTimeMillis())) {
+					schedule(pendingRead != null || pendingRequest != null ? REQUEST_TICK_MILLIS
+							: SkytapPoller.TICK_MILLIS);
+				}
+			} catch (SkytapException e) {
+				complete();
+				getContext().onFailure(new AbortException(e.getMessage()));
+			} catch (RuntimeException e) {
+				complete();
+				getContext().onFailure(e);
+			} finally {
+				SkytapUtils.setRetryPolicy(null);
+				JenkinsLogger.setMuted(false);
+			}
+		}
+
+		/**
+		 * Moves the state change along without blocking.
+		 *
+		 * @param now
+		 * @return true while the step is still waiting
+		 * @throws SkytapException
+		 */
+		private boolean advance(long now) throws SkytapException {
+
+			String authCredentials = getAuthCredentials();
+
+			collectStateChangeResponse();
+
+			if (transitionedAt > 0) {
+
+				// wait for the environment and its VMs to be stable
+				if (watch == null) {
+					probe = SkytapReadinessProbe.inRunstate(targetRunState);
+					watch = SkytapReadinessProbe.watchEnvironment(confId,
+							authCredentials, probe);
+				}
+
+				if (!watch.await(0)) {
+
+					if (now < transitionedAt
+							+ TimeUnit.SECONDS.toMillis(READY_TIMEOUT_SECONDS)) {
+						return true;
+					}
+
+					log("Environment " + confId + " is not ready: "
+							+ probe.getReason());
+				}
+
+				complete();
+				log("Runstate transitioned successfully.");
+				getContext().onSuccess(null);
+				return false;
+			}
+
+			if (!requestSent) {
+
+				if (pendingRead == null) {
+					pendingRead = new SkytapApiClient(authCredentials)
+							.get(getConfigurationURL());
+					return true;
+				}
+
+				if (!pendingRead.isDone()) {
+					return true;
+				}
+
+				EnvironmentSnapshot snapshot;
+
+				try {
+					JsonElement configuration = SkytapApiClient
+							.await(pendingRead);
+
+					if (!configuration.isJsonObject()) {
+						throw new SkytapException("No response received for "
+								+ getConfigurationURL());
+					}
+
+					snapshot = EnvironmentSnapshot.fromConfiguration(confId,
+							configuration);
+				} catch (SkytapException e) {
+					if (e instanceof SkytapCircuitOpenException
+							|| now > startedAt + getWaitMillis(1)) {
+						throw e;
+					}
+					log("Error obtaining current runstate: " + e.getMessage());
+					return true;
+				} finally {
+					pendingRead = null;
+				}
+
+				String currentRunState = snapshot.getRunstate();
+				log("Current runstate: " + currentRunState);
+
+				if (!ChangeConfigurationStateStep.isConfigStateTransitionValid(
+						currentRunState, targetRunState)) {
+					throw new SkytapException(
+							"Skytap will not permit a transition between "
+									+ currentRunState + " and "
+									+ targetRunState);
+				}
+
+				statsKey = SkytapTransitionStats.getKey(snapshot);
+				initialRunState = currentRunState;
+				requestedAt = now;
+
+				sendStateChangeRequest(authCredentials);
+				requestSent = true;
+				attempt = 1;
+				attemptDeadline = now + getWaitMillis(attempt);
+			}
+
+			if (watch == null) {
+				// how long this transition took before decides when to
+				// look for it
+				watch = EnvironmentSnapshot.watchUntilRunstate(confId,
+						authCredentials, targetRunState,
+						TimeUnit.SECONDS.toMillis(MIN_SETTLE_SECONDS),
+						SkytapTransitionStats.getSchedule(statsKey,
+								initialRunState, targetRunState));
+			}
+
+			// the watch is done already, or this returns false at once
+			if (watch.await(0)) {
+				log("Current runstate=" + targetRunState);
+				SkytapTransitionStats.record(statsKey, initialRunState,
+						targetRunState, now - requestedAt);
+				watch = null;
+				transitionedAt = now;
+				return true;
+			}
+
+			if (now < attemptDeadline) {
+				return true;
+			}
+
+			JsonElement configuration = watch.getLastResponse();
+			String currentRunState = configuration == null ? ""
+					: EnvironmentSnapshot.fromConfiguration(confId,
+							configuration).getRunstate();
+
+			log("Current runstate=" + currentRunState);
+
+			if (++attempt > NUMBER_OF_RETRIES) {
+				throw new SkytapException("Environment " + confId
+						+ " did not reach runstate " + targetRunState + ".");
+			}
+
+			// send another request but only if state is not 'busy'
+			if (!"busy".equals(currentRunState)) {
+				sendStateChangeRequest(authCredentials);
+			}
+
+			attemptDeadline = now + getWaitMillis(attempt);
+			log("Waiting up to "
+					+ TimeUnit.MILLISECONDS.toSeconds(getWaitMillis(attempt))
+					+ " seconds for runstate " + targetRunState + ".");
+
+			return true;
+		}
+
+		private void sendStateChangeRequest(String authCredentials) {
+
+			if (pendingRequest != null) {
+				log("The previous state change request is still in flight.");
+				return;
+			}
+
+			log("Sending state change request for environment id " + confId
+					+ ". Target runstate is " + targetRunState);
+
+			pendingRequest = new SkytapApiClient(authCredentials)
+					.put(getConfigurationURL() + "?runstate=" + targetRunState);
+		}
+
+		/**
+		 * Looks at the response to the state change request once it has
+		 * arrived.
+		 */
+		private void collectStateChangeResponse() {
+
+			if (pendingRequest == null || !pendingRequest.isDone()) {
+				return;
+			}
+
+			// a busy environment is retried once the attempt is over
+			try {
+				SkytapApiClient.await(pendingRequest);
+			} catch (SkytapException e) {
+				log("Skytap Error: " + e.getMessage());
+			} finally {
+				pendingRequest = null;
+			}
+		}
+
+		private String getConfigurationURL() {
+
+			StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
+			sb.append("configurations/");
+			sb.append(confId);
+
+			return sb.toString();
+		}
+
+		private String getAuthCredentials() throws SkytapException {
+
+			if (authCredentials == null) {
+				authCredentials = lookupAuthCredentials(run, credentialsId);
+			}
+
+			return authCredentials;
+		}
+
+		private static long getWaitMillis(int attempt) {
+			return TimeUnit.SECONDS.toMillis((long) Math.pow(2, attempt)
+					* BASE_RETRY_INTERVAL_SECONDS);
+		}
+
+		private void complete() {
+
+			completed = true;
+
+			if (task != null) {
+				task.cancel(false);
+			}
+
+			if (pendingRead != null) {
+				pendingRead.cancel(true);
+				pendingRead = null;
+			}
+
+			if (pendingRequest != null) {
+				pendingRequest.cancel(true);
+				pendingRequest = null;
+			}
+
+			if (watch != null) {
+				watch.cancel(false);
+				watch = null;
+			}
+		}
+
+		private void log(String message) {
+			if (listener != null) {
+				listener.getLogger().println(message);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Holds the single pooled HttpClient shared by every Skytap API call made by
+ * the plugin. Connections to cloud.skytap.com are kept alive and reused, so
+ * the TCP and TLS handshake is paid once per pooled connection rather than
+ * once per request.
+ */
+public final class SkytapHttpClient {
+
+	// default number of pooled connections, used until the global
+	// configuration has been saved
+	public static final int DEFAULT_POOL_SIZE = 20;
+
+	// connect and socket timeouts for all requests
+	private static final int TIMEOUT_MILLIS = 60000;
+
+	// how long an idle connection is kept if the server does not say
+	private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+
+	// connections idle for longer than this are closed by the evictor
+	private static final long IDLE_CONNECTION_SECONDS = 30;
+
+	private static PoolingClientConnectionManager connectionManager;
+	private static DefaultHttpClient httpClient;
+	private static int poolSize = DEFAULT_POOL_SIZE;
+
+	private SkytapHttpClient() {
+	}
+
+	/**
+	 * Returns the shared client, creating it on first use. The client is
+	 * thread safe and must not be shut down by callers.
+	 *
+	 * @return HttpClient
+	 */
+	public static synchronized HttpClient getClient() {
+
+		if (httpClient == null) {
+
+			connectionManager = new PoolingClientConnectionManager(
+					SchemeRegistryFactory.createDefault());
+			applyPoolSize();
+
+			httpClient = new DefaultHttpClient(connectionManager);
+
+			// Set timeouts for httpclient requests to 60 seconds
+			HttpConnectionParams.setConnectionTimeout(httpClient.getParams(),
+					TIMEOUT_MILLIS);
+			HttpConnectionParams.setSoTimeout(httpClient.getParams(),
+					TIMEOUT_MILLIS);
+			HttpConnectionParams.setStaleCheckingEnabled(
+					httpClient.getParams(), true);
+
+			httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+
+			// proxy settings are resolved once, not on every request
+			httpClient.setRoutePlanner(new SkytapProxySettings.RoutePlanner(
+					connectionManager.getSchemeRegistry()));
+			httpClient
+					.setCredentialsProvider(new SkytapProxySettings.ProxyCredentialsProvider());
+
+			// requests ask for gzip (see SkytapUtils), so decompress
+			// compressed responses as they are read
+			httpClient.addResponseInterceptor(new ResponseContentEncoding());
+		}
+
+		return httpClient;
+	}
+
+	/**
+	 * Resizes the connection pool. Called when the global configuration is
+	 * loaded or saved; takes effect immediately if the pool already exists.
+	 *
+	 * @param size
+	 */
+	public static synchronized void setPoolSize(int size) {
+
+		if (size < 1) {
+			size = DEFAULT_POOL_SIZE;
+		}
+
+		poolSize = size;
+
+		if (connectionManager != null) {
+			applyPoolSize();
+		}
+	}
+
+	public static synchronized int getPoolSize() {
+		return poolSize;
+	}
+
+	private static void applyPoolSize() {
+
+		// all traffic goes to the same Skytap host, so a single route may
+		// use the whole pool
+		connectionManager.setMaxTotal(poolSize);
+		connectionManager.setDefaultMaxPerRoute(poolSize);
+	}
+
+	/**
+	 * Closes expired connections and those which have been idle too long.
+	 */
+	static synchronized void evictIdleConnections() {
+
+		if (connectionManager == null) {
+			return;
+		}
+
+		connectionManager.closeExpiredConnections();
+		connectionManager.closeIdleConnections(IDLE_CONNECTION_SECONDS,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Honours the keep-alive timeout sent by the server, falling back to a
+	 * bounded default so that pooled connections are never kept forever.
+	 */
+	private static class KeepAliveStrategy implements
+			ConnectionKeepAliveStrategy {
+
+		private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+		public long getKeepAliveDuration(HttpResponse response,
+				HttpContext context) {
+
+			long duration = serverStrategy.getKeepAliveDuration(response,
+					context);
+
+			if (duration <= 0) {
+				return DEFAULT_KEEP_ALIVE_MILLIS;
+			}
+
+			return duration;
+		}
+	}
+
+	/**
+	 * Periodically evicts idle pooled connections.
+	 */
+	@Extension
+	public static class IdleConnectionEvictor extends PeriodicWork {
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TimeUnit.SECONDS.toMillis(IDLE_CONNECTION_SECONDS);
+		}
+
+		@Override
+		protected void doRun() {
+			evictIdleConnections();
+		}
+	}
+
+}
@@ -0,0 +1,386 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Controller-wide cache of ids for objects which are looked up by name and
+ * rarely change, such as projects and container registries. Unlike
+ * SkytapResolutionCache it is shared by all builds; entries expire after a
+ * configurable time and the least recently used entries are evicted once
+ * the cache is full.
+ *
+ * Entries are keyed by a hash of the credentials they were looked up with,
+ * never the credentials themselves. Once {@link #load(File)} has been
+ * called they are also kept on disk (see SkytapIdStore), so the cache is
+ * warm after a restart.
+ *
+ * An expired entry is not dropped straight away if the caller can look the
+ * name up again: it is still returned for a configurable time, and looked
+ * up again in the background so that the next caller gets a fresh id.
+ */
+public final class SkytapIdCache {
+
+	public static final int DEFAULT_TTL_MINUTES = 60;
+	public static final int DEFAULT_STALE_MINUTES = 60;
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	// the store is compacted once it holds this many more records than
+	// live entries
+	private static final int COMPACTION_SLACK = 100;
+
+	/**
+	 * Looks up the id for a name without using the cache.
+	 */
+	public interface Revalidator {
+
+		/**
+		 * @param type
+		 * @param name
+		 * @param authCredentials
+		 * @return id, or null if Skytap no longer knows the name
+		 * @throws SkytapException
+		 */
+		String resolve(String type, String name, String authCredentials)
+				throws SkytapException;
+	}
+
+	// a time to live of zero disables the cache
+	private static long ttlMillis = TimeUnit.MINUTES
+			.toMillis(DEFAULT_TTL_MINUTES);
+	private static int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	// how long past its time to live an entry may still be used while it is
+	// revalidated; a stale id which Skytap no longer knows is evicted when
+	// Skytap answers 404
+	private static long staleMillis = TimeUnit.MINUTES
+			.toMillis(DEFAULT_STALE_MINUTES);
+
+	// access ordered, so iteration starts at the least recently used entry
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private static SkytapIdStore store;
+
+	private static ExecutorService revalidationExecutor;
+
+	private SkytapIdCache() {
+	}
+
+	/**
+	 * @param ttlMinutes
+	 *            time to live of an entry, or 0 to disable the cache
+	 * @param staleMinutes
+	 *            how long an expired entry is still used while it is looked
+	 *            up again, or 0 to look it up before using it
+	 * @param maxSize
+	 */
+	public static synchronized void configure(int ttlMinutes,
+			int staleMinutes, int maxSize) {
+		ttlMillis = TimeUnit.MINUTES.toMillis(Math.max(0, ttlMinutes));
+		staleMillis = TimeUnit.MINUTES.toMillis(Math.max(0, staleMinutes));
+		maxEntries = Math.max(1, maxSize);
+
+		if (ttlMillis == 0) {
+			entries.clear();
+		}
+		dropUnusable();
+		evict();
+		compactIfNeeded();
+	}
+
+	/**
+	 * Restores the entries stored in the given directory and keeps storing
+	 * changes there. Called once, when the plugin starts.
+	 *
+	 * @param directory
+	 */
+	public static synchronized void load(File directory) {
+
+		store = new SkytapIdStore(directory);
+
+		for (SkytapIdStore.Record record : store.load()) {
+			if (record.getId() == null) {
+				entries.remove(record.getKey());
+			} else if (ttlMillis > 0) {
+				entries.put(record.getKey(), new Entry(record.getId(),
+						record.getStoredAt()));
+			}
+		}
+
+		dropUnusable();
+		evict();
+		compactIfNeeded();
+	}
+
+	/**
+	 * @param type
+	 *            kind of object, one of the SkytapResolutionCache types
+	 * @param name
+	 * @param authCredentials
+	 * @return cached id, or null if there is none or it has expired
+	 */
+	public static String get(String type, String name, String authCredentials) {
+		return get(type, name, authCredentials, null);
+	}
+
+	/**
+	 * Like {@link #get(String, String, String)}, but an expired id is still
+	 * returned for a while and refreshed in the background by the given
+	 * revalidator.
+	 *
+	 * @param type
+	 * @param name
+	 * @param authCredentials
+	 * @param revalidator
+	 * @return cached id, or null
+	 */
+	public static synchronized String get(String type, String name,
+			String authCredentials, Revalidator revalidator) {
+
+		String key = toKey(type, name, authCredentials);
+		Entry entry = entries.get(key);
+
+		if (entry == null) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+
+		if (entry.storedAt + ttlMillis <= now) {
+
+			if (revalidator == null || isUnusable(entry, now)) {
+				remove(key);
+				return null;
+			}
+
+			if (!entry.revalidating) {
+				entry.revalidating = true;
+				revalidate(entry, type, name, authCredentials, revalidator);
+			}
+
+			JenkinsLogger.log("Using cached " + type + " id " + entry.id
+					+ " for name: " + name + " while it is looked up again");
+			return entry.id;
+		}
+
+		JenkinsLogger.log("Using cached " + type + " id " + entry.id
+				+ " for name: " + name);
+		return entry.id;
+	}
+
+	public static synchronized void put(String type, String name,
+			String authCredentials, String id) {
+
+		if (ttlMillis == 0 || id == null || id.equals("")) {
+			return;
+		}
+
+		String key = toKey(type, name, authCredentials);
+		long now = System.currentTimeMillis();
+
+		entries.put(key, new Entry(id, now));
+
+		if (store != null) {
+			store.put(key, id, now);
+		}
+
+		evict();
+		compactIfNeeded();
+	}
+
+	/**
+	 * Removes a cached id, e.g. because Skytap no longer knows it.
+	 *
+	 * @param type
+	 * @param name
+	 * @param authCredentials
+	 * @return true if an id was cached
+	 */
+	public static synchronized boolean evict(String type, String name,
+			String authCredentials) {
+		return remove(toKey(type, name, authCredentials));
+	}
+
+	/**
+	 * Removes all cached ids.
+	 *
+	 * @return number of ids removed
+	 */
+	public static synchronized int clear() {
+		int size = entries.size();
+		entries.clear();
+		if (store != null) {
+			store.rewrite(new ArrayList<SkytapIdStore.Record>());
+		}
+		return size;
+	}
+
+	public static synchronized int size() {
+		return entries.size();
+	}
+
+	private static boolean remove(String key) {
+
+		if (entries.remove(key) == null) {
+			return false;
+		}
+
+		if (store != null) {
+			store.remove(key);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Drops the entries which are too old to use, even while they are looked up again.
+	 */
+	private static void dropUnusable() {
+
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (isUnusable(it.next(), now)) {
+				it.remove();
+			}
+		}
+	}
+
+	private static boolean isUnusable(Entry entry, long now) {
+		return entry.storedAt + ttlMillis + staleMillis <= now;
+	}
+
+	private static void evict() {
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+		while (entries.size() > maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Rewrites the store with just the live entries once removed and
+	 * replaced records make up most of it, or once there are none left.
+	 */
+	private static void compactIfNeeded() {
+
+		if (store == null || store.getRecordCount() == entries.size()) {
+			return;
+		}
+
+		// an empty cache, e.g. one which was disabled, leaves no file behind
+		if (!entries.isEmpty()
+				&& store.getRecordCount() <= 2 * entries.size()
+						+ COMPACTION_SLACK) {
+			return;
+		}
+
+		// least recently used first, so the order survives a restart
+		List<SkytapIdStore.Record> records = new ArrayList<SkytapIdStore.Record>();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			records.add(new SkytapIdStore.Record(entry.getKey(),
+					entry.getValue().id, entry.getValue().storedAt));
+		}
+
+		store.rewrite(records);
+	}
+
+	private static void revalidate(final Entry entry,
+			final String type, final String name,
+			final String authCredentials, final Revalidator revalidator) {
+
+		getRevalidationExecutor().execute(new Runnable() {
+			public void run() {
+				// this work belongs to no build
+				JenkinsLogger.setMuted(true);
+				try {
+					String id = revalidator.resolve(type, name,
+							authCredentials);
+					if (id == null) {
+						evict(type, name, authCredentials);
+					} else {
+						put(type, name, authCredentials, id);
+					}
+				} catch (SkytapException e) {
+					// keep the stale id, and try again on next use
+				} finally {
+					JenkinsLogger.setMuted(false);
+					synchronized (SkytapIdCache.class) {
+						entry.revalidating = false;
+					}
+				}
+			}
+		});
+	}
+
+	private static ExecutorService getRevalidationExecutor() {
+
+		if (revalidationExecutor == null) {
+			revalidationExecutor = Executors
+					.newSingleThreadExecutor(new NamingThreadFactory(
+							new DaemonThreadFactory(),
+							"Skytap id cache revalidation"));
+		}
+
+		return revalidationExecutor;
+	}
+
+	private static String toKey(String type, String name,
+			String authCredentials) {
+		return type + "\n" + DigestUtils.sha256Hex(authCredentials) + "\n"
+				+ name;
+	}
+
+	private static final class Entry {
+
+		private final String id;
+
+		// when the id was looked up
+		private final long storedAt;
+
+		// guarded by SkytapIdCache.class
+		private boolean revalidating;
+
+		Entry(String id, long storedAt) {
+			this.id = id;
+			this.storedAt = storedAt;
+		}
+	}
+
+}
@@ -0,0 +1,348 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the entries of SkytapIdCache in a file under JENKINS_HOME, so that
+ * they survive a restart of the controller.
+ *
+ * The file is a log with one line per change: an id stored with the time it
+ * was looked up, an id removed, or the cache cleared. Changes are appended
+ * as they happen by a single background thread, in the order they were
+ * made, so builds never wait for the disk. The log is small and is read in
+ * full on startup, without a memory mapping, which would keep the file open
+ * until garbage collection and on Windows stop it from being replaced. It
+ * is rewritten with only the live entries once it has grown well beyond
+ * them. The rewritten log replaces the old one only once
+ * it has been written in full, and the old one is kept until it has been
+ * replaced.
+ */
+final class SkytapIdStore {
+
+	private static final Logger LOGGER = Logger.getLogger(SkytapIdStore.class
+			.getName());
+
+	private static final String FILE_NAME = "ids.log";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final char PUT = 'P';
+	private static final char REMOVE = 'R';
+
+	private final File file;
+
+	// the previous log, while it is being replaced
+	private final File backup;
+
+	private final ExecutorService writer = Executors
+			.newSingleThreadExecutor(new NamingThreadFactory(
+					new DaemonThreadFactory(), "Skytap id cache writer"));
+
+	// lines in the file, live or not
+	private int recordCount;
+
+	SkytapIdStore(File directory) {
+		this.file = new File(directory, FILE_NAME);
+		this.backup = new File(directory, FILE_NAME + ".bak");
+	}
+
+	/**
+	 * Reads the stored entries, oldest change first; a later record for a
+	 * key replaces an earlier one, and a removal has a null id.
+	 *
+	 * @return records
+	 */
+	synchronized List<Record> load() {
+
+		List<Record> records = new ArrayList<Record>();
+
+		if (!file.isFile() && backup.isFile() && !backup.renameTo(file)) {
+			// a rewrite was interrupted before the new log was in place
+			LOGGER.log(Level.WARNING, "Failed to restore {0}", backup);
+		}
+
+		if (!file.isFile()) {
+			return records;
+		}
+
+		try {
+			String content = read(file);
+
+			int start = 0;
+			for (int i = 0; i < content.length(); i++) {
+				if (content.charAt(i) == '\n') {
+					Record record = parse(content.substring(start, i));
+					if (record != null) {
+						records.add(record);
+					}
+					start = i + 1;
+				}
+			}
+			// a trailing line without a newline was not completely written
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to read Skytap id cache from "
+					+ file, e);
+			records.clear();
+		}
+
+		recordCount = records.size();
+		return records;
+	}
+
+	synchronized int getRecordCount() {
+		return recordCount;
+	}
+
+	synchronized void put(String key, String id, long storedAt) {
+		append(PUT + "\t" + storedAt + "\t" + escape(key) + "\t" + escape(id)
+				+ "\n");
+	}
+
+	synchronized void remove(String key) {
+		append(REMOVE + "\t" + escape(key) + "\n");
+	}
+
+	/**
+	 * Replaces the file with the given entries.
+	 *
+	 * @param records
+	 */
+	synchronized void rewrite(List<Record> records) {
+
+		final StringBuilder sb = new StringBuilder();
+
+		for (Record record : records) {
+			sb.append(PUT).append('\t').append(record.getStoredAt())
+					.append('\t').append(escape(record.getKey()))
+					.append('\t').append(escape(record.getId())).append('\n');
+		}
+
+		recordCount = records.size();
+
+		writer.execute(new Runnable() {
+			public void run() {
+				File tmp = new File(file.getPath() + ".tmp");
+				if (write(tmp, sb.toString(), false)) {
+					replace(tmp);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for the changes made so far to be written, for tests.
+	 */
+	void awaitWrites() throws InterruptedException, ExecutionException {
+		writer.submit(new Runnable() {
+			public void run() {
+			}
+		}).get();
+	}
+
+	private void append(final String line) {
+
+		recordCount++;
+
+		writer.execute(new Runnable() {
+			public void run() {
+				write(file, line, true);
+			}
+		});
+	}
+
+	/**
+	 * Puts a new log in place of the old one. Renaming over the old file
+	 * replaces it atomically where the platform allows it; elsewhere the old
+	 * file is moved aside first, and restored if the new one cannot be put
+	 * in place.
+	 *
+	 * @param tmp
+	 *            new log
+	 */
+	private void replace(File tmp) {
+
+		if (tmp.renameTo(file)) {
+			return;
+		}
+
+		backup.delete();
+
+		if (file.exists() && !file.renameTo(backup)) {
+			LOGGER.log(Level.WARNING,
+					"Failed to replace Skytap id cache file {0}", file);
+			tmp.delete();
+			return;
+		}
+
+		if (tmp.renameTo(file)) {
+			backup.delete();
+			return;
+		}
+
+		LOGGER.log(Level.WARNING, "Failed to replace Skytap id cache file {0}",
+				file);
+		tmp.delete();
+
+		if (!backup.renameTo(file)) {
+			LOGGER.log(Level.WARNING, "Failed to restore {0}", backup);
+		}
+	}
+
+	private static String read(File source) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream in = new FileInputStream(source);
+
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+
+		return new String(bytes.toByteArray(), UTF8);
+	}
+
+	private static boolean write(File target, String content, boolean append) {
+
+		File directory = target.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			LOGGER.log(Level.WARNING, "Failed to create {0}", directory);
+			return false;
+		}
+
+		try {
+			OutputStream out = new FileOutputStream(target, append);
+			try {
+				out.write(content.getBytes(UTF8));
+			} finally {
+				out.close();
+			}
+			return true;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to write Skytap id cache to "
+					+ target, e);
+			return false;
+		}
+	}
+
+	private static Record parse(String line) {
+
+		String[] fields = line.split("\t", -1);
+
+		try {
+			if (fields.length == 4 && fields[0].equals(String.valueOf(PUT))) {
+				return new Record(unescape(fields[2]), unescape(fields[3]),
+						Long.parseLong(fields[1]));
+			}
+			if (fields.length == 2
+					&& fields[0].equals(String.valueOf(REMOVE))) {
+				return new Record(unescape(fields[1]), null, 0);
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+
+		LOGGER.log(Level.FINE, "Skipping malformed Skytap id cache record");
+		return null;
+	}
+
+	// names may contain any character, so tabs and newlines are escaped
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\t", "\\t")
+				.replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String s) {
+
+		StringBuilder sb = new StringBuilder(s.length());
+
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+
+			if (c == '\\' && i + 1 < s.length()) {
+				char next = s.charAt(++i);
+				if (next == 't') {
+					sb.append('\t');
+				} else if (next == 'n') {
+					sb.append('\n');
+				} else if (next == 'r') {
+					sb.append('\r');
+				} else {
+					sb.append(next);
+				}
+			} else {
+				sb.append(c);
+			}
+		}
+
+		return sb.toString();
+	}
+
+	static final class Record {
+
+		private final String key;
+		private final String id;
+		private final long storedAt;
+
+		Record(String key, String id, long storedAt) {
+			this.key = key;
+			this.id = id;
+			this.storedAt = storedAt;
+		}
+
+		String getKey() {
+			return key;
+		}
+
+		String getId() {
+			return id;
+		}
+
+		long getStoredAt() {
+			return storedAt;
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.ManagementLink;
+
+import java.util.Date;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * "Skytap Cloud API" page under Manage Jenkins, showing how the plugin's
+ * shared API client is behaving on this controller. The circuit breaker
+ * state is also exported through the remote API at /skytap/api/json, for
+ * monitoring. Both are for administrators only.
+ */
+@Extension
+@ExportedBean
+public class SkytapManagementLink extends ManagementLink {
+
+	@Override
+	public String getIconFileName() {
+		return "monitor.png";
+	}
+
+	public String getDisplayName() {
+		return "Skytap Cloud API";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Status of requests made to the Skytap Cloud API by this Jenkins.";
+	}
+
+	public String getUrlName() {
+		return "skytap";
+	}
+
+	public List<SkytapRateLimiter.Bucket> getRateLimitBuckets() {
+		return SkytapRateLimiter.getBuckets();
+	}
+
+	public double getRequestsPerSecond() {
+		return SkytapRateLimiter.getRequestsPerSecond();
+	}
+
+	public int getBurst() {
+		return SkytapRateLimiter.getBurst();
+	}
+
+	/**
+	 * The remote API, which like the page itself is for administrators.
+	 *
+	 * @return api
+	 */
+	public Api getApi() {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return new Api(this);
+	}
+
+	@Exported
+	public String getCircuitBreakerState() {
+		return SkytapCircuitBreaker.getState().name();
+	}
+
+	@Exported
+	public int getFailureRate() {
+		return SkytapCircuitBreaker.getFailureRate();
+	}
+
+	@Exported
+	public int getSlowCallRate() {
+		return SkytapCircuitBreaker.getSlowCallRate();
+	}
+
+	@Exported
+	public int getBufferedCalls() {
+		return SkytapCircuitBreaker.getBufferedCalls();
+	}
+
+	@Exported
+	public long getRejectedCalls() {
+		return SkytapCircuitBreaker.getRejectedCalls();
+	}
+
+	@Exported
+	public long getTimesOpened() {
+		return SkytapCircuitBreaker.getTimesOpened();
+	}
+
+	@Exported
+	public long getSecondsUntilHalfOpen() {
+		return SkytapCircuitBreaker.getSecondsUntilHalfOpen();
+	}
+
+	@Exported
+	public long getSharedResponses() {
+		return SkytapRequestCoalescer.getSharedResponses();
+	}
+
+	@Exported
+	public int getResponseCacheEntries() {
+		return SkytapResponseCache.getEntryCount();
+	}
+
+	@Exported
+	public long getResponseCacheSizeBytes() {
+		return SkytapResponseCache.getSizeBytes();
+	}
+
+	@Exported
+	public long getResponseCacheHits() {
+		return SkytapResponseCache.getHits();
+	}
+
+	@Exported
+	public long getResponseCacheMisses() {
+		return SkytapResponseCache.getMisses();
+	}
+
+	public Date getLastTransition() {
+		return SkytapCircuitBreaker.getLastTransition();
+	}
+
+}
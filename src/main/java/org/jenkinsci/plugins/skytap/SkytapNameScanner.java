@@ -0,0 +1,201 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Finds the id of a named item in a JSON array response, such as a page of
+ * container registries, by scanning the response body as it is read. Only
+ * the "name" and "id" fields of each item are looked at, and reading stops
+ * at the first match instead of building a tree of the whole page.
+ *
+ * Given an index, the scanner instead reads the whole response and records
+ * the id of every name in it, so that a single download of a list which
+ * cannot be filtered by Skytap can answer later lookups as well.
+ */
+public class SkytapNameScanner implements
+		SkytapPager.PageReader<SkytapNameScanner.Result> {
+
+	private final String name;
+	private final Map<String, String> index;
+
+	public SkytapNameScanner(String name) {
+		this(name, null);
+	}
+
+	/**
+	 * @param name
+	 *            name to find, or null to just fill the index
+	 * @param index
+	 *            receives the id of every item read, keyed by name; the
+	 *            first item with a given name wins
+	 */
+	public SkytapNameScanner(String name, Map<String, String> index) {
+		this.name = name;
+		this.index = index;
+	}
+
+	public Result handleResponse(HttpResponse response) throws IOException,
+			SkytapException {
+
+		HttpEntity entity = response.getEntity();
+
+		if (entity == null) {
+			throw new SkytapException("Empty response: "
+					+ response.getStatusLine());
+		}
+
+		InputStream in = entity.getContent();
+
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+
+			if (statusCode == 400 || statusCode == 404 || statusCode == 422) {
+				// the request itself was refused, e.g. an unknown filter
+				throw new SkytapRejectedRequestException(
+						response.getStatusLine().toString());
+			}
+
+			JsonReader reader = new JsonReader(new InputStreamReader(in,
+					"UTF-8"));
+
+			if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+				// an error object, or an unexpected response
+				String body = new JsonParser().parse(reader).toString();
+				SkytapUtils.checkResponseForErrors(body);
+				throw new SkytapException("Unexpected response: " + body);
+			}
+
+			return scan(reader);
+
+		} finally {
+			// read whatever is left so the connection can be reused
+			drain(in);
+		}
+	}
+
+	public int getItemCount(Result page) {
+		// a match ends the lookup
+		return page.getId() != null ? -1 : page.getItemCount();
+	}
+
+	private Result scan(JsonReader reader) throws IOException {
+
+		int itemCount = 0;
+		String matchedId = null;
+
+		reader.beginArray();
+
+		while (reader.hasNext()) {
+
+			itemCount++;
+
+			String itemName = null;
+			String itemId = null;
+
+			reader.beginObject();
+
+			while (reader.hasNext()) {
+
+				String field = reader.nextName();
+
+				if (reader.peek() == JsonToken.NULL) {
+					reader.skipValue();
+				} else if (field.equals("name")) {
+					itemName = reader.nextString();
+				} else if (field.equals("id")) {
+					itemId = reader.nextString();
+				} else {
+					reader.skipValue();
+				}
+
+				if (index == null && itemId != null && itemName != null
+						&& itemName.equals(name)) {
+					// no need to read the rest of the page
+					return new Result(itemId, itemCount);
+				}
+			}
+
+			reader.endObject();
+
+			if (index != null && itemName != null && itemId != null
+					&& !index.containsKey(itemName)) {
+				index.put(itemName, itemId);
+
+				if (matchedId == null && itemName.equals(name)) {
+					matchedId = itemId;
+				}
+			}
+		}
+
+		reader.endArray();
+
+		return new Result(matchedId, itemCount);
+	}
+
+	private static void drain(InputStream in) throws IOException {
+
+		byte[] buffer = new byte[4096];
+
+		try {
+			while (in.read(buffer) != -1) {
+				// discard
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Id of the matching item, if there was one, and the number of items read.
+	 */
+	public static class Result {
+
+		private final String id;
+		private final int itemCount;
+
+		Result(String id, int itemCount) {
+			this.id = id;
+			this.itemCount = itemCount;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public int getItemCount() {
+			return itemCount;
+		}
+	}
+
+}
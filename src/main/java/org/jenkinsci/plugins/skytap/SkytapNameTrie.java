@@ -0,0 +1,117 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Prefix tree of names, used to complete what a user types on a job
+ * configuration page. Matching ignores case; completions are returned in
+ * alphabetical order with their original case. A trie is filled once and
+ * then only read, so it may be shared between threads once built.
+ */
+public class SkytapNameTrie {
+
+	private final Node root = new Node();
+	private int size;
+
+	public void add(String name) {
+
+		if (name == null || name.equals("")) {
+			return;
+		}
+
+		Node node = root;
+		String key = name.toLowerCase(Locale.ENGLISH);
+
+		for (int i = 0; i < key.length(); i++) {
+			Character c = Character.valueOf(key.charAt(i));
+			Node child = node.children.get(c);
+			if (child == null) {
+				child = new Node();
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+
+		if (!node.names.contains(name)) {
+			node.names.add(name);
+			size++;
+		}
+	}
+
+	/**
+	 * @param prefix
+	 * @param limit
+	 *            maximum number of names returned
+	 * @return names starting with the prefix
+	 */
+	public List<String> complete(String prefix, int limit) {
+
+		List<String> names = new ArrayList<String>();
+		Node node = root;
+		String key = prefix == null ? "" : prefix.toLowerCase(Locale.ENGLISH);
+
+		for (int i = 0; i < key.length() && node != null; i++) {
+			node = node.children.get(Character.valueOf(key.charAt(i)));
+		}
+
+		if (node != null) {
+			collect(node, names, limit);
+		}
+
+		return names;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static void collect(Node node, List<String> names, int limit) {
+
+		for (String name : node.names) {
+			if (names.size() >= limit) {
+				return;
+			}
+			names.add(name);
+		}
+
+		for (Node child : node.children.values()) {
+			if (names.size() >= limit) {
+				return;
+			}
+			collect(child, names, limit);
+		}
+	}
+
+	private static final class Node {
+
+		// sorted, so completions come out in alphabetical order
+		private final Map<Character, Node> children = new TreeMap<Character, Node>();
+		private final List<String> names = new ArrayList<String>(1);
+	}
+
+}
@@ -0,0 +1,132 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Remembers names which were recently looked up and not found, so that a
+ * job configured with a name that does not exist fails straight away on
+ * retries and later builds, instead of paging through every object again.
+ *
+ * Entries are kept only for a short time, since the object may be created
+ * outside of Jenkins, and are dropped when a step of this plugin creates
+ * objects of the same type in the same scope. The cache is separate from
+ * the caches of ids which were found.
+ */
+public final class SkytapNegativeCache {
+
+	// how long a name is known to be missing
+	private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private static final int MAX_ENTRIES = 1000;
+
+	// insertion ordered, so iteration starts at the oldest entry
+	private static final LinkedHashMap<String, Long> expiryTimes = new LinkedHashMap<String, Long>();
+
+	private SkytapNegativeCache() {
+	}
+
+	/**
+	 * @param type
+	 *            kind of object, one of the SkytapResolutionCache types
+	 * @param scope
+	 *            id of the object the name is looked up in, e.g. the
+	 *            environment of a vm; empty for account wide objects
+	 * @param name
+	 * @param authCredentials
+	 * @return true if the name was not found a short while ago
+	 */
+	public static synchronized boolean isMissing(String type, String scope,
+			String name, String authCredentials) {
+
+		String key = toKey(type, scope, name, authCredentials);
+		Long expiresAt = expiryTimes.get(key);
+
+		if (expiresAt == null) {
+			return false;
+		}
+
+		if (expiresAt <= System.currentTimeMillis()) {
+			expiryTimes.remove(key);
+			return false;
+		}
+
+		JenkinsLogger.log("No " + type + " named " + name
+				+ " was found in the last "
+				+ TimeUnit.MILLISECONDS.toMinutes(TTL_MILLIS)
+				+ " minutes; not looking it up again yet.");
+		return true;
+	}
+
+	public static synchronized void putMissing(String type, String scope,
+			String name, String authCredentials) {
+
+		String key = toKey(type, scope, name, authCredentials);
+
+		// re-insert, so that the entry moves to the end of the order
+		expiryTimes.remove(key);
+		expiryTimes.put(key, System.currentTimeMillis() + TTL_MILLIS);
+
+		Iterator<Long> it = expiryTimes.values().iterator();
+		while (expiryTimes.size() > MAX_ENTRIES && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Forgets the missing names of the given type in a scope and the scopes
+	 * within it, e.g. after a step created containers in an environment.
+	 *
+	 * @param type
+	 * @param scope
+	 */
+	public static synchronized void invalidate(String type, String scope) {
+
+		String prefix = type + "\n" + scope;
+		Iterator<String> it = expiryTimes.keySet().iterator();
+
+		while (it.hasNext()) {
+			String key = it.next();
+			if (key.startsWith(prefix + "\n") || key.startsWith(prefix + "/")) {
+				it.remove();
+			}
+		}
+	}
+
+	public static synchronized int size() {
+		return expiryTimes.size();
+	}
+
+	private static String toKey(String type, String scope, String name,
+			String authCredentials) {
+		return type + "\n" + scope + "\n"
+				+ DigestUtils.sha256Hex(authCredentials) + "\n" + name;
+	}
+
+}
@@ -0,0 +1,217 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a paginated Skytap API list one page at a time, using the count and
+ * offset query parameters. The listing ends with the first page which holds
+ * fewer items than were requested.
+ *
+ * Most lookups are answered by the first page, so it is fetched on its own.
+ * Once a full page comes back, the list is evidently long: the page size is
+ * increased and the following pages are fetched concurrently, ahead of the
+ * caller, so that long lists take a few parallel round trips. If Skytap
+ * returns fewer items than a larger page size asked for, it may be capping
+ * the page size rather than ending the list, so the pager falls back to the
+ * size it returned and carries on from there.
+ *
+ * Call {@link #close()} when done, to cancel pages which were fetched ahead
+ * but are no longer needed.
+ *
+ * @param <T>
+ *            result read from each page
+ */
+public class SkytapPager<T> {
+
+	/**
+	 * Reads a page of results and reports how many items it held.
+	 */
+	public interface PageReader<T> extends SkytapResponseHandler<T> {
+
+		/**
+		 * @param page
+		 * @return number of items read from the page, fewer than the page
+		 *         size ends the listing; or -1 if the reader stopped early
+		 *         because it found what it was looking for
+		 */
+		int getItemCount(T page);
+	}
+
+	private static final int INITIAL_PAGE_SIZE = 100;
+	private static final int MAX_PAGE_SIZE = 500;
+
+	// number of pages fetched ahead once the list is known to be long
+	private static final int PREFETCH_PAGES = 3;
+
+	private final String url;
+	private final PageReader<T> reader;
+	private final SkytapApiClient client;
+
+	private final LinkedList<PendingPage<T>> pending = new LinkedList<PendingPage<T>>();
+
+	private int pageSize = INITIAL_PAGE_SIZE;
+	private int maxPageSize = MAX_PAGE_SIZE;
+
+	// largest page size Skytap is known to honour
+	private int confirmedPageSize = INITIAL_PAGE_SIZE;
+
+	private int nextOffset = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param url
+	 *            url of the list, which may already have query parameters
+	 * @param authCredentials
+	 * @param reader
+	 */
+	public SkytapPager(String url, String authCredentials, PageReader<T> reader) {
+		this.url = url;
+		this.reader = reader;
+		this.client = new SkytapApiClient(authCredentials);
+	}
+
+	public boolean hasNextPage() {
+		return !finished;
+	}
+
+	/**
+	 * Returns the next page, waiting for it if it has not arrived yet.
+	 *
+	 * @return page, or null if there are no more pages
+	 * @throws SkytapException
+	 */
+	public T nextPage() throws SkytapException {
+
+		if (finished) {
+			return null;
+		}
+
+		if (pending.isEmpty()) {
+			fetch(1);
+		}
+
+		PendingPage<T> page = pending.removeFirst();
+		T result;
+
+		try {
+			result = SkytapApiClient.await(page.future);
+		} catch (SkytapException e) {
+			close();
+			throw e;
+		}
+
+		if (result == null) {
+			close();
+			throw new SkytapException("No response received for " + page.url);
+		}
+
+		int itemCount = reader.getItemCount(result);
+
+		if (itemCount < 0) {
+			// the caller has what it needs
+			close();
+
+		} else if (itemCount >= page.size) {
+			// full page - expect more, in larger pages
+			confirmedPageSize = Math.max(confirmedPageSize, page.size);
+			pageSize = Math.min(maxPageSize, pageSize * 2);
+			fetch(PREFETCH_PAGES - pending.size());
+
+		} else if (page.size > confirmedPageSize
+				&& itemCount >= confirmedPageSize) {
+			// possibly capped by Skytap - pages fetched ahead assumed the
+			// larger size, so fetch again from the end of this page
+			cancelPending();
+			confirmedPageSize = itemCount;
+			maxPageSize = itemCount;
+			pageSize = itemCount;
+			nextOffset = page.offset + itemCount;
+
+		} else {
+			// short or empty page - this is the end of the list
+			close();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Stops reading, cancelling any pages which were fetched ahead.
+	 */
+	public void close() {
+
+		finished = true;
+		cancelPending();
+	}
+
+	private void cancelPending() {
+
+		for (PendingPage<T> page : pending) {
+			page.future.cancel(true);
+		}
+
+		pending.clear();
+	}
+
+	private void fetch(int pages) {
+
+		for (int i = 0; i < pages; i++) {
+
+			String pageUrl = url + (url.indexOf('?') < 0 ? "?" : "&")
+					+ "count=" + pageSize + "&offset=" + nextOffset;
+
+			pending.add(new PendingPage<T>(pageUrl, nextOffset, pageSize,
+					fetchPage(pageUrl)));
+
+			nextOffset += pageSize;
+		}
+	}
+
+	/**
+	 * Requests a page; overridden by tests.
+	 *
+	 * @param pageUrl
+	 * @return page being read
+	 */
+	Future<T> fetchPage(String pageUrl) {
+		return client.get(pageUrl, reader);
+	}
+
+	private static final class PendingPage<T> {
+
+		private final String url;
+		private final int offset;
+		private final int size;
+		private final Future<T> future;
+
+		PendingPage(String url, int offset, int size, Future<T> future) {
+			this.url = url;
+			this.offset = offset;
+			this.size = size;
+			this.future = future;
+		}
+	}
+
+}
@@ -0,0 +1,541 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Polls Skytap resources on behalf of the build steps waiting on them. A
+ * step registers a watch on a resource URL together with the condition it
+ * is waiting for, and waits on the watch instead of sleeping and reading the
+ * resource itself.
+ *
+ * A single thread reads each watched resource once per tick, however many
+ * builds are waiting on it, and completes every watch whose condition the
+ * response satisfies. The number of requests therefore grows with the
+ * number of distinct resources, not with the number of waiting builds.
+ * Resources are keyed by URL and credentials, so a watch only ever sees
+ * what its own credentials may read.
+ *
+ * By default a watch wants its resource read at every tick. A watch with a
+ * schedule, e.g. one based on how long a transition usually takes, wants it
+ * read only when the schedule says, and a resource is skipped at ticks for
+ * which none of its watches wants a read.
+ */
+public final class SkytapPoller {
+
+	private static final Logger LOGGER = Logger.getLogger(SkytapPoller.class
+			.getName());
+
+	// how often each watched resource is read
+	public static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	private static final Map<String, Resource> resources = new HashMap<String, Resource>();
+
+	private static ScheduledExecutorService scheduler;
+
+	private SkytapPoller() {
+	}
+
+	/**
+	 * Condition a watched resource is waiting for.
+	 */
+	public interface Condition {
+
+		/**
+		 * @param resource
+		 *            parsed response of the latest read
+		 * @return true once the resource is in the awaited state
+		 */
+		boolean isSatisfied(JsonElement resource);
+	}
+
+	/**
+	 * When a watch wants its resource read.
+	 */
+	public interface Schedule {
+
+		/**
+		 * @param elapsedMillis
+		 *            time since the watch was registered, when the resource
+		 *            was last read for it
+		 * @return time until the next read
+		 */
+		long getNextPollDelay(long elapsedMillis);
+	}
+
+	/**
+	 * Watches a resource until the condition holds for it.
+	 *
+	 * @param requestUrl
+	 * @param authCredentials
+	 * @param condition
+	 * @return watch, to be waited on and cancelled once no longer needed
+	 */
+	public static Watch watch(String requestUrl, String authCredentials,
+			Condition condition) {
+		return watch(requestUrl, authCredentials, condition, 0);
+	}
+
+	/**
+	 * Watches a resource until the condition holds for it, but completes no
+	 * sooner than the given delay, e.g. to give Skytap time to act on a
+	 * request before its outcome is looked at.
+	 *
+	 * @param requestUrl
+	 * @param authCredentials
+	 * @param condition
+	 * @param delayMillis
+	 * @return watch, to be waited on and cancelled once no longer needed
+	 */
+	public static Watch watch(String requestUrl, String authCredentials,
+			Condition condition, long delayMillis) {
+		return watch(requestUrl, authCredentials, condition, delayMillis, null);
+	}
+
+	/**
+	 * Watches a resource until the condition holds for it, reading it when
+	 * the given schedule says rather than at every tick.
+	 *
+	 * @param requestUrl
+	 * @param authCredentials
+	 * @param condition
+	 * @param delayMillis
+	 * @param schedule
+	 *            schedule of reads, or null to read at every tick
+	 * @return watch, to be waited on and cancelled once no longer needed
+	 */
+	public static Watch watch(String requestUrl, String authCredentials,
+			Condition condition, long delayMillis, Schedule schedule) {
+
+		Watch watch = new Watch(condition, System.currentTimeMillis(),
+				Math.max(0, delayMillis), schedule);
+		Resource resource;
+		boolean added = false;
+
+		synchronized (SkytapPoller.class) {
+
+			String key = toKey(requestUrl, authCredentials);
+			resource = resources.get(key);
+
+			if (resource == null) {
+				resource = new Resource(key, requestUrl, authCredentials);
+				resources.put(key, resource);
+				added = true;
+			}
+
+			resource.watches.add(watch);
+			watch.resource = resource;
+		}
+
+		if (added && delayMillis <= 0) {
+			// take the first look right away rather than at the next tick
+			final Resource firstLook = resource;
+			getScheduler().execute(new Runnable() {
+				public void run() {
+					List<Resource> due = new ArrayList<Resource>();
+					due.add(firstLook);
+					runMuted(due);
+				}
+			});
+		} else {
+			getScheduler();
+		}
+
+		return watch;
+	}
+
+	public static synchronized int size() {
+		return resources.size();
+	}
+
+	/**
+	 * Reads every watched resource which may complete a watch before the
+	 * next tick.
+	 */
+	static void pollDueResources() {
+
+		List<Resource> due = new ArrayList<Resource>();
+
+		synchronized (SkytapPoller.class) {
+
+			long now = System.currentTimeMillis();
+
+			Iterator<Resource> it = resources.values().iterator();
+			while (it.hasNext()) {
+				Resource resource = it.next();
+
+				if (resource.watches.isEmpty()) {
+					it.remove();
+				} else if (resource.lastPolled + TICK_MILLIS / 2 <= now
+						&& resource.getNextPoll() < now + TICK_MILLIS / 2) {
+					due.add(resource);
+				}
+			}
+		}
+
+		poll(due);
+	}
+
+	private static void poll(List<Resource> due) {
+
+		if (due.isEmpty()) {
+			return;
+		}
+
+		// read the resources concurrently, then hand out the responses
+		List<Future<JsonElement>> responses = new ArrayList<Future<JsonElement>>();
+		long now = System.currentTimeMillis();
+
+		for (Resource resource : due) {
+			resource.lastPolled = now;
+			responses.add(new SkytapApiClient(resource.authCredentials)
+					.get(resource.requestUrl));
+		}
+
+		for (int i = 0; i < due.size(); i++) {
+
+			JsonElement response = null;
+			SkytapException error = null;
+
+			try {
+				response = SkytapApiClient.await(responses.get(i));
+
+				// an I/O error, or a timeout once the retries ran out
+				if (response == null || response.isJsonNull()) {
+					response = null;
+					error = new SkytapException("No response received for "
+							+ due.get(i).requestUrl);
+				}
+			} catch (SkytapException e) {
+				error = e;
+			}
+
+			due.get(i).update(response, error);
+		}
+	}
+
+	private static void runMuted(List<Resource> due) {
+
+		JenkinsLogger.setMuted(true);
+		try {
+			poll(due);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Failed to poll Skytap resources", e);
+		} finally {
+			JenkinsLogger.setMuted(false);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getScheduler() {
+
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(1,
+					new NamingThreadFactory(new DaemonThreadFactory(),
+							"Skytap poller"));
+
+			// a single thread, so that ticks never overlap
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					JenkinsLogger.setMuted(true);
+					try {
+						pollDueResources();
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING,
+								"Failed to poll Skytap resources", e);
+					} finally {
+						JenkinsLogger.setMuted(false);
+					}
+				}
+			}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		return scheduler;
+	}
+
+	private static String toKey(String requestUrl, String authCredentials) {
+		return requestUrl + "\n" + DigestUtils.sha256Hex(authCredentials);
+	}
+
+	/**
+	 * A watched resource and the watches waiting on it.
+	 */
+	private static final class Resource {
+
+		private final String key;
+		private final String requestUrl;
+		private final String authCredentials;
+
+		// guarded by SkytapPoller.class
+		private final List<Watch> watches = new ArrayList<Watch>();
+
+		// only touched by the poller thread
+		private long lastPolled;
+
+		Resource(String key, String requestUrl, String authCredentials) {
+			this.key = key;
+			this.requestUrl = requestUrl;
+			this.authCredentials = authCredentials;
+		}
+
+		long getNextPoll() {
+
+			long next = Long.MAX_VALUE;
+
+			for (Watch watch : watches) {
+				next = Math.min(next, watch.nextPoll);
+			}
+
+			return next;
+		}
+
+		void update(JsonElement response, SkytapException error) {
+
+			List<Watch> current;
+
+			synchronized (SkytapPoller.class) {
+				current = new ArrayList<Watch>(watches);
+			}
+
+			long now = System.currentTimeMillis();
+
+			for (Watch watch : current) {
+				watch.observe(response, error, now);
+			}
+
+			synchronized (SkytapPoller.class) {
+
+				Iterator<Watch> it = watches.iterator();
+				while (it.hasNext()) {
+					if (it.next().isDone()) {
+						it.remove();
+					}
+				}
+
+				if (watches.isEmpty() && resources.get(key) == this) {
+					resources.remove(key);
+				}
+			}
+		}
+
+		void remove(Watch watch) {
+			synchronized (SkytapPoller.class) {
+				watches.remove(watch);
+			}
+		}
+	}
+
+	/**
+	 * Completes with the response which satisfied the condition, or fails if
+	 * the resource can no longer be read, e.g. while the Skytap API is down.
+	 * Errors reading the resource which may pass leave the watch waiting.
+	 */
+	public static final class Watch implements Future<JsonElement> {
+
+		private final Condition condition;
+		private final long registeredAt;
+		private final long earliestCompletion;
+		private final Schedule schedule;
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		// when the watch next wants its resource read
+		private volatile long nextPoll;
+
+		private Resource resource;
+
+		private volatile JsonElement lastResponse;
+		private volatile SkytapException lastError;
+
+		private volatile JsonElement result;
+		private volatile SkytapException failure;
+		private volatile boolean cancelled;
+
+		Watch(Condition condition, long registeredAt, long delayMillis,
+				Schedule schedule) {
+			this.condition = condition;
+			this.registeredAt = registeredAt;
+			this.earliestCompletion = registeredAt + delayMillis;
+			this.schedule = schedule;
+			this.nextPoll = schedule == null ? earliestCompletion
+					: registeredAt
+							+ Math.max(delayMillis, schedule.getNextPollDelay(0));
+		}
+
+		/**
+		 * Waits for the condition to hold for at most the given time.
+		 *
+		 * @param timeoutMillis
+		 * @return true if it holds, false if the time ran out first
+		 * @throws SkytapException
+		 *             if the watch failed or the thread was interrupted
+		 */
+		public boolean await(long timeoutMillis) throws SkytapException {
+
+			try {
+				if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+					return false;
+				}
+			} catch (InterruptedException e) {
+				cancel(false);
+				Thread.currentThread().interrupt();
+				throw new SkytapException(
+						"Interrupted while waiting for Skytap resource.");
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+
+			return !cancelled;
+		}
+
+		/**
+		 * @return the latest response read for this watch, or null if there
+		 *         has been none yet
+		 */
+		public JsonElement getLastResponse() {
+			return lastResponse;
+		}
+
+		/**
+		 * @return the error of the latest read, if it failed
+		 */
+		public SkytapException getLastError() {
+			return lastError;
+		}
+
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+
+			if (isDone()) {
+				return false;
+			}
+
+			cancelled = true;
+			done.countDown();
+			resource.remove(this);
+
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public JsonElement get() throws InterruptedException,
+				ExecutionException {
+			done.await();
+			return report();
+		}
+
+		public JsonElement get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+
+			return report();
+		}
+
+		private JsonElement report() throws ExecutionException {
+
+			if (cancelled) {
+				throw new CancellationException();
+			}
+
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+
+			return result;
+		}
+
+		synchronized void observe(JsonElement response, SkytapException error,
+				long now) {
+
+			if (isDone()) {
+				return;
+			}
+
+			nextPoll = now
+					+ (schedule == null ? TICK_MILLIS : Math.max(0, schedule
+							.getNextPollDelay(now - registeredAt)));
+
+			if (error != null) {
+				lastError = error;
+
+				// no point waiting for a resource the API will not serve
+				if (error instanceof SkytapCircuitOpenException) {
+					failure = error;
+					done.countDown();
+				}
+				return;
+			}
+
+			lastError = null;
+			lastResponse = response;
+
+			if (now < earliestCompletion) {
+				return;
+			}
+
+			try {
+				if (condition.isSatisfied(response)) {
+					result = response;
+					done.countDown();
+				}
+			} catch (RuntimeException e) {
+				// the response is not what the condition expected
+				failure = new SkytapException("Unexpected response: "
+						+ response);
+				done.countDown();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,287 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.Extension;
+import hudson.ProxyConfiguration;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.DefaultHttpRoutePlanner;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Proxy used for Skytap API requests. The settings are taken from the Jenkins
+ * proxy configuration (Manage Jenkins > Manage Plugins > Advanced) or, if
+ * none is configured there, from the http(s).proxyHost and proxyPort system
+ * properties. They are resolved once and resolved again whenever the Jenkins
+ * proxy configuration is saved.
+ *
+ * Hosts matching the no-proxy list are reached directly.
+ */
+public final class SkytapProxySettings {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(SkytapProxySettings.class.getName());
+
+	private static volatile SkytapProxySettings current;
+
+	// null if requests are sent directly
+	private final HttpHost proxy;
+	private final List<Pattern> noProxyHosts;
+	private final String userName;
+	private final String password;
+
+	private SkytapProxySettings(HttpHost proxy, List<Pattern> noProxyHosts,
+			String userName, String password) {
+		this.proxy = proxy;
+		this.noProxyHosts = noProxyHosts;
+		this.userName = userName;
+		this.password = password;
+	}
+
+	public static SkytapProxySettings get() {
+
+		SkytapProxySettings settings = current;
+
+		if (settings == null) {
+			settings = refresh();
+		}
+
+		return settings;
+	}
+
+	/**
+	 * Resolves the proxy settings again.
+	 *
+	 * @return settings
+	 */
+	public static synchronized SkytapProxySettings refresh() {
+
+		SkytapProxySettings settings = fromJenkins();
+
+		if (settings == null) {
+			settings = fromSystemProperties();
+		}
+
+		if (settings.proxy != null) {
+			LOGGER.log(Level.INFO, "Skytap API requests will use proxy {0}",
+					settings.proxy);
+		}
+
+		current = settings;
+		return settings;
+	}
+
+	private static SkytapProxySettings fromJenkins() {
+
+		Jenkins jenkins = Jenkins.getInstance();
+
+		if (jenkins == null || jenkins.proxy == null
+				|| jenkins.proxy.name == null
+				|| jenkins.proxy.name.trim().equals("")) {
+			return null;
+		}
+
+		ProxyConfiguration config = jenkins.proxy;
+
+		return new SkytapProxySettings(new HttpHost(config.name.trim(),
+				config.port, "http"), config.getNoProxyHostPatterns(),
+				config.getUserName(), config.getPassword());
+	}
+
+	private static SkytapProxySettings fromSystemProperties() {
+
+		String proxyHost = System.getProperty("http.proxyHost");
+		String proxyPortStr = System.getProperty("http.proxyPort");
+		String proxyProtocol = "http";
+
+		if (proxyHost == null) {
+			// Check for https settings
+			proxyHost = System.getProperty("https.proxyHost");
+			proxyPortStr = System.getProperty("https.proxyPort");
+			proxyProtocol = "https";
+		}
+
+		if (proxyHost == null) {
+			return new SkytapProxySettings(null,
+					Collections.<Pattern> emptyList(), null, null);
+		}
+
+		int proxyPort = -1;
+
+		try {
+			proxyPort = Integer.parseInt(proxyPortStr);
+		} catch (NumberFormatException e) {
+			LOGGER.log(Level.WARNING, "Invalid proxy port {0}, using default",
+					proxyPortStr);
+		}
+
+		return new SkytapProxySettings(new HttpHost(proxyHost, proxyPort,
+				proxyProtocol), parseNonProxyHosts(System
+				.getProperty("http.nonProxyHosts")), System.getProperty(proxyProtocol
+				+ ".proxyUser"), System.getProperty(proxyProtocol
+				+ ".proxyPassword"));
+	}
+
+	/**
+	 * Converts a nonProxyHosts system property such as
+	 * "localhost|*.example.com" into patterns.
+	 */
+	private static List<Pattern> parseNonProxyHosts(String nonProxyHosts) {
+
+		List<Pattern> patterns = new ArrayList<Pattern>();
+
+		if (nonProxyHosts == null) {
+			return patterns;
+		}
+
+		for (String host : nonProxyHosts.split("\\|")) {
+			host = host.trim();
+			if (!host.equals("")) {
+				patterns.add(Pattern.compile(host.replace(".", "\\.")
+						.replace("*", ".*"), Pattern.CASE_INSENSITIVE));
+			}
+		}
+
+		return patterns;
+	}
+
+	/**
+	 * Returns the proxy to use for the given host.
+	 *
+	 * @param hostName
+	 * @return proxy, or null to connect directly
+	 */
+	public HttpHost getProxyFor(String hostName) {
+
+		if (proxy == null) {
+			return null;
+		}
+
+		for (Pattern pattern : noProxyHosts) {
+			if (pattern.matcher(hostName).matches()) {
+				return null;
+			}
+		}
+
+		return proxy;
+	}
+
+	private Credentials getCredentials(AuthScope scope) {
+
+		if (proxy == null || userName == null || userName.equals("")) {
+			return null;
+		}
+
+		AuthScope proxyScope = new AuthScope(proxy.getHostName(),
+				proxy.getPort());
+
+		if (scope.match(proxyScope) < 0) {
+			return null;
+		}
+
+		return new UsernamePasswordCredentials(userName, password);
+	}
+
+	/**
+	 * Sends requests through the current proxy unless the target host is
+	 * excluded from it.
+	 */
+	static final class RoutePlanner extends DefaultHttpRoutePlanner {
+
+		RoutePlanner(SchemeRegistry schemeRegistry) {
+			super(schemeRegistry);
+		}
+
+		@Override
+		public HttpRoute determineRoute(HttpHost target, HttpRequest request,
+				HttpContext context) throws HttpException {
+
+			HttpHost proxy = get().getProxyFor(target.getHostName());
+
+			if (proxy == null) {
+				return super.determineRoute(target, request, context);
+			}
+
+			boolean secure = schemeRegistry.getScheme(target.getSchemeName())
+					.isLayered();
+
+			return new HttpRoute(target, ConnRouteParams.getLocalAddress(request
+					.getParams()), proxy, secure);
+		}
+	}
+
+	/**
+	 * Answers proxy authentication challenges with the credentials of the
+	 * current proxy.
+	 */
+	static final class ProxyCredentialsProvider implements CredentialsProvider {
+
+		public Credentials getCredentials(AuthScope scope) {
+			return get().getCredentials(scope);
+		}
+
+		public void setCredentials(AuthScope scope, Credentials credentials) {
+			// credentials always come from the proxy settings
+		}
+
+		public void clear() {
+		}
+	}
+
+	/**
+	 * Picks up changes to the Jenkins proxy configuration.
+	 */
+	@Extension
+	public static final class ProxyConfigurationListener extends
+			SaveableListener {
+
+		@Override
+		public void onChange(Saveable o, XmlFile file) {
+			if (o instanceof ProxyConfiguration) {
+				refresh();
+			}
+		}
+	}
+
+}
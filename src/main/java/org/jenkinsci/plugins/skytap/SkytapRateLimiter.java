@@ -0,0 +1,214 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side token bucket limiting the rate of Skytap API requests per API
+ * user. All builds on this controller which use the same Skytap account share
+ * one bucket, so that a burst of concurrent builds is spread out instead of
+ * being throttled by Skytap.
+ *
+ * Callers which exceed the rate are not rejected; each one reserves the next
+ * free slot in the order it arrived and waits for it.
+ */
+public final class SkytapRateLimiter {
+
+	public static final double DEFAULT_REQUESTS_PER_SECOND = 10;
+	public static final int DEFAULT_BURST = 20;
+
+	// a rate of zero or less disables limiting
+	private static volatile double requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+	private static volatile int burst = DEFAULT_BURST;
+
+	private static final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	private SkytapRateLimiter() {
+	}
+
+	public static void configure(double rate, int burstSize) {
+		requestsPerSecond = rate;
+		burst = Math.max(1, burstSize);
+	}
+
+	public static double getRequestsPerSecond() {
+		return requestsPerSecond;
+	}
+
+	public static int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Waits until the given API user may send another request.
+	 *
+	 * @param user
+	 * @return time spent waiting, in milliseconds
+	 * @throws InterruptedException
+	 */
+	public static long acquire(String user) throws InterruptedException {
+
+		double rate = requestsPerSecond;
+
+		if (rate <= 0) {
+			return 0;
+		}
+
+		Bucket bucket = buckets.get(user);
+
+		if (bucket == null) {
+			Bucket newBucket = new Bucket(user);
+			bucket = buckets.putIfAbsent(user, newBucket);
+			if (bucket == null) {
+				bucket = newBucket;
+			}
+		}
+
+		return bucket.acquire(rate, burst);
+	}
+
+	/**
+	 * Returns queue statistics for every API user seen since startup.
+	 *
+	 * @return statistics
+	 */
+	public static List<Bucket> getBuckets() {
+		return new ArrayList<Bucket>(buckets.values());
+	}
+
+	/**
+	 * Token bucket and wait statistics for one API user.
+	 */
+	public static final class Bucket {
+
+		private final String user;
+
+		// fair, so that reservations are handed out in arrival order
+		private final ReentrantLock lock = new ReentrantLock(true);
+
+		private double storedTokens;
+		private long nextFreeNanos;
+		private boolean initialised;
+
+		private final AtomicInteger waiting = new AtomicInteger();
+		private long requests;
+		private long totalWaitMillis;
+		private long maxWaitMillis;
+
+		Bucket(String user) {
+			this.user = user;
+		}
+
+		long acquire(double rate, int burstSize) throws InterruptedException {
+
+			long waitNanos;
+
+			lock.lock();
+			try {
+				waitNanos = reserve(rate, burstSize, System.nanoTime());
+			} finally {
+				lock.unlock();
+			}
+
+			long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+
+			if (waitNanos > 0) {
+				waiting.incrementAndGet();
+				try {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				} finally {
+					waiting.decrementAndGet();
+				}
+			}
+
+			synchronized (this) {
+				requests++;
+				totalWaitMillis += waitMillis;
+				maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+			}
+
+			return waitMillis;
+		}
+
+		/**
+		 * Takes one token, refilling the bucket for the time elapsed since
+		 * the last reservation, and returns how long the caller must wait for
+		 * it.
+		 */
+		long reserve(double rate, int burstSize, long now) {
+
+			double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+			if (!initialised) {
+				storedTokens = burstSize;
+				nextFreeNanos = now;
+				initialised = true;
+			}
+
+			if (now > nextFreeNanos) {
+				storedTokens = Math.min(burstSize, storedTokens
+						+ (now - nextFreeNanos) / intervalNanos);
+				nextFreeNanos = now;
+			}
+
+			long waitNanos = nextFreeNanos - now;
+
+			double fromStored = Math.min(1, storedTokens);
+			storedTokens -= fromStored;
+			nextFreeNanos += (long) ((1 - fromStored) * intervalNanos);
+
+			return Math.max(0, waitNanos);
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		public int getWaiting() {
+			return waiting.get();
+		}
+
+		public synchronized long getRequests() {
+			return requests;
+		}
+
+		public synchronized long getTotalWaitMillis() {
+			return totalWaitMillis;
+		}
+
+		public synchronized long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+
+		public synchronized long getAverageWaitMillis() {
+			return requests == 0 ? 0 : totalWaitMillis / requests;
+		}
+	}
+
+}
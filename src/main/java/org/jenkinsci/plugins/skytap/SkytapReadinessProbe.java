@@ -0,0 +1,394 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Decides whether a Skytap environment or template is stable enough for the
+ * next step to use, instead of sleeping for a fixed time after changing it.
+ *
+ * An environment is ready once it is no longer busy and, if a runstate is
+ * given, every VM in it is in that runstate. Published services of a
+ * running environment can optionally be required to accept TCP
+ * connections as well. A template is ready once it is no longer busy.
+ *
+ * Probes are conditions of the shared SkytapPoller, so a step waiting for
+ * readiness returns as soon as the poller sees it. The poller thread only
+ * reads the JSON: published services are connected to on a small pool of
+ * their own, so that unreachable services do not hold up API requests, and
+ * the outcome is picked up at a later read.
+ */
+public final class SkytapReadinessProbe implements SkytapPoller.Condition {
+
+	// how long a step waits for readiness before carrying on regardless
+	public static final int DEFAULT_TIMEOUT_SECONDS = 300;
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+	// upper bound on concurrent connection checks
+	private static final int MAX_CONCURRENT_CHECKS = 2;
+
+	private static ExecutorService executor;
+
+	private static volatile boolean checkServices = false;
+
+	private final String vmRunstate;
+	private final boolean services;
+
+	// why the resource was not ready at the last read, for the build log
+	private volatile String reason;
+
+	// connection check of the published services in flight, and the
+	// services it checks
+	private Future<String> servicesCheck;
+	private List<String> checkedServices;
+
+	private SkytapReadinessProbe(String vmRunstate, boolean services) {
+		this.vmRunstate = vmRunstate;
+		this.services = services;
+	}
+
+	public static void configure(boolean checkPublishedServices) {
+		checkServices = checkPublishedServices;
+	}
+
+	/**
+	 * @return probe which only waits for the resource to stop being busy
+	 */
+	public static SkytapReadinessProbe idle() {
+		return new SkytapReadinessProbe(null, false);
+	}
+
+	/**
+	 * @param runstate
+	 * @return probe which waits for the environment to stop being busy and
+	 *         for all of its VMs to be in the given runstate
+	 */
+	public static SkytapReadinessProbe inRunstate(String runstate) {
+		return new SkytapReadinessProbe(runstate, checkServices
+				&& runstate.equals("running"));
+	}
+
+	/**
+	 * Waits for an environment to become ready, logging what it is waiting
+	 * for.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @param probe
+	 * @param timeoutSeconds
+	 * @return true if the environment became ready in time
+	 * @throws SkytapException
+	 *             if the wait failed, e.g. while the Skytap API is down
+	 */
+	public static boolean awaitEnvironment(String confId,
+			String authCredentials, SkytapReadinessProbe probe,
+			int timeoutSeconds) throws SkytapException {
+
+		JenkinsLogger.log("Waiting up to " + timeoutSeconds
+				+ " seconds for environment " + confId + " to become ready.");
+
+		return await("environment " + confId,
+				watchEnvironment(confId, authCredentials, probe), probe,
+				timeoutSeconds);
+	}
+
+	/**
+	 * Watches an environment until it is ready, for callers which cannot
+	 * block while they wait.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @param probe
+	 * @return watch
+	 */
+	public static SkytapPoller.Watch watchEnvironment(String confId,
+			String authCredentials, SkytapReadinessProbe probe) {
+
+		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
+		sb.append("configurations/");
+		sb.append(confId);
+
+		return SkytapPoller.watch(sb.toString(), authCredentials, probe);
+	}
+
+	/**
+	 * Waits for a template to become ready, logging what it is waiting for.
+	 *
+	 * @param templateId
+	 * @param authCredentials
+	 * @param timeoutSeconds
+	 * @return true if the template became ready in time
+	 * @throws SkytapException
+	 *             if the wait failed, e.g. while the Skytap API is down
+	 */
+	public static boolean awaitTemplate(String templateId,
+			String authCredentials, int timeoutSeconds) throws SkytapException {
+
+		JenkinsLogger.log("Waiting up to " + timeoutSeconds
+				+ " seconds for template " + templateId + " to become ready.");
+
+		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
+		sb.append("templates/");
+		sb.append(templateId);
+
+		SkytapReadinessProbe probe = idle();
+
+		return await("template " + templateId, SkytapPoller.watch(
+				sb.toString(), authCredentials, probe), probe, timeoutSeconds);
+	}
+
+	private static boolean await(String description,
+			SkytapPoller.Watch watch, SkytapReadinessProbe probe,
+			int timeoutSeconds) throws SkytapException {
+
+		long start = System.currentTimeMillis();
+
+		try {
+			if (watch.await(TimeUnit.SECONDS.toMillis(timeoutSeconds))) {
+				JenkinsLogger.log(description + " is ready after "
+						+ (System.currentTimeMillis() - start) / 1000
+						+ " seconds.");
+				return true;
+			}
+		} finally {
+			watch.cancel(false);
+		}
+
+		JenkinsLogger.log(description + " is not ready: "
+				+ probe.getReason());
+		return false;
+	}
+
+	/**
+	 * @return why the resource was not ready at the last read
+	 */
+	public String getReason() {
+		return reason != null ? reason : "not read yet";
+	}
+
+	public boolean isSatisfied(JsonElement resource) {
+
+		reason = check(resource.getAsJsonObject());
+		return reason == null;
+	}
+
+	/**
+	 * @param jo
+	 * @return why the resource is not ready, or null if it is
+	 */
+	private String check(JsonObject jo) {
+
+		if (EnvironmentSnapshot.isBusy(jo)) {
+			return "busy";
+		}
+
+		if (vmRunstate == null) {
+			return null;
+		}
+
+		for (JsonElement vmElement : getArray(jo, "vms")) {
+			JsonObject vm = vmElement.getAsJsonObject();
+
+			String runstate = getString(vm, "runstate");
+			if (EnvironmentSnapshot.isBusy(vm) || !vmRunstate.equals(runstate)) {
+				return "VM " + getString(vm, "name") + " is " + runstate;
+			}
+		}
+
+		if (!services) {
+			return null;
+		}
+
+		List<String> published = new ArrayList<String>();
+
+		for (JsonElement vmElement : getArray(jo, "vms")) {
+			JsonObject vm = vmElement.getAsJsonObject();
+
+			for (JsonElement interfaceElement : getArray(vm, "interfaces")) {
+				for (JsonElement serviceElement : getArray(
+						interfaceElement.getAsJsonObject(), "services")) {
+
+					JsonObject service = serviceElement.getAsJsonObject();
+					String host = getString(service, "external_ip");
+					String port = getString(service, "external_port");
+
+					if (!host.equals("") && !port.equals("")) {
+						published.add(host + ":" + port + " of VM "
+								+ getString(vm, "name"));
+					}
+				}
+			}
+		}
+
+		return checkServices(published);
+	}
+
+	/**
+	 * Starts a connection check of the published services, or looks at the
+	 * outcome of the one in flight, without waiting for it.
+	 *
+	 * @param published
+	 *            services, as host:port followed by a description
+	 * @return why the services are not ready, or null if they are
+	 */
+	private synchronized String checkServices(final List<String> published) {
+
+		if (published.isEmpty()) {
+			return null;
+		}
+
+		if (servicesCheck != null && !published.equals(checkedServices)) {
+			// the services changed since the check started
+			servicesCheck.cancel(true);
+			servicesCheck = null;
+		}
+
+		if (servicesCheck == null) {
+			checkedServices = published;
+			servicesCheck = getExecutor().submit(new Callable<String>() {
+				public String call() {
+					return findUnreachable(published);
+				}
+			});
+		}
+
+		if (!servicesCheck.isDone()) {
+			return "checking published services";
+		}
+
+		String unreachable;
+
+		try {
+			unreachable = servicesCheck.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			unreachable = "interrupted";
+		} catch (ExecutionException e) {
+			unreachable = String.valueOf(e.getCause());
+		}
+
+		if (unreachable == null) {
+			return null;
+		}
+
+		// check again at the next read
+		servicesCheck = null;
+		return "published service " + unreachable + " is not reachable";
+	}
+
+	/**
+	 * @param published
+	 * @return the first service which does not accept connections, or null
+	 */
+	private static String findUnreachable(List<String> published) {
+
+		for (String service : published) {
+
+			String address = service.substring(0, service.indexOf(' '));
+			int colon = address.lastIndexOf(':');
+
+			if (!isReachable(address.substring(0, colon),
+					Integer.parseInt(address.substring(colon + 1)))) {
+				return service;
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean isReachable(String host, int port) {
+
+		Socket socket = new Socket();
+
+		try {
+			socket.connect(new InetSocketAddress(host, port),
+					CONNECT_TIMEOUT_MILLIS);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+
+		if (executor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(
+					MAX_CONCURRENT_CHECKS, MAX_CONCURRENT_CHECKS, 60L,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new NamingThreadFactory(new DaemonThreadFactory(),
+							"Skytap service check"));
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+
+		return executor;
+	}
+
+	private static JsonArray getArray(JsonObject jo, String field) {
+
+		JsonElement je = jo.get(field);
+
+		if (je == null || !je.isJsonArray()) {
+			return new JsonArray();
+		}
+
+		return je.getAsJsonArray();
+	}
+
+	private static String getString(JsonObject jo, String field) {
+
+		JsonElement je = jo.get(field);
+
+		if (je == null || je.isJsonNull()) {
+			return "";
+		}
+
+		return je.getAsString();
+	}
+
+}
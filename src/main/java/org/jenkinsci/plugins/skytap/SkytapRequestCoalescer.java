@@ -0,0 +1,150 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical requests which are in flight at the same time. The
+ * first caller for a key sends the request; callers arriving with the same
+ * key before it completes wait for it and share its response instead of
+ * sending their own.
+ *
+ * Only used for GET requests, where sharing a response has no side effects.
+ */
+public final class SkytapRequestCoalescer {
+
+	private static final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+	private static final AtomicLong sharedResponses = new AtomicLong();
+
+	private SkytapRequestCoalescer() {
+	}
+
+	/**
+	 * Runs the request, or waits for an identical one which is already in
+	 * flight.
+	 *
+	 * @param key
+	 *            identifies identical requests
+	 * @param request
+	 * @return response body
+	 * @throws SkytapException
+	 */
+	public static String execute(String key, Callable<String> request)
+			throws SkytapException {
+
+		Flight flight = new Flight(request);
+		Flight existing = inFlight.putIfAbsent(key, flight);
+
+		if (existing == null) {
+			try {
+				flight.run();
+			} finally {
+				inFlight.remove(key, flight);
+			}
+			return getResponse(flight);
+		}
+
+		JenkinsLogger.log("Sharing response of identical in-flight request.");
+		String response = getResponse(existing);
+
+		if (existing.leaderInterrupted) {
+			// the response was cut short by an aborted build, not by Skytap
+			return call(request);
+		}
+
+		sharedResponses.incrementAndGet();
+		return response;
+	}
+
+	/**
+	 * @return number of requests which were answered with the response of
+	 *         another in-flight request
+	 */
+	public static long getSharedResponses() {
+		return sharedResponses.get();
+	}
+
+	private static String call(Callable<String> request) throws SkytapException {
+
+		try {
+			return request.call();
+		} catch (SkytapException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SkytapException(e.getMessage());
+		}
+	}
+
+	private static String getResponse(Flight flight) throws SkytapException {
+
+		try {
+			return flight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SkytapException("Interrupted while waiting for Skytap response.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SkytapException) {
+				throw (SkytapException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new SkytapException(String.valueOf(cause));
+		}
+	}
+
+	/**
+	 * A request in flight. Remembers whether the thread which sent it was
+	 * interrupted, in which case waiting callers send their own request.
+	 */
+	private static final class Flight extends FutureTask<String> {
+
+		private volatile boolean leaderInterrupted;
+
+		Flight(Callable<String> request) {
+			super(request);
+		}
+
+		@Override
+		protected void set(String response) {
+			leaderInterrupted = Thread.currentThread().isInterrupted();
+			super.set(response);
+		}
+
+		@Override
+		protected void setException(Throwable t) {
+			leaderInterrupted = Thread.currentThread().isInterrupted();
+			super.setException(t);
+		}
+	}
+
+}
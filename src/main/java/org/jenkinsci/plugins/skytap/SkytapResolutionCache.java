@@ -0,0 +1,227 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the ids which names were resolved to during a build, so that
+ * later Skytap steps in the same build can look them up without calling the
+ * Skytap API again. It is attached to the build as an invisible action; the
+ * ids themselves are not saved with the build.
+ *
+ * SkytapBuilder makes the cache of the running build available to the
+ * lookup methods in SkytapUtils for the duration of each step.
+ */
+public class SkytapResolutionCache extends InvisibleAction {
+
+	public static final String VM = "vm";
+	public static final String NETWORK = "network";
+	public static final String PROJECT = "project";
+	public static final String CONTAINER_REGISTRY = "container registry";
+	public static final String CONTAINER = "container";
+	public static final String ENVIRONMENT = "environment";
+
+	private static final ThreadLocal<SkytapResolutionCache> current = new ThreadLocal<SkytapResolutionCache>();
+
+	private transient ConcurrentMap<String, String> ids;
+
+	// environments read during the build, see EnvironmentSnapshot
+	private transient ConcurrentMap<String, EnvironmentSnapshot> snapshots;
+
+	/**
+	 * Returns the cache of the given build, attaching a new one if the build
+	 * does not have one yet.
+	 *
+	 * @param build
+	 * @return cache
+	 */
+	public static SkytapResolutionCache forBuild(AbstractBuild build) {
+
+		synchronized (build) {
+			SkytapResolutionCache cache = build
+					.getAction(SkytapResolutionCache.class);
+
+			if (cache == null) {
+				cache = new SkytapResolutionCache();
+				build.addAction(cache);
+			}
+
+			return cache;
+		}
+	}
+
+	/**
+	 * Sets the cache used by lookups on the current thread, or null for none.
+	 *
+	 * @param cache
+	 */
+	public static void setCurrent(SkytapResolutionCache cache) {
+		current.set(cache);
+	}
+
+	/**
+	 * @return the cache used by lookups on the current thread, or null
+	 */
+	public static SkytapResolutionCache getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Returns the id a name was resolved to earlier in the current build.
+	 *
+	 * @param type
+	 *            kind of object, e.g. VM
+	 * @param scope
+	 *            id of the object the name is unique within, e.g. the
+	 *            environment id for a VM
+	 * @param name
+	 * @param authCredentials
+	 * @return id, or null if the name has not been resolved yet
+	 */
+	public static String get(String type, String scope, String name,
+			String authCredentials) {
+
+		SkytapResolutionCache cache = current.get();
+
+		if (cache == null) {
+			return null;
+		}
+
+		String id = cache.getIds().get(
+				toKey(type, scope, name, authCredentials));
+
+		if (id != null) {
+			JenkinsLogger.log("Using " + type + " id " + id + " resolved earlier in this build for name: " + name);
+		}
+
+		return id;
+	}
+
+	public static void put(String type, String scope, String name,
+			String authCredentials, String id) {
+
+		SkytapResolutionCache cache = current.get();
+
+		if (cache != null && id != null && !id.equals("")) {
+			cache.getIds().put(toKey(type, scope, name, authCredentials), id);
+		}
+	}
+
+	/**
+	 * Forgets an id resolved earlier in the current build.
+	 *
+	 * @return true if an id was cached
+	 */
+	public static boolean remove(String type, String scope, String name,
+			String authCredentials) {
+
+		SkytapResolutionCache cache = current.get();
+
+		return cache != null
+				&& cache.getIds().remove(
+						toKey(type, scope, name, authCredentials)) != null;
+	}
+
+	/**
+	 * Returns the snapshot of an environment read earlier in the current
+	 * build, unless something has been changed since.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @return snapshot, or null
+	 */
+	public static EnvironmentSnapshot getSnapshot(String confId,
+			String authCredentials) {
+
+		SkytapResolutionCache cache = current.get();
+
+		if (cache == null) {
+			return null;
+		}
+
+		return cache.getSnapshots().get(
+				toKey(ENVIRONMENT, "", confId, authCredentials));
+	}
+
+	public static void putSnapshot(EnvironmentSnapshot snapshot,
+			String authCredentials) {
+
+		SkytapResolutionCache cache = current.get();
+
+		if (cache == null) {
+			return;
+		}
+
+		String key = toKey(ENVIRONMENT, "", snapshot.getId(), authCredentials);
+
+		// a snapshot read concurrently may arrive after a newer one
+		EnvironmentSnapshot previous = cache.getSnapshots().put(key, snapshot);
+		if (previous != null && previous.getVersion() > snapshot.getVersion()) {
+			cache.getSnapshots().replace(key, snapshot, previous);
+		}
+	}
+
+	/**
+	 * Drops the environment snapshots of the current build, because a
+	 * request may have changed the environments.
+	 */
+	public static void clearSnapshots() {
+
+		SkytapResolutionCache cache = current.get();
+
+		if (cache != null) {
+			cache.getSnapshots().clear();
+		}
+	}
+
+	private synchronized ConcurrentMap<String, EnvironmentSnapshot> getSnapshots() {
+
+		if (snapshots == null) {
+			snapshots = new ConcurrentHashMap<String, EnvironmentSnapshot>();
+		}
+
+		return snapshots;
+	}
+
+	private synchronized ConcurrentMap<String, String> getIds() {
+
+		// transient, so null once the build has been reloaded
+		if (ids == null) {
+			ids = new ConcurrentHashMap<String, String>();
+		}
+
+		return ids;
+	}
+
+	private static String toKey(String type, String scope, String name,
+			String authCredentials) {
+		// credentials are part of the key, as different Skytap users may
+		// see different objects under the same name
+		return type + "\n" + scope + "\n" + name + "\n" + authCredentials;
+	}
+
+}
@@ -0,0 +1,259 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Cache of GET responses which carry an ETag or Last-Modified validator. When
+ * a cached resource is requested again, the validators are sent along so
+ * that Skytap can answer 304 Not Modified instead of sending the whole body
+ * again; the cached body is then returned to the caller.
+ *
+ * The cache is bounded by the total size of the cached bodies, evicting the
+ * least recently used responses first. Entries are keyed by URL and
+ * credentials, so users never see each other's responses.
+ */
+public final class SkytapResponseCache {
+
+	public static final int DEFAULT_SIZE_MB = 16;
+
+	// a size of zero disables the cache
+	private static long maxBytes = DEFAULT_SIZE_MB * 1024L * 1024L;
+	private static long currentBytes;
+
+	private static long hits;
+	private static long misses;
+
+	// access ordered, so iteration starts at the least recently used entry
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private SkytapResponseCache() {
+	}
+
+	public static synchronized void setSizeMB(int sizeMB) {
+		maxBytes = Math.max(0, sizeMB) * 1024L * 1024L;
+		evict();
+	}
+
+	/**
+	 * Returns a handler which reads the response body of the given request
+	 * as a string, serving it from the cache when Skytap answers 304 and
+	 * caching it otherwise. Validators of a cached response are added to the
+	 * request.
+	 *
+	 * @param hr
+	 * @return handler
+	 */
+	public static SkytapResponseHandler<String> newResponseHandler(
+			final HttpRequestBase hr) {
+
+		final Entry cachedResponse = addValidators(hr);
+
+		return new SkytapResponseHandler<String>() {
+			public String handleResponse(HttpResponse response)
+					throws IOException {
+
+				if (cachedResponse != null
+						&& response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+					JenkinsLogger.log("Using cached response.");
+					recordHit();
+					EntityUtils.consume(response.getEntity());
+					return cachedResponse.getBody();
+				}
+
+				if (response.getEntity() == null) {
+					return "";
+				}
+
+				String body = EntityUtils.toString(response.getEntity(),
+						"UTF-8");
+				put(hr, response, body);
+
+				return body;
+			}
+		};
+	}
+
+	/**
+	 * Adds the validators of a cached response, if there is one, to a GET
+	 * request.
+	 *
+	 * @param hr
+	 * @return the cached response to use if Skytap answers 304, or null
+	 */
+	private static synchronized Entry addValidators(HttpRequestBase hr) {
+
+		if (!(hr instanceof HttpGet)) {
+			return null;
+		}
+
+		// polling loops reuse their request objects, so drop validators left
+		// over from an earlier attempt
+		hr.removeHeaders("If-None-Match");
+		hr.removeHeaders("If-Modified-Since");
+
+		if (maxBytes == 0) {
+			return null;
+		}
+
+		Entry entry = entries.get(SkytapUtils.getRequestKey(hr));
+
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+
+		if (entry.etag != null) {
+			hr.setHeader("If-None-Match", entry.etag);
+		}
+		if (entry.lastModified != null) {
+			hr.setHeader("If-Modified-Since", entry.lastModified);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Stores a successful GET response if it carries validators.
+	 *
+	 * @param hr
+	 * @param response
+	 * @param body
+	 */
+	public static synchronized void put(HttpRequestBase hr,
+			HttpResponse response, String body) {
+
+		if (!(hr instanceof HttpGet) || maxBytes == 0
+				|| response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			return;
+		}
+
+		String key = SkytapUtils.getRequestKey(hr);
+		String etag = getHeaderValue(response, "ETag");
+		String lastModified = getHeaderValue(response, "Last-Modified");
+
+		if (etag == null && lastModified == null) {
+			// nothing to revalidate with, and the old entry is out of date
+			remove(key);
+			return;
+		}
+
+		Entry entry = new Entry(body, etag, lastModified);
+
+		remove(key);
+
+		if (entry.getSize() > maxBytes) {
+			return;
+		}
+
+		entries.put(key, entry);
+		currentBytes += entry.getSize();
+		evict();
+	}
+
+	private static synchronized void recordHit() {
+		hits++;
+	}
+
+	public static synchronized void clear() {
+		entries.clear();
+		currentBytes = 0;
+	}
+
+	public static synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public static synchronized long getSizeBytes() {
+		return currentBytes;
+	}
+
+	public static synchronized long getHits() {
+		return hits;
+	}
+
+	public static synchronized long getMisses() {
+		return misses;
+	}
+
+	private static void remove(String key) {
+
+		Entry old = entries.remove(key);
+
+		if (old != null) {
+			currentBytes -= old.getSize();
+		}
+	}
+
+	private static void evict() {
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+		while (currentBytes > maxBytes && it.hasNext()) {
+			currentBytes -= it.next().getValue().getSize();
+			it.remove();
+		}
+	}
+
+	private static String getHeaderValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	/**
+	 * A cached response body with its validators.
+	 */
+	public static final class Entry {
+
+		private final String body;
+		private final String etag;
+		private final String lastModified;
+
+		Entry(String body, String etag, String lastModified) {
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		public String getBody() {
+			return body;
+		}
+
+		// approximate memory held by the body
+		long getSize() {
+			return body.length() * 2L;
+		}
+	}
+
+}
@@ -0,0 +1,291 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records how long environments take to change runstate, so that waits can
+ * read them around the time the change is expected to complete instead of
+ * on a fixed schedule.
+ *
+ * Durations are kept per transition (e.g. stopped to running) for the
+ * template an environment was created from, or for the environment itself
+ * if Skytap does not say, and for the transition across all environments.
+ * Only the most recent durations of each are kept. The statistics are
+ * written to JENKINS_HOME so that they survive restarts.
+ */
+public final class SkytapTransitionStats {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(SkytapTransitionStats.class.getName());
+
+	// durations kept per transition
+	private static final int MAX_SAMPLES = 50;
+
+	// fewer durations than this are too few to go by
+	private static final int MIN_SAMPLES = 3;
+
+	private static final int MAX_TRANSITIONS = 500;
+
+	private static final String ANY_ENVIRONMENT = "*";
+
+	private static Stats stats = new Stats();
+	private static XmlFile file;
+
+	private SkytapTransitionStats() {
+	}
+
+	/**
+	 * Reads the statistics recorded before the last restart.
+	 *
+	 * @param directory
+	 */
+	public static synchronized void load(File directory) {
+
+		file = new XmlFile(new File(directory, "transitions.xml"));
+
+		if (!file.exists()) {
+			return;
+		}
+
+		try {
+			Object loaded = file.read();
+			if (loaded instanceof Stats) {
+				stats = (Stats) loaded;
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING,
+					"Failed to read Skytap transition statistics from "
+							+ file.getFile(), e);
+		}
+	}
+
+	/**
+	 * Identifies the environment statistics are kept for.
+	 *
+	 * @param snapshot
+	 * @return key
+	 */
+	public static String getKey(EnvironmentSnapshot snapshot) {
+
+		if (snapshot.getTemplateId() != null) {
+			return "template:" + snapshot.getTemplateId();
+		}
+
+		return "environment:" + snapshot.getId();
+	}
+
+	/**
+	 * Records how long a transition took.
+	 *
+	 * @param key
+	 *            from getKey(EnvironmentSnapshot)
+	 * @param fromRunstate
+	 * @param toRunstate
+	 * @param durationMillis
+	 */
+	public static void record(String key, String fromRunstate,
+			String toRunstate, long durationMillis) {
+
+		if (fromRunstate == null || fromRunstate.equals("")
+				|| fromRunstate.equals("busy")
+				|| fromRunstate.equals(toRunstate) || durationMillis <= 0) {
+			// not a transition with a known start
+			return;
+		}
+
+		synchronized (SkytapTransitionStats.class) {
+
+			long now = System.currentTimeMillis();
+			String transition = fromRunstate + ">" + toRunstate;
+
+			add(key + " " + transition, durationMillis, now);
+			add(ANY_ENVIRONMENT + " " + transition, durationMillis, now);
+			evict();
+
+			save();
+		}
+	}
+
+	/**
+	 * Returns a poll schedule for a transition which is dense around the
+	 * durations observed so far, or null if too few have been recorded.
+	 *
+	 * @param key
+	 * @param fromRunstate
+	 * @param toRunstate
+	 * @return schedule, or null
+	 */
+	public static synchronized SkytapPoller.Schedule getSchedule(String key,
+			String fromRunstate, String toRunstate) {
+
+		String transition = fromRunstate + ">" + toRunstate;
+
+		Samples samples = stats.transitions.get(key + " " + transition);
+
+		if (samples == null || samples.count < MIN_SAMPLES) {
+			samples = stats.transitions.get(ANY_ENVIRONMENT + " "
+					+ transition);
+		}
+
+		if (samples == null || samples.count < MIN_SAMPLES) {
+			return null;
+		}
+
+		return new AdaptiveSchedule(samples.getPercentile(50),
+				samples.getPercentile(90));
+	}
+
+	private static void add(String transitionKey, long durationMillis,
+			long now) {
+
+		Samples samples = stats.transitions.get(transitionKey);
+
+		if (samples == null) {
+			samples = new Samples();
+			stats.transitions.put(transitionKey, samples);
+		}
+
+		samples.add(durationMillis, now);
+	}
+
+	private static void evict() {
+
+		while (stats.transitions.size() > MAX_TRANSITIONS) {
+
+			String oldest = null;
+			long oldestRecordedAt = Long.MAX_VALUE;
+
+			for (Map.Entry<String, Samples> entry : stats.transitions
+					.entrySet()) {
+				if (!entry.getKey().startsWith(ANY_ENVIRONMENT + " ")
+						&& entry.getValue().lastRecordedAt < oldestRecordedAt) {
+					oldest = entry.getKey();
+					oldestRecordedAt = entry.getValue().lastRecordedAt;
+				}
+			}
+
+			if (oldest == null) {
+				return;
+			}
+
+			stats.transitions.remove(oldest);
+		}
+	}
+
+	private static void save() {
+
+		if (file == null) {
+			return;
+		}
+
+		try {
+			file.write(stats);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING,
+					"Failed to save Skytap transition statistics to "
+							+ file.getFile(), e);
+		}
+	}
+
+	/**
+	 * Persisted form of the statistics.
+	 */
+	private static final class Stats {
+
+		private final Map<String, Samples> transitions = new HashMap<String, Samples>();
+	}
+
+	/**
+	 * The most recent durations of a transition, in a ring.
+	 */
+	static final class Samples {
+
+		private final long[] durations = new long[MAX_SAMPLES];
+		private int count;
+		private int next;
+		private long lastRecordedAt;
+
+		void add(long durationMillis, long now) {
+			durations[next] = durationMillis;
+			next = (next + 1) % durations.length;
+			count = Math.min(count + 1, durations.length);
+			lastRecordedAt = now;
+		}
+
+		long getPercentile(int percentile) {
+			long[] sorted = Arrays.copyOf(durations, count);
+			Arrays.sort(sorted);
+			return sorted[(count - 1) * percentile / 100];
+		}
+	}
+
+	/**
+	 * Reads sparsely until half way to the median duration, at every poller
+	 * tick from there until a little past the 90th percentile, and then
+	 * less and less often in case the transition is unusually slow.
+	 */
+	static final class AdaptiveSchedule implements SkytapPoller.Schedule {
+
+		// longest gap between reads outside the expected window
+		private static final long MAX_DELAY_MILLIS = TimeUnit.MINUTES
+				.toMillis(2);
+
+		private final long denseFrom;
+		private final long denseUntil;
+
+		AdaptiveSchedule(long p50Millis, long p90Millis) {
+			this.denseFrom = p50Millis / 2;
+			this.denseUntil = p90Millis + p90Millis / 4
+					+ SkytapPoller.TICK_MILLIS;
+		}
+
+		public long getNextPollDelay(long elapsedMillis) {
+
+			if (elapsedMillis < denseFrom) {
+				// sparse reads, landing on the start of the window
+				long sparse = Math.max(SkytapPoller.TICK_MILLIS,
+						Math.min(MAX_DELAY_MILLIS, denseFrom / 4));
+				return Math.min(sparse, denseFrom - elapsedMillis);
+			}
+
+			if (elapsedMillis < denseUntil) {
+				return SkytapPoller.TICK_MILLIS;
+			}
+
+			return Math.max(SkytapPoller.TICK_MILLIS, Math.min(
+					MAX_DELAY_MILLIS, (elapsedMillis - denseUntil) / 2));
+		}
+	}
+
+}
@@ -22,6 +22,7 @@
 package org.jenkinsci.plugins.skytap;
 
 import hudson.EnvVars;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.util.VariableResolver;
@@ -36,14 +37,25 @@ import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Date;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.Callable;
 
 import hudson.FilePath;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
@@ -55,6 +67,7 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 //
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
@@ -62,11 +75,12 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
-import org.apache.http.HttpHost;
-import org.apache.http.conn.params.ConnRoutePNames;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -75,6 +89,32 @@ import com.google.gson.JsonParser;
 
 public class SkytapUtils {
 
+	// request bodies larger than this are sent gzip compressed
+	private static final int GZIP_THRESHOLD_BYTES = 1024;
+
+	// how long to use the full project list after a filtered query failed
+	private static final long PROJECT_QUERY_RETRY_MILLIS = 60 * 60 * 1000L;
+
+	// retry policy of the build step running on this thread, if overridden
+	private static final ThreadLocal<RetryPolicy> currentRetryPolicy = new ThreadLocal<RetryPolicy>();
+
+	private static final String CONTAINER_REGISTRIES_URL = "https://cloud.skytap.com/v2/container_registries.json";
+
+	private static volatile long projectQueryRetryTime = 0;
+
+	// looks up expired shared ids again in the background
+	private static final SkytapIdCache.Revalidator ID_REVALIDATOR = new SkytapIdCache.Revalidator() {
+		public String resolve(String type, String name, String authCredentials)
+				throws SkytapException {
+
+			if (type.equals(SkytapResolutionCache.PROJECT)) {
+				return findProjectId(name, authCredentials);
+			}
+
+			return findIdByName(CONTAINER_REGISTRIES_URL, name, authCredentials);
+		}
+	};
+
 	/**
 	 * This method is used to enable Jenkins variable expansion. The user would
 	 * include Jenkins variables such as ${BUILD_ID} and these are resolved at
@@ -119,250 +159,237 @@ public class SkytapUtils {
 
 	public static String getVMIDFromName(String confId, String vname, String authCredentials) throws SkytapException {
 
-		// build url to retrieve vm object by name, so we can extract the id
-		JenkinsLogger.log("Building request url ...");
-
-		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
-		sb.append("configurations/");
-		sb.append(confId);
-		sb.append("/vms");
-		String getVmIdURL = sb.toString();
-
-		// create request
-		HttpGet hg = SkytapUtils.buildHttpGetRequest(getVmIdURL, authCredentials);
-
-		// execute request
-		String hgResponse = "";
-
-		hgResponse = SkytapUtils.executeHttpRequest(hg);
-
-		// check for errors
-		SkytapUtils.checkResponseForErrors(hgResponse);
+		String cachedId = SkytapResolutionCache.get(SkytapResolutionCache.VM, confId, vname, authCredentials);
+		if (cachedId != null) {
+			return cachedId;
+		}
 
-		// find vm that matches name
+		return getVMIDsFromNames(confId, Collections.singleton(vname), authCredentials).get(vname);
 
-		JsonParser parser = new JsonParser();
-		JsonElement je = parser.parse(hgResponse);
-		JsonArray vmArray = je.getAsJsonArray();
+	}
 
-		JenkinsLogger.log("Iterating through vm array to match name: " + vname);
+	/**
+	 * Resolves several VM names in an environment with a single request for
+	 * its vm list. The list is indexed by name once, so the cost does not
+	 * grow with the number of names; every VM in the list is also cached
+	 * for the rest of the build.
+	 *
+	 * @param confId
+	 * @param vmNames
+	 * @param authCredentials
+	 * @return vm ids keyed by name, in the order the names were given
+	 * @throws SkytapException
+	 *             if any of the names does not match a vm
+	 */
+	public static Map<String, String> getVMIDsFromNames(String confId, Collection<String> vmNames, String authCredentials) throws SkytapException {
 
-		Iterator iter = vmArray.iterator();
+		Map<String, String> vmIds = new LinkedHashMap<String, String>();
+		List<String> unresolved = new ArrayList<String>();
 
-		while(iter.hasNext()){
-			JsonObject vmObject = (JsonObject)iter.next();
-			JenkinsLogger.log(vmObject.toString());
-			String currentName = vmObject.get("name").getAsString();
-			JenkinsLogger.log("Found VM with name: " + currentName);
+		for (String vname : vmNames) {
+			String cachedId = SkytapResolutionCache.get(SkytapResolutionCache.VM, confId, vname, authCredentials);
+			if (cachedId != null) {
+				vmIds.put(vname, cachedId);
+			} else if (!unresolved.contains(vname)) {
+				unresolved.add(vname);
+			}
+		}
 
-			if(currentName.equals(vname)){
-				JenkinsLogger.log("Name matched. Retrieving vm id.");
+		if (unresolved.isEmpty()) {
+			return vmIds;
+		}
 
-				String vid = vmObject.get("id").getAsString();
-				JenkinsLogger.log("VM ID: " + vid);
-				return vid;
+		for (String vname : unresolved) {
+			if (SkytapNegativeCache.isMissing(SkytapResolutionCache.VM, confId, vname, authCredentials)) {
+				throw new SkytapException("No vms were found matching name: " + vname);
 			}
-
 		}
 
-		// if we failed to match the name throw an exception
-		throw new SkytapException("No vms were found matching name: " + vname);
+		// the environment lists its vms, so we can extract the ids
+		List<EnvironmentSnapshot.Vm> vms = EnvironmentSnapshot.get(confId, authCredentials).getVms();
 
-	}
+		// index the vms by name; the first vm with a given name wins
+		Map<String, String> vmIndex = new HashMap<String, String>();
 
-	public static String getContainerRegistryIdFromName(String containerRegistryName, String authCredentials) throws SkytapException {
+		for (EnvironmentSnapshot.Vm vm : vms) {
+			String currentName = vm.getName();
 
-		// build url to retrieve vm object by name, so we can extract the id
-		JenkinsLogger.log("Building request url ...");
+			if (!vmIndex.containsKey(currentName)) {
+				vmIndex.put(currentName, vm.getId());
+				SkytapResolutionCache.put(SkytapResolutionCache.VM, confId, currentName, authCredentials, vm.getId());
+			}
+		}
 
-		int offset = 0;
-		int iteration = 1;
-		boolean registryListExists = true;
-		while (registryListExists) {
-			StringBuilder sb = new StringBuilder("https://cloud.skytap.com/v2/container_registries.json?count=100&offset=" + String.valueOf(offset));
-			String getContainerRegistryIdURL = sb.toString();
+		JenkinsLogger.log("Environment " + confId + " has " + vms.size() + " vms.");
 
-			// create request
-			HttpGet hg = SkytapUtils.buildHttpGetRequest(getContainerRegistryIdURL, authCredentials);
+		List<String> missing = new ArrayList<String>();
 
-			// execute request
-			String hgResponse = "";
+		for (String vname : unresolved) {
+			String vid = vmIndex.get(vname);
+			if (vid == null) {
+				missing.add(vname);
+				SkytapNegativeCache.putMissing(SkytapResolutionCache.VM, confId, vname, authCredentials);
+			} else {
+				JenkinsLogger.log("VM " + vname + " has ID: " + vid);
+			}
+		}
 
-			hgResponse = SkytapUtils.executeHttpRequest(hg);
+		// if we failed to match any name throw an exception
+		if (!missing.isEmpty()) {
+			throw new SkytapException("No vms were found matching name: " + Util.join(missing, ", "));
+		}
 
-			// check for errors
-			SkytapUtils.checkResponseForErrors(hgResponse);
+		// keep the caller's order
+		Map<String, String> result = new LinkedHashMap<String, String>();
 
-			// find vm that matches name
+		for (String vname : vmNames) {
+			String vid = vmIds.get(vname);
+			result.put(vname, vid != null ? vid : vmIndex.get(vname));
+		}
 
-			JsonParser parser = new JsonParser();
-			JsonElement je = parser.parse(hgResponse);
-			JsonArray registryArray = je.getAsJsonArray();
-			if (registryArray == null) {
-				registryListExists = false;
-			} else {
+		return result;
 
-				JenkinsLogger.log("Iterating through container registry array " + String.valueOf(iteration) + " to match name: " + containerRegistryName);
+	}
 
-				Iterator iter = registryArray.iterator();
+	public static String getContainerRegistryIdFromName(String containerRegistryName, String authCredentials) throws SkytapException {
 
-				while(iter.hasNext()){
-					JsonObject registryObject = (JsonObject)iter.next();
-//					JenkinsLogger.log(registryObject.toString());
-					String currentName = registryObject.get("name").getAsString();
-					JenkinsLogger.log("Found container registry with name: " + currentName);
+		String cachedId = getSharedCachedId(SkytapResolutionCache.CONTAINER_REGISTRY, containerRegistryName, authCredentials);
+		if (cachedId != null) {
+			return cachedId;
+		}
 
-					if(currentName.equals(containerRegistryName)){
-						JenkinsLogger.log("Name matched. Retrieving registry id.");
+		String notFoundMessage = "No container registries were found matching name: " + containerRegistryName;
 
-						String rid = registryObject.get("id").getAsString();
-						JenkinsLogger.log("Container Registry ID: " + rid);
-						return rid;
-					}
+		if (SkytapNegativeCache.isMissing(SkytapResolutionCache.CONTAINER_REGISTRY, "", containerRegistryName, authCredentials)) {
+			throw new SkytapException(notFoundMessage);
+		}
 
-				}
+		// scan the registry list for the name, page by page
+		String registryId = findIdByName(
+				CONTAINER_REGISTRIES_URL,
+				containerRegistryName, authCredentials);
 
-				offset = offset + 100;
-				iteration = iteration + 1;
-			}
+		if (registryId != null) {
+			JenkinsLogger.log("Name matched. Container Registry ID: " + registryId);
+			putSharedCachedId(SkytapResolutionCache.CONTAINER_REGISTRY, containerRegistryName, authCredentials, registryId);
+			return registryId;
 		}
+
 		// if we failed to match the name throw an exception
-		throw new SkytapException("No container registries were found matching name: " + containerRegistryName);
+		SkytapNegativeCache.putMissing(SkytapResolutionCache.CONTAINER_REGISTRY, "", containerRegistryName, authCredentials);
+		throw new SkytapException(notFoundMessage);
 
 	}
 
 	public static String getVMContainerIdFromName(String confId, String vmId, String containerName, String authCredentials) throws SkytapException {
 
-		int offset = 0;
-		int iteration = 1;
-		boolean containerListExists = true;
-		while (containerListExists) {
-			// build url to retrieve vm object by name, so we can extract the id
-			JenkinsLogger.log("Building request url ...");
-
-			StringBuilder sb = new StringBuilder("https://cloud.skytap.com/v2/");
-			sb.append("configurations/");
-			sb.append(confId);
-			sb.append("/containers?count=100&offset=" + String.valueOf(offset) + "&query=vm_id:");
-			sb.append(vmId);
-			sb.append("&query=name:");
-			sb.append(containerName);
-			String getVmIdURL = sb.toString();
-
-			// create request
-			HttpGet hg = SkytapUtils.buildHttpGetRequest(getVmIdURL, authCredentials);
-
-			// execute request
-			String hgResponse = "";
-
-			hgResponse = SkytapUtils.executeHttpRequest(hg);
+		String scope = confId + "/" + vmId;
 
-			// check for errors
-			SkytapUtils.checkResponseForErrors(hgResponse);
-
-			// find container that matches name
-
-			JsonParser parser = new JsonParser();
-			JsonElement je = parser.parse(hgResponse);
-			JsonArray containerArray = je.getAsJsonArray();
-
-			if (containerArray == null) {
-				containerListExists = false;
-			} else {
-				JenkinsLogger.log("Iterating through container array " + String.valueOf(iteration) + " to match name: " + containerName);
-
-				Iterator iter = containerArray.iterator();
+		String cachedId = SkytapResolutionCache.get(SkytapResolutionCache.CONTAINER, scope, containerName, authCredentials);
+		if (cachedId != null) {
+			return cachedId;
+		}
 
-				while(iter.hasNext()){
-					JsonObject containerObject = (JsonObject)iter.next();
-		//			JenkinsLogger.log(containerObject.toString());
-					String currentName = containerObject.get("name").getAsString();
-					JenkinsLogger.log("Found container with name: " + currentName);
+		if (SkytapNegativeCache.isMissing(SkytapResolutionCache.CONTAINER, scope, containerName, authCredentials)) {
+			throw new SkytapException("No container was found matching name: " + containerName);
+		}
 
-					if(currentName.equals(containerName)){
-						JenkinsLogger.log("Name matched. Retrieving container id.");
+		// build url to retrieve container objects by name, so we can extract the id
+		JenkinsLogger.log("Building request url ...");
 
-						String containerId = containerObject.get("id").getAsString();
-						JenkinsLogger.log("Container ID: " + containerId);
-						return containerId;
-					}
+		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/v2/");
+		sb.append("configurations/");
+		sb.append(confId);
+		sb.append("/containers?query=vm_id:");
+		sb.append(vmId);
+		sb.append("&query=name:");
+		sb.append(containerName);
 
-				}
+		String containerId = findIdByName(sb.toString(), containerName, authCredentials);
 
-				offset = offset + 100;
-				iteration = iteration + 1;
-			}
+		if (containerId != null) {
+			JenkinsLogger.log("Name matched. Container ID: " + containerId);
+			SkytapResolutionCache.put(SkytapResolutionCache.CONTAINER, scope, containerName, authCredentials, containerId);
+			return containerId;
 		}
 
 		// if we failed to match the name throw an exception
+		SkytapNegativeCache.putMissing(SkytapResolutionCache.CONTAINER, scope, containerName, authCredentials);
 		throw new SkytapException("No container was found matching name: " + containerName);
 
 	}
 
 	public static String getEnvContainerIdFromName(String confId, String containerName, String authCredentials) throws SkytapException {
 
-		int offset = 0;
-		int iteration = 1;
-		boolean containerListExists = true;
-		while (containerListExists) {
-		// build url to retrieve vm object by name, so we can extract the id
-			JenkinsLogger.log("Building request url ...");
+		String cachedId = SkytapResolutionCache.get(SkytapResolutionCache.CONTAINER, confId, containerName, authCredentials);
+		if (cachedId != null) {
+			return cachedId;
+		}
 
-			StringBuilder sb = new StringBuilder("https://cloud.skytap.com/v2/");
-			sb.append("configurations/");
-			sb.append(confId);
-			sb.append("/containers?count=100&offset=" + String.valueOf(offset) + "&query=name:");
-			sb.append(containerName);
-			String getVmIdURL = sb.toString();
+		if (SkytapNegativeCache.isMissing(SkytapResolutionCache.CONTAINER, confId, containerName, authCredentials)) {
+			throw new SkytapException("No container was found matching name: " + containerName);
+		}
 
-			// create request
-			HttpGet hg = SkytapUtils.buildHttpGetRequest(getVmIdURL, authCredentials);
+		// build url to retrieve container objects by name, so we can extract the id
+		JenkinsLogger.log("Building request url ...");
 
-			// execute request
-			String hgResponse = "";
+		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/v2/");
+		sb.append("configurations/");
+		sb.append(confId);
+		sb.append("/containers?query=name:");
+		sb.append(containerName);
 
-			hgResponse = SkytapUtils.executeHttpRequest(hg);
+		String containerId = findIdByName(sb.toString(), containerName, authCredentials);
 
-			// check for errors
-			SkytapUtils.checkResponseForErrors(hgResponse);
+		if (containerId != null) {
+			JenkinsLogger.log("Name matched. Container ID: " + containerId);
+			SkytapResolutionCache.put(SkytapResolutionCache.CONTAINER, confId, containerName, authCredentials, containerId);
+			return containerId;
+		}
 
-			// find vm that matches name
+		// if we failed to match the name throw an exception
+		SkytapNegativeCache.putMissing(SkytapResolutionCache.CONTAINER, confId, containerName, authCredentials);
+		throw new SkytapException("No container was found matching name: " + containerName);
 
-			JsonParser parser = new JsonParser();
-			JsonElement je = parser.parse(hgResponse);
-			JsonArray containerArray = je.getAsJsonArray();
-			if (containerArray == null) {
-				containerListExists = false;
-			} else {
+	}
 
-				JenkinsLogger.log("Iterating through container array " + String.valueOf(iteration) + " to match name: " + containerName);
+	/**
+	 * Pages through a Skytap list, scanning each page for an item with the
+	 * given name.
+	 *
+	 * @param url
+	 *            url of the list, without count and offset
+	 * @param name
+	 * @param authCredentials
+	 * @return id of the first item with the name, or null if there is none
+	 * @throws SkytapException
+	 */
+	private static String findIdByName(String url, String name,
+			String authCredentials) throws SkytapException {
 
-				Iterator iter = containerArray.iterator();
+		SkytapPager<SkytapNameScanner.Result> pager = new SkytapPager<SkytapNameScanner.Result>(
+				url, authCredentials, new SkytapNameScanner(name));
 
-				while(iter.hasNext()){
-					JsonObject containerObject = (JsonObject)iter.next();
-					JenkinsLogger.log(containerObject.toString());
-					String currentName = containerObject.get("name").getAsString();
-					JenkinsLogger.log("Found container with name: " + currentName);
+		try {
+			int pageNumber = 1;
 
-					if(currentName.equals(containerName)){
-						JenkinsLogger.log("Name matched. Retrieving container id.");
+			while (pager.hasNextPage()) {
+				JenkinsLogger.log("Scanning page " + pageNumber
+						+ " to match name: " + name);
 
-						String containerId = containerObject.get("id").getAsString();
-						JenkinsLogger.log("Container ID: " + containerId);
-						return containerId;
-					}
+				SkytapNameScanner.Result result = pager.nextPage();
 
+				if (result.getId() != null) {
+					return result.getId();
 				}
-				offset = offset + 100;
-				iteration = iteration + 1;
 
+				pageNumber++;
 			}
+		} finally {
+			pager.close();
 		}
 
-		// if we failed to match the name throw an exception
-		throw new SkytapException("No container was found matching name: " + containerName);
-
+		return null;
 	}
 
 	/**
@@ -425,7 +452,7 @@ public class SkytapUtils {
 	 * @param unencodedCredential
 	 * @return
 	 */
-	private static String encodeAuthCredentials(String unencodedCredential) {
+	static String encodeAuthCredentials(String unencodedCredential) {
 
 		byte[] encoded = Base64.encodeBase64(unencodedCredential.getBytes());
 
@@ -470,6 +497,7 @@ public class SkytapUtils {
 
 		hg.addHeader("Authorization", authHeaderValue);
 		hg.addHeader("Accept", "application/json");
+		hg.addHeader("Accept-Encoding", "gzip");
 		hg.addHeader("Content-Type", "application/json");
 
 		JenkinsLogger.log("HTTP GET Request: " + hg.toString());
@@ -492,6 +520,7 @@ public class SkytapUtils {
 
 		hp.addHeader("Authorization", authHeaderValue);
 		hp.addHeader("Accept", "application/json");
+		hp.addHeader("Accept-Encoding", "gzip");
 		hp.addHeader("Content-Type", "application/json");
 
 		JenkinsLogger.log("HTTP POST Request: " + hp.toString());
@@ -499,6 +528,23 @@ public class SkytapUtils {
 		return hp;
 	}
 
+	/**
+	 * Returns an http post request object with a json body.
+	 *
+	 * @param requestUrl
+	 * @param AuthToken
+	 * @param jsonBody
+	 * @return
+	 */
+	public static HttpPost buildHttpPostRequest(String requestUrl,
+			String AuthToken, String jsonBody) {
+
+		HttpPost hp = buildHttpPostRequest(requestUrl, AuthToken);
+		hp.setEntity(createJsonEntity(jsonBody));
+
+		return hp;
+	}
+
 	/**
 	 * This method returns an http put request object, given a url and the
 	 * encoded Skytap authorization token.
@@ -515,6 +561,7 @@ public class SkytapUtils {
 
 		httpput.addHeader("Authorization", authHeaderValue);
 		httpput.addHeader("Accept", "application/json");
+		httpput.addHeader("Accept-Encoding", "gzip");
 		httpput.addHeader("Content-Type", "application/json");
 
 		JenkinsLogger.log("HTTP PUT Request: " + httpput.toString());
@@ -522,6 +569,42 @@ public class SkytapUtils {
 		return httpput;
 	}
 
+	/**
+	 * Returns an http put request object with a json body.
+	 *
+	 * @param requestUrl
+	 * @param AuthToken
+	 * @param jsonBody
+	 * @return
+	 */
+	public static HttpPut buildHttpPutRequest(String requestUrl,
+			String AuthToken, String jsonBody) {
+
+		HttpPut httpput = buildHttpPutRequest(requestUrl, AuthToken);
+		httpput.setEntity(createJsonEntity(jsonBody));
+
+		return httpput;
+	}
+
+	/**
+	 * Packages a json string as a request body. Bodies larger than
+	 * GZIP_THRESHOLD_BYTES are gzip compressed.
+	 *
+	 * @param json
+	 * @return entity
+	 */
+	public static HttpEntity createJsonEntity(String json) {
+
+		StringEntity entity = new StringEntity(json,
+				ContentType.APPLICATION_JSON);
+
+		if (entity.getContentLength() > GZIP_THRESHOLD_BYTES) {
+			return new GzipCompressingEntity(entity);
+		}
+
+		return entity;
+	}
+
 	/**
 	 * This method returns an http delete request object, given a url and the
 	 * encoded Skytap authorization token.
@@ -538,6 +621,7 @@ public class SkytapUtils {
 
 		hd.addHeader("Authorization", authHeaderValue);
 		hd.addHeader("Accept", "application/json");
+		hd.addHeader("Accept-Encoding", "gzip");
 		hd.addHeader("Content-Type", "application/json");
 
 		JenkinsLogger.log("HTTP DELETE Request: " + hd.toString());
@@ -547,7 +631,8 @@ public class SkytapUtils {
 
 	/**
 	 * Utility method to execute any type of http request (except delete), to
-	 * catch any exceptions thrown and return the response string.
+	 * catch any exceptions thrown and return the response string. A GET which
+	 * is identical to one already in flight waits for and shares its response.
 	 *
 	 * @param hr
 	 * @return
@@ -555,58 +640,114 @@ public class SkytapUtils {
 	 * @throws IOException
 	 * @throws ParseException
 	 */
-	public static String executeHttpRequest(HttpRequestBase hr)
+	public static String executeHttpRequest(final HttpRequestBase hr)
+			throws SkytapException {
+
+		if (!(hr instanceof HttpGet)) {
+			return sendHttpRequest(hr);
+		}
+
+		// identical GETs made with the same credentials share one response
+		return SkytapRequestCoalescer.execute(getRequestKey(hr),
+				new Callable<String>() {
+					public String call() throws SkytapException {
+						return sendHttpRequest(hr);
+					}
+				});
+	}
+
+	/**
+	 * Identifies a request by its method, URL and credentials.
+	 *
+	 * @param hr
+	 * @return key
+	 */
+	static String getRequestKey(HttpRequestBase hr) {
+
+		Header authHeader = hr.getFirstHeader("Authorization");
+
+		return hr.getMethod() + " " + hr.getURI() + " "
+				+ (authHeader == null ? "" : authHeader.getValue());
+	}
+
+	/**
+	 * Executes a request and passes the response to the given handler, which
+	 * may read the body as a stream. Unlike executeHttpRequest(HttpRequestBase)
+	 * the response is neither shared nor cached.
+	 *
+	 * @param hr
+	 * @param handler
+	 * @return result of the handler, or null if no response was received
+	 * @throws SkytapException
+	 */
+	public static <T> T executeHttpRequest(HttpRequestBase hr,
+			SkytapResponseHandler<T> handler) throws SkytapException {
+		return sendHttpRequest(hr, handler);
+	}
+
+	/**
+	 * Like executeHttpRequest(HttpRequestBase), but throws a
+	 * SkytapNotFoundException if Skytap answers 404, so that callers can tell
+	 * a missing object from other errors.
+	 *
+	 * @param hr
+	 * @return response body
+	 * @throws SkytapException
+	 */
+	public static String executeHttpRequestForResource(HttpRequestBase hr)
+			throws SkytapException {
+
+		String responseString = sendHttpRequest(hr,
+				new SkytapResponseHandler<String>() {
+					public String handleResponse(HttpResponse response)
+							throws IOException, SkytapException {
+
+						String body = response.getEntity() == null ? ""
+								: EntityUtils.toString(response.getEntity(),
+										"UTF-8");
+
+						if (response.getStatusLine().getStatusCode() == 404) {
+							throw new SkytapNotFoundException(response
+									.getStatusLine() + " " + body);
+						}
+
+						return body;
+					}
+				});
+
+		return responseString == null ? "" : responseString;
+	}
+
+	private static String sendHttpRequest(HttpRequestBase hr)
 			throws SkytapException {
 
+		String responseString = sendHttpRequest(hr,
+				SkytapResponseCache.newResponseHandler(hr));
+
+		return responseString == null ? "" : responseString;
+	}
+
+	private static <T> T sendHttpRequest(HttpRequestBase hr,
+			SkytapResponseHandler<T> handler) throws SkytapException {
+
 		boolean retryHttpRequest = true;
-		int retryCount = 1;
-		String responseString = "";
+		T result = null;
 
-		//Proxy Support
-		boolean useproxy = false;
-		String proxyHost = System.getProperty("http.proxyHost");
-		String proxyPortStr = System.getProperty("http.proxyPort");
-		String proxyProtocol = null;
-		int proxyPort = 0;
-		HttpHost proxy = null;
-
-		if(proxyHost == null)
-		{
-			//Check for https settings
-			proxyHost = System.getProperty("https.proxyHost");
-			proxyPortStr = System.getProperty("https.proxyPort");
-
-				if(proxyHost != null)
-				{
-					//Https Proxy Found
-					proxyPort = Integer.parseInt(proxyPortStr);
-					proxyProtocol = "https";
-					useproxy = true;
-				}
-		} else {
-				proxyPort = Integer.parseInt(proxyPortStr);
-				proxyProtocol = "http";
-				useproxy = true;
-		}
+		// shared pooled client - connections are reused across requests
+		HttpClient httpclient = SkytapHttpClient.getClient();
+
+		// decides which failures are retried and how long to wait
+		RetryPolicy retryPolicy = getRetryPolicy();
+
+		long startTime = System.currentTimeMillis();
+		int attempt = 0;
 
 		while (retryHttpRequest == true) {
-			HttpClient httpclient = new DefaultHttpClient();
-			//
-			// Set timeouts for httpclient requests to 60 seconds
-			//
-			HttpConnectionParams.setConnectionTimeout(httpclient.getParams(),
-					60000);
-			HttpConnectionParams.setSoTimeout(httpclient.getParams(), 60000);
-			//
-			//Check to see if a proxy is set
-			if (useproxy)
-			{
-				//Use proxy settings
-				proxy = new HttpHost(proxyHost, proxyPort, proxyProtocol);
-				httpclient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,proxy);
-			}
 
-			responseString = "";
+			attempt = attempt + 1;
+			long retryDelay = -1;
+
+			result = null;
 			HttpResponse response = null;
 			try {
 				Date myDate = new Date();
@@ -614,40 +755,47 @@ public class SkytapUtils {
 						"yyyy-MM-dd:HH-mm-ss");
 				String myDateString = sdf.format(myDate);
 
-				if(useproxy)
-					JenkinsLogger.log(myDateString + "\n" + "Using proxy: " + proxyProtocol + "://" + proxyHost + ":" + proxyPort);
-
 				JenkinsLogger.log(myDateString + "\n" + "Executing Request: "
 						+ hr.getRequestLine());
-				response = httpclient.execute(hr);
+				waitForRateLimit(hr);
+				response = executeThroughCircuitBreaker(httpclient, hr);
 
 				String responseStatusLine = response.getStatusLine().toString();
-				if ((responseStatusLine.contains("423 Locked")) || (responseStatusLine.contains("422 Unprocessable Entity"))) {
-					retryCount = retryCount + 1;
-					if (retryCount > 5) {
+				int statusCode = response.getStatusLine().getStatusCode();
+
+				if (statusCode == 409) {
+
+					throw new SkytapException(responseStatusLine);
+
+				} else if (retryPolicy.isRetryable(hr.getMethod(), statusCode)) {
+
+					retryDelay = retryPolicy.getRetryDelay(attempt,
+							System.currentTimeMillis() - startTime,
+							getRetryAfterMillis(response));
+
+					if (retryDelay < 0) {
 						retryHttpRequest = false;
-						JenkinsLogger
-								.error("Object busy too long - giving up.");
+						JenkinsLogger.error(responseStatusLine
+								+ " - Object busy too long - giving up.");
 					} else {
-						JenkinsLogger.log("Object busy - Retrying...");
-						try {
-							Thread.sleep(15000);
-						} catch (InterruptedException e1) {
-							JenkinsLogger.error(e1.getMessage());
-						}
+						JenkinsLogger.log(responseStatusLine
+								+ " - Object busy - Retrying in " + retryDelay
+								+ " ms...");
+						EntityUtils.consume(response.getEntity());
+						response = null;
 					}
-				} else if (responseStatusLine.contains("409 Conflict")) {
-
-					throw new SkytapException(responseStatusLine);
 
 				} else {
 
-					JenkinsLogger.log(response.getStatusLine().toString());
-					HttpEntity entity = response.getEntity();
-					responseString = EntityUtils.toString(entity, "UTF-8");
+					JenkinsLogger.log(responseStatusLine);
 					retryHttpRequest = false;
 				}
 
+				if (response != null) {
+					// response will be null if this is a retry
+					result = handler.handleResponse(response);
+				}
+
 			} catch (HttpResponseException e) {
 				retryHttpRequest = false;
 				JenkinsLogger.error("HTTP Response Code: " + e.getStatusCode());
@@ -662,35 +810,184 @@ public class SkytapUtils {
 						"yyyy-MM-dd:HH-mm-ss");
 				String myDateString = sdf.format(myDate);
 
-				retryCount = retryCount + 1;
-				if (retryCount > 5) {
+				retryDelay = retryPolicy.getRetryDelay(attempt,
+						System.currentTimeMillis() - startTime, -1);
+
+				if (Thread.currentThread().isInterrupted()) {
+					// the build was aborted, not timed out
+					retryHttpRequest = false;
+					JenkinsLogger.error(e.getMessage());
+				} else if (retryDelay < 0) {
 					retryHttpRequest = false;
 					JenkinsLogger.error("API Timeout - giving up. "
 							+ e.getMessage());
 				} else {
 					JenkinsLogger.log(myDateString + "\n" + e.getMessage()
-							+ "\n" + "API Timeout - Retrying...");
+							+ "\n" + "API Timeout - Retrying in " + retryDelay
+							+ " ms...");
 				}
 			} catch (IOException e) {
 				retryHttpRequest = false;
 				JenkinsLogger.error(e.getMessage());
 			} finally {
-				if (response != null) {
-					// response will be null if this is a timeout retry
-					HttpEntity entity = response.getEntity();
-					try {
-						responseString = EntityUtils.toString(entity, "UTF-8");
-					} catch (IOException e) {
-						// JenkinsLogger.error(e.getMessage());
-					}
+				// return the connection to the pool
+				hr.releaseConnection();
+			}
+
+			// wait outside the try block, so the connection is not held
+			if (retryHttpRequest && retryDelay > 0) {
+				try {
+					Thread.sleep(retryDelay);
+				} catch (InterruptedException e1) {
+					JenkinsLogger.error(e1.getMessage());
+					Thread.currentThread().interrupt();
+					retryHttpRequest = false;
 				}
+			}
+		}
+
+		return result;
+
+	}
 
-				httpclient.getConnectionManager().shutdown();
+	/**
+	 * Sends a request if the circuit breaker allows it and records how the
+	 * request went.
+	 *
+	 * @param httpclient
+	 * @param hr
+	 * @return response
+	 * @throws IOException
+	 * @throws SkytapCircuitOpenException
+	 */
+	private static HttpResponse executeThroughCircuitBreaker(
+			HttpClient httpclient, HttpRequestBase hr) throws IOException,
+			SkytapCircuitOpenException {
+
+		SkytapCircuitBreaker.acquirePermission();
+		long requestStart = System.currentTimeMillis();
+
+		// anything but a read may change an environment, whether or not it
+		// succeeds
+		if (!hr.getMethod().equals("GET")) {
+			SkytapResolutionCache.clearSnapshots();
+			SkytapEnvironmentRefresher.invalidate(hr.getURI().toString());
+		}
+
+		try {
+			HttpResponse response = httpclient.execute(hr);
+			SkytapCircuitBreaker.recordResponse(response.getStatusLine()
+					.getStatusCode(), System.currentTimeMillis() - requestStart);
+			return response;
+		} catch (IOException e) {
+			if (Thread.currentThread().isInterrupted()) {
+				SkytapCircuitBreaker.recordIgnored();
+			} else {
+				SkytapCircuitBreaker.recordFailure(System.currentTimeMillis()
+						- requestStart);
 			}
+			throw e;
+		} catch (RuntimeException e) {
+			SkytapCircuitBreaker.recordIgnored();
+			throw e;
 		}
+	}
 
-		return responseString;
+	/**
+	 * Blocks until the account-wide rate limit allows the API user of this
+	 * request to send it.
+	 *
+	 * @param hr
+	 * @throws InterruptedIOException
+	 */
+	private static void waitForRateLimit(HttpRequestBase hr)
+			throws InterruptedIOException {
 
+		try {
+			long waited = SkytapRateLimiter.acquire(getApiUser(hr));
+
+			if (waited > 0) {
+				JenkinsLogger.log("Waited " + waited
+						+ " ms for Skytap API rate limit.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for Skytap API rate limit.");
+		}
+	}
+
+	/**
+	 * Returns the Skytap user id from the basic auth header of a request.
+	 *
+	 * @param hr
+	 * @return userId
+	 */
+	static String getApiUser(HttpRequestBase hr) {
+
+		Header authHeader = hr.getFirstHeader("Authorization");
+
+		if (authHeader == null || !authHeader.getValue().startsWith("Basic ")) {
+			return "";
+		}
+
+		String credential = new String(Base64.decodeBase64(authHeader
+				.getValue().substring("Basic ".length()).getBytes()));
+		int separator = credential.indexOf(':');
+
+		return separator < 0 ? credential : credential.substring(0, separator);
+	}
+
+	/**
+	 * Reads the Retry-After header of a response, which holds either a number
+	 * of seconds or an HTTP date.
+	 *
+	 * @param response
+	 * @return delay in milliseconds, or -1 if no usable header was sent
+	 */
+	static long getRetryAfterMillis(HttpResponse response) {
+
+		Header retryAfter = response.getFirstHeader("Retry-After");
+
+		if (retryAfter == null || retryAfter.getValue() == null) {
+			return -1;
+		}
+
+		String value = retryAfter.getValue().trim();
+
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			// not a number of seconds, try a date
+		}
+
+		try {
+			Date retryDate = DateUtils.parseDate(value);
+			return Math.max(0, retryDate.getTime() - System.currentTimeMillis());
+		} catch (DateParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Sets the retry policy used for requests made by the current thread. A
+	 * null value reverts to the policy from the global configuration.
+	 *
+	 * @param policy
+	 */
+	public static void setRetryPolicy(RetryPolicy policy) {
+		currentRetryPolicy.set(policy);
+	}
+
+	public static RetryPolicy getRetryPolicy() {
+
+		RetryPolicy policy = currentRetryPolicy.get();
+
+		if (policy == null) {
+			return BackoffRetryPolicy.getGlobalDefault();
+		}
+
+		return policy;
 	}
 
 	/**
@@ -705,19 +1002,24 @@ public class SkytapUtils {
 
 		String responseString = "";
 
-		HttpClient httpclient = new DefaultHttpClient();
+		HttpClient httpclient = SkytapHttpClient.getClient();
 		HttpResponse response = null;
 
 		JenkinsLogger.log("Executing Request: " + hd.getRequestLine());
 
 		try {
 
-			response = httpclient.execute(hd);
+			waitForRateLimit(hd);
+			response = executeThroughCircuitBreaker(httpclient, hd);
 			String statusLine = response.getStatusLine().toString();
 			JenkinsLogger.log(statusLine);
 			HttpEntity entity = response.getEntity();
 			responseString = EntityUtils.toString(entity, "UTF-8");
 
+		} catch (SkytapCircuitOpenException e) {
+
+			JenkinsLogger.error(e.getMessage());
+
 		} catch (HttpResponseException e) {
 
 			JenkinsLogger.error("HTTP Response Code: " + e.getStatusCode());
@@ -728,14 +1030,17 @@ public class SkytapUtils {
 			JenkinsLogger.error(e.getMessage());
 		} finally {
 
-			HttpEntity entity = response.getEntity();
-			try {
-				responseString = EntityUtils.toString(entity, "UTF-8");
-			} catch (IOException e) {
-				// JenkinsLogger.error(e.getMessage());
+			if (response != null) {
+				HttpEntity entity = response.getEntity();
+				try {
+					responseString = EntityUtils.toString(entity, "UTF-8");
+				} catch (IOException e) {
+					// JenkinsLogger.error(e.getMessage());
+				}
 			}
 
-			httpclient.getConnectionManager().shutdown();
+			// return the connection to the pool
+			hd.releaseConnection();
 		}
 
 		return responseString;
@@ -866,47 +1171,182 @@ public class SkytapUtils {
 	 */
 	public static String getProjectID(String projName, String authCredentials) {
 
-		// build url
-		StringBuilder sb = new StringBuilder("https://cloud.skytap.com");
-		sb.append("/projects");
+		String cachedId = getSharedCachedId(SkytapResolutionCache.PROJECT, projName, authCredentials);
+		if (cachedId != null) {
+			return cachedId;
+		}
 
-		// create http get
-		HttpGet hg = SkytapUtils.buildHttpGetRequest(sb.toString(),
-				authCredentials);
+		if (SkytapNegativeCache.isMissing(SkytapResolutionCache.PROJECT, "", projName, authCredentials)) {
+			JenkinsLogger.error("No project matching name \"" + projName + "\""
+					+ " was found.");
+			return "";
+		}
+
+		String projectId = null;
 
-		// execute request
-		String response;
 		try {
-			response = SkytapUtils.executeHttpRequest(hg);
+			projectId = findProjectId(projName, authCredentials);
 		} catch (SkytapException e) {
 			JenkinsLogger.error("Skytap Exception: " + e.getMessage());
 			return "";
 		}
 
-		// response string will be a json array of all projects
-		JsonParser parser = new JsonParser();
-		JsonElement je = parser.parse(response);
-		JsonArray ja = je.getAsJsonArray();
-
-		Iterator itr = ja.iterator();
-		while (itr.hasNext()) {
-			JsonElement projElement = (JsonElement) itr.next();
-			String projElementName = projElement.getAsJsonObject().get("name")
-					.getAsString();
-
-			if (projElementName.equals(projName)) {
-				String projElementId = projElement.getAsJsonObject().get("id")
-						.getAsString();
-				return projElementId;
-			}
-
+		if (projectId != null) {
+			putSharedCachedId(SkytapResolutionCache.PROJECT, projName,
+					authCredentials, projectId);
+			return projectId;
 		}
 
+		SkytapNegativeCache.putMissing(SkytapResolutionCache.PROJECT, "", projName, authCredentials);
 		JenkinsLogger.error("No project matching name \"" + projName + "\""
 				+ " was found.");
 		return "";
 	}
 
+	private static String findProjectId(String projName,
+			String authCredentials) throws SkytapException {
+
+		if (System.currentTimeMillis() >= projectQueryRetryTime) {
+			return findProjectIdByQuery(projName, authCredentials);
+		}
+
+		return findProjectIdInFullList(projName, authCredentials);
+	}
+
+	/**
+	 * Asks Skytap for the projects matching the name, so that only those are
+	 * downloaded. If Skytap rejects the filtered query, the full project list
+	 * is used instead, and the query is not tried again for a while. Other
+	 * failures, such as timeouts or server errors, are thrown as they are.
+	 */
+	private static String findProjectIdByQuery(String projName,
+			String authCredentials) throws SkytapException {
+
+		String url;
+		try {
+			url = "https://cloud.skytap.com/v2/projects?query="
+					+ URLEncoder.encode("name:" + projName, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new SkytapException(e.getMessage());
+		}
+
+		RetryPolicy stepRetryPolicy = currentRetryPolicy.get();
+		setRetryPolicy(withoutRejections(getRetryPolicy()));
+
+		try {
+			// the query may match more than the exact name; the scan
+			// compares names exactly
+			return findIdByName(url, projName, authCredentials);
+		} catch (SkytapRejectedRequestException e) {
+			// other failures are not the query's fault, and are thrown
+			JenkinsLogger.log("Filtered project query was rejected: "
+					+ e.getMessage()
+					+ ". Falling back to the full project list.");
+			projectQueryRetryTime = System.currentTimeMillis()
+					+ PROJECT_QUERY_RETRY_MILLIS;
+		} finally {
+			setRetryPolicy(stepRetryPolicy);
+		}
+
+		return findProjectIdInFullList(projName, authCredentials);
+	}
+
+	/**
+	 * Wraps a retry policy so that the responses with which Skytap rejects a
+	 * query are returned at once rather than retried. 422 is retryable by
+	 * default, since Skytap also sends it while an object is busy, which
+	 * would hold up the fallback for as long as the policy retries.
+	 *
+	 * @param policy
+	 * @return policy
+	 */
+	static RetryPolicy withoutRejections(final RetryPolicy policy) {
+		return new RetryPolicy() {
+			public boolean isRetryable(String method, int statusCode) {
+				return statusCode != 400 && statusCode != 404
+						&& statusCode != 422
+						&& policy.isRetryable(method, statusCode);
+			}
+
+			public long getRetryDelay(int attempt, long elapsedMillis,
+					long serverDelayMillis) {
+				return policy.getRetryDelay(attempt, elapsedMillis,
+						serverDelayMillis);
+			}
+		};
+	}
+
+	/**
+	 * Streams the whole v1 project list into an index of every project, which
+	 * is kept for the rest of the build so the list is downloaded at most
+	 * once per build.
+	 */
+	private static String findProjectIdInFullList(String projName,
+			String authCredentials) throws SkytapException {
+
+		HttpGet hg = SkytapUtils.buildHttpGetRequest(
+				"https://cloud.skytap.com/projects", authCredentials);
+
+		Map<String, String> index = new HashMap<String, String>();
+		SkytapNameScanner.Result result = SkytapUtils.executeHttpRequest(hg,
+				new SkytapNameScanner(projName, index));
+
+		if (result == null) {
+			throw new SkytapException("No response received for "
+					+ hg.getRequestLine());
+		}
+
+		JenkinsLogger.log("Indexed " + index.size() + " projects.");
+
+		for (Map.Entry<String, String> project : index.entrySet()) {
+			SkytapResolutionCache.put(SkytapResolutionCache.PROJECT, "",
+					project.getKey(), authCredentials, project.getValue());
+		}
+
+		return result.getId();
+	}
+
+	/**
+	 * Looks up the id of a project or container registry in the cache of the
+	 * current build, then in the controller-wide cache.
+	 */
+	private static String getSharedCachedId(String type, String name,
+			String authCredentials) {
+
+		String id = SkytapResolutionCache.get(type, "", name, authCredentials);
+
+		if (id == null) {
+			id = SkytapIdCache.get(type, name, authCredentials, ID_REVALIDATOR);
+			SkytapResolutionCache.put(type, "", name, authCredentials, id);
+		}
+
+		return id;
+	}
+
+	private static void putSharedCachedId(String type, String name,
+			String authCredentials, String id) {
+		SkytapResolutionCache.put(type, "", name, authCredentials, id);
+		SkytapIdCache.put(type, name, authCredentials, id);
+	}
+
+	/**
+	 * Forgets the cached id of a project or container registry, e.g. because
+	 * Skytap answered 404 for it.
+	 *
+	 * @param type
+	 * @param name
+	 * @param authCredentials
+	 * @return true if an id was cached
+	 */
+	public static boolean evictCachedId(String type, String name,
+			String authCredentials) {
+
+		boolean evicted = SkytapResolutionCache.remove(type, "", name,
+				authCredentials);
+
+		return SkytapIdCache.evict(type, name, authCredentials) || evicted;
+	}
+
 	/**
 	 * Prepends the workspace path to a save file name as a default if user has
 	 * not provided a full path.
@@ -953,50 +1393,35 @@ public class SkytapUtils {
 	public static String getNetworkIdFromName(String confId, String netName,
 			String authCredential) throws SkytapException {
 
-		// build request url to get config info
-		StringBuilder sb = new StringBuilder("https://cloud.skytap.com/");
-		sb.append("configurations/");
-		sb.append(confId);
-		String reqUrl = sb.toString();
-
-		// create request
-		HttpGet hg = SkytapUtils.buildHttpGetRequest(reqUrl, authCredential);
-
-		// execute request
-		String httpRespBody = "";
-		httpRespBody = SkytapUtils.executeHttpRequest(hg);
-		SkytapUtils.checkResponseForErrors(httpRespBody);
-
-		// parse the response, first get the array of networks
-		JsonParser parser = new JsonParser();
-		JsonElement je = parser.parse(httpRespBody);
-		JsonArray networkArray = (JsonArray) je.getAsJsonObject().get(
-				"networks");
-
-		JenkinsLogger.log("Searching environments's networks for network: "
-				+ netName);
-
-		Iterator itr = networkArray.iterator();
-		while (itr.hasNext()) {
-			JsonElement networkElement = (JsonElement) itr.next();
-			String networkElementName = networkElement.getAsJsonObject()
-					.get("name").getAsString();
-
-			JenkinsLogger.log("Network Name: " + networkElementName);
+		String cachedId = SkytapResolutionCache.get(
+				SkytapResolutionCache.NETWORK, confId, netName, authCredential);
+		if (cachedId != null) {
+			return cachedId;
+		}
 
-			if (networkElementName.equals(netName)) {
-				String networkElementId = networkElement.getAsJsonObject()
-						.get("id").getAsString();
+		String networkId = EnvironmentSnapshot.get(confId, authCredential)
+				.getNetworkId(netName);
+		SkytapResolutionCache.put(SkytapResolutionCache.NETWORK, confId,
+				netName, authCredential, networkId);
 
-				JenkinsLogger.log("Network Name Matched.");
-				JenkinsLogger.log("Network ID: " + networkElementId);
-				return networkElementId;
-			}
+		return networkId;
+	}
 
-		}
+	/**
+	 * Finds the id of the named network in an environment which has already
+	 * been retrieved from the Skytap API.
+	 *
+	 * @param configuration
+	 * @param confId
+	 * @param netName
+	 * @return
+	 */
+	public static String getNetworkIdFromConfiguration(
+			JsonElement configuration, String confId, String netName)
+			throws SkytapException {
 
-		throw new SkytapException("No network matching name \"" + netName
-				+ "\"" + " is associated with environments id " + confId + ".");
+		return EnvironmentSnapshot.fromConfiguration(confId, configuration)
+				.getNetworkId(netName);
 	}
 
 }
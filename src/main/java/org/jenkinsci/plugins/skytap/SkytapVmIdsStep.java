@@ -0,0 +1,195 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.inject.Inject;
+
+/**
+ * Pipeline step which resolves several VM names of an environment with a
+ * single request for its vm list, like GetVMIDsStep does for freestyle
+ * builds, and returns the ids keyed by name, e.g.
+ *
+ * <pre>
+ * def ids = skytapVmIds environmentID: '123456', vmNames: 'web, db', credentialsId: 'skytap-api'
+ * </pre>
+ *
+ * The lookup runs on a Jenkins pool thread rather than on the thread which
+ * runs the Pipeline script.
+ */
+public class SkytapVmIdsStep extends AbstractStepImpl {
+
+	private final String environmentID;
+	private final String vmNames;
+	private final String credentialsId;
+
+	@DataBoundConstructor
+	public SkytapVmIdsStep(String environmentID, String vmNames,
+			String credentialsId) {
+		this.environmentID = environmentID;
+		this.vmNames = vmNames;
+		this.credentialsId = credentialsId;
+	}
+
+	public String getEnvironmentID() {
+		return environmentID;
+	}
+
+	public String getVmNames() {
+		return vmNames;
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	@Extension(optional = true)
+	public static final class DescriptorImpl extends
+			AbstractStepDescriptorImpl {
+
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "skytapVmIds";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Get Skytap VM IDs";
+		}
+
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item) {
+			return SkytapEnvironmentStateStep.fillCredentialsIdItems(item);
+		}
+	}
+
+	public static final class Execution extends AbstractStepExecutionImpl {
+
+		private static final long serialVersionUID = 1L;
+
+		@Inject(optional = true)
+		private transient SkytapVmIdsStep step;
+
+		@StepContextParameter
+		private transient TaskListener listener;
+
+		@StepContextParameter
+		private transient Run<?, ?> run;
+
+		private transient Future<?> task;
+
+		@Override
+		public boolean start() throws Exception {
+
+			final String confId = step.getEnvironmentID();
+			final List<String> names = GetVMIDsStep.splitNames(step
+					.getVmNames() == null ? "" : step.getVmNames());
+
+			if (confId == null || confId.trim().equals("")) {
+				throw new AbortException(
+						"No value was provided for environment ID.");
+			}
+
+			if (names.isEmpty()) {
+				throw new AbortException("No VM names were provided.");
+			}
+
+			final String authCredentials;
+			try {
+				authCredentials = SkytapEnvironmentStateStep
+						.lookupAuthCredentials(run, step.getCredentialsId());
+			} catch (SkytapException e) {
+				throw new AbortException(e.getMessage());
+			}
+
+			listener.getLogger().println(
+					"Resolving " + names.size() + " VM names in environment "
+							+ confId + ".");
+
+			task = Computer.threadPoolForRemoting.submit(new Runnable() {
+				public void run() {
+
+					// SkytapUtils logs to the build of a freestyle step
+					JenkinsLogger.setMuted(true);
+
+					try {
+						getContext().onSuccess(
+								new LinkedHashMap<String, String>(SkytapUtils
+										.getVMIDsFromNames(confId, names,
+												authCredentials)));
+					} catch (SkytapException e) {
+						getContext().onFailure(
+								new AbortException(e.getMessage()));
+					} catch (RuntimeException e) {
+						getContext().onFailure(e);
+					} finally {
+						JenkinsLogger.setMuted(false);
+					}
+				}
+			});
+
+			// the step completes from the pool thread
+			return false;
+		}
+
+		@Override
+		public void stop(Throwable cause) throws Exception {
+
+			if (task != null) {
+				task.cancel(true);
+			}
+
+			getContext().onFailure(cause);
+		}
+
+		@Override
+		public void onResume() {
+			super.onResume();
+
+			// the lookup does not survive a restart
+			getContext().onFailure(
+					new AbortException("Resolving VM IDs was interrupted by a restart of Jenkins."));
+		}
+	}
+
+}
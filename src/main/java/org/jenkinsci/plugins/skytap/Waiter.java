@@ -0,0 +1,458 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Repeats a check until it succeeds, pausing between attempts according to
+ * a schedule, for at most a number of attempts and until a deadline. Every
+ * busy/availability loop of the build steps runs on a Waiter, so the retry
+ * counts, pauses and logging of those loops are tuned in one place.
+ *
+ * Pauses are plain sleeps by default. A wait on a Skytap resource can pause
+ * on the shared SkytapPoller instead, which ends the pause as soon as the
+ * resource is in the state waited for. Every wait stops while the Skytap
+ * API circuit breaker is open, and can be cancelled from another thread.
+ * The outcome, number of attempts and time spent are logged and returned.
+ */
+public final class Waiter {
+
+	private static final Logger LOGGER = Logger.getLogger(Waiter.class
+			.getName());
+
+	private final String description;
+	private final Condition condition;
+	private final Schedule schedule;
+	private final int maxAttempts;
+	private final long timeoutMillis;
+	private final Pause pause;
+	private final Cancellation cancellation;
+
+	/**
+	 * Check repeated by a waiter.
+	 */
+	public interface Condition {
+
+		/**
+		 * @param attempt
+		 *            number of this attempt, starting at 1
+		 * @return true once the wait is over
+		 * @throws SkytapException
+		 *             to give up waiting
+		 */
+		boolean isMet(int attempt) throws SkytapException;
+	}
+
+	/**
+	 * Time to pause before each attempt.
+	 */
+	public interface Schedule {
+
+		/**
+		 * @param attempt
+		 *            number of the next attempt, starting at 1
+		 * @return pause before it
+		 */
+		long getDelayMillis(int attempt);
+	}
+
+	/**
+	 * How a waiter pauses between attempts.
+	 */
+	public interface Pause {
+
+		/**
+		 * Pauses for the given time, or less if there is reason to try again
+		 * sooner.
+		 *
+		 * @param delayMillis
+		 * @param cancellation
+		 * @throws SkytapException
+		 */
+		void pause(long delayMillis, Cancellation cancellation)
+				throws SkytapException;
+	}
+
+	/**
+	 * @param description
+	 *            what is waited for, for the build log
+	 * @param condition
+	 * @param schedule
+	 * @param maxAttempts
+	 * @param timeoutMillis
+	 *            time after which no further attempt is made, or 0 for none
+	 */
+	public Waiter(String description, Condition condition, Schedule schedule,
+			int maxAttempts, long timeoutMillis) {
+		this(description, condition, schedule, maxAttempts, timeoutMillis,
+				SLEEP, new Cancellation());
+	}
+
+	public Waiter(String description, Condition condition, Schedule schedule,
+			int maxAttempts, long timeoutMillis, Pause pause) {
+		this(description, condition, schedule, maxAttempts, timeoutMillis,
+				pause, new Cancellation());
+	}
+
+	/**
+	 * @param description
+	 *            what is waited for, for the build log
+	 * @param condition
+	 * @param schedule
+	 * @param maxAttempts
+	 * @param timeoutMillis
+	 *            time after which no further attempt is made, or 0 for none
+	 * @param pause
+	 * @param cancellation
+	 */
+	public Waiter(String description, Condition condition, Schedule schedule,
+			int maxAttempts, long timeoutMillis, Pause pause,
+			Cancellation cancellation) {
+		this.description = description;
+		this.condition = condition;
+		this.schedule = schedule;
+		this.maxAttempts = maxAttempts;
+		this.timeoutMillis = timeoutMillis;
+		this.pause = pause;
+		this.cancellation = cancellation;
+	}
+
+	/**
+	 * Waits until the condition is met, the attempts or the time run out, or
+	 * the wait is cancelled.
+	 *
+	 * @return outcome of the wait
+	 * @throws SkytapException
+	 *             if the condition or a pause gave up, or the Skytap API is
+	 *             unavailable
+	 */
+	public Result waitUntil() throws SkytapException {
+
+		long start = System.currentTimeMillis();
+		long deadline = timeoutMillis > 0 ? start + timeoutMillis
+				: Long.MAX_VALUE;
+
+		int attempts = 0;
+		boolean met = false;
+		String failure = null;
+
+		try {
+
+			while (attempts < maxAttempts && !cancellation.isCancelled()) {
+
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+
+				long delay = Math.min(schedule.getDelayMillis(attempts + 1),
+						remaining);
+
+				if (delay > 0) {
+					JenkinsLogger.log("Waiting up to "
+							+ TimeUnit.MILLISECONDS.toSeconds(delay)
+							+ " seconds before the next attempt.");
+					pause.pause(delay, cancellation);
+
+					if (cancellation.isCancelled()) {
+						break;
+					}
+				}
+
+				// stop polling while the Skytap API is known to be down
+				if (SkytapCircuitBreaker.isOpen()) {
+					throw new SkytapCircuitOpenException(
+							"Skytap API is unavailable.");
+				}
+
+				attempts++;
+
+				if (condition.isMet(attempts)) {
+					met = true;
+					break;
+				}
+			}
+
+		} catch (SkytapException e) {
+			failure = e.getMessage();
+			throw e;
+		} finally {
+			report(met, failure, attempts, System.currentTimeMillis() - start);
+		}
+
+		return new Result(met, cancellation.isCancelled(), attempts,
+				System.currentTimeMillis() - start);
+	}
+
+	private void report(boolean met, String failure, int attempts,
+			long elapsedMillis) {
+
+		String outcome = met ? "done" : failure != null ? "failed"
+				: cancellation.isCancelled() ? "cancelled" : "gave up";
+
+		String message = description + ": " + outcome + " after " + attempts
+				+ " attempt(s) in "
+				+ TimeUnit.MILLISECONDS.toSeconds(elapsedMillis) + " seconds.";
+
+		JenkinsLogger.log(message);
+		LOGGER.log(Level.FINE, message);
+	}
+
+	/**
+	 * No pause before the first attempt, then the same pause before each
+	 * further one.
+	 *
+	 * @param seconds
+	 * @return schedule
+	 */
+	public static Schedule every(final int seconds) {
+		return new Schedule() {
+			public long getDelayMillis(int attempt) {
+				return attempt == 1 ? 0 : TimeUnit.SECONDS.toMillis(seconds);
+			}
+		};
+	}
+
+	/**
+	 * Pauses which double each time, starting at twice the base before the
+	 * first attempt.
+	 *
+	 * @param baseSeconds
+	 * @return schedule
+	 */
+	public static Schedule doubling(final int baseSeconds) {
+		return new Schedule() {
+			public long getDelayMillis(int attempt) {
+				return TimeUnit.SECONDS.toMillis((long) Math.pow(2, attempt)
+						* baseSeconds);
+			}
+		};
+	}
+
+	/**
+	 * Pauses which grow by the base each time, starting at the base before
+	 * the first attempt.
+	 *
+	 * @param baseSeconds
+	 * @return schedule
+	 */
+	public static Schedule linear(final int baseSeconds) {
+		return new Schedule() {
+			public long getDelayMillis(int attempt) {
+				return TimeUnit.SECONDS.toMillis((long) attempt * baseSeconds);
+			}
+		};
+	}
+
+	/**
+	 * The given schedule, with a pause before the first attempt as well.
+	 *
+	 * @param initialSeconds
+	 * @param schedule
+	 * @return schedule
+	 */
+	public static Schedule delayed(final int initialSeconds,
+			final Schedule schedule) {
+		return new Schedule() {
+			public long getDelayMillis(int attempt) {
+				return attempt == 1 ? TimeUnit.SECONDS.toMillis(initialSeconds)
+						: schedule.getDelayMillis(attempt);
+			}
+		};
+	}
+
+	/**
+	 * Pauses by sleeping.
+	 */
+	public static final Pause SLEEP = new Pause() {
+		public void pause(long delayMillis, Cancellation cancellation)
+				throws SkytapException {
+			cancellation.sleep(delayMillis);
+		}
+	};
+
+	/**
+	 * Pauses on a watch, so that the pause ends as soon as the watched
+	 * resource is in the state waited for.
+	 *
+	 * @param watch
+	 * @return pause
+	 */
+	public static Pause awaiting(final SkytapPoller.Watch watch) {
+		return new Pause() {
+			public void pause(long delayMillis, Cancellation cancellation)
+					throws SkytapException {
+
+				cancellation.register(watch);
+				try {
+					watch.await(delayMillis);
+				} finally {
+					cancellation.unregister(watch);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Pauses until the environment is idle, but for at least the scheduled
+	 * time, e.g. before retrying a request Skytap refused while it was busy.
+	 * Once the scheduled time is up, the pause lasts at most as long again.
+	 *
+	 * @param confId
+	 * @param authCredentials
+	 * @return pause
+	 */
+	public static Pause untilIdle(final String confId,
+			final String authCredentials) {
+		return new Pause() {
+			public void pause(long delayMillis, Cancellation cancellation)
+					throws SkytapException {
+
+				SkytapPoller.Watch watch = EnvironmentSnapshot.watchUntilIdle(
+						confId, authCredentials, delayMillis);
+
+				cancellation.register(watch);
+				try {
+					if (!watch.await(2 * delayMillis)) {
+						JenkinsLogger.log("Environment is still busy.");
+					}
+				} finally {
+					cancellation.unregister(watch);
+					watch.cancel(false);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Condition which is met once the watch has completed, for use with
+	 * awaiting(watch).
+	 *
+	 * @param watch
+	 * @return condition
+	 */
+	public static Condition satisfied(final SkytapPoller.Watch watch) {
+		return new Condition() {
+			public boolean isMet(int attempt) throws SkytapException {
+				return watch.isDone() && watch.await(0);
+			}
+		};
+	}
+
+	/**
+	 * Cancels a wait from another thread, e.g. when the build is aborted.
+	 * Sleeping and watching waiters wake up at once.
+	 */
+	public static final class Cancellation {
+
+		private boolean cancelled;
+		private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+		public synchronized void cancel() {
+
+			cancelled = true;
+
+			for (Future<?> future : pending) {
+				future.cancel(true);
+			}
+			pending.clear();
+
+			notifyAll();
+		}
+
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		synchronized void register(Future<?> future) {
+			if (cancelled) {
+				future.cancel(true);
+			} else {
+				pending.add(future);
+			}
+		}
+
+		synchronized void unregister(Future<?> future) {
+			pending.remove(future);
+		}
+
+		synchronized void sleep(long millis) throws SkytapException {
+
+			long end = System.currentTimeMillis() + millis;
+			long remaining = millis;
+
+			try {
+				while (!cancelled && remaining > 0) {
+					wait(remaining);
+					remaining = end - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				// an aborted build interrupts its thread
+				cancel();
+				Thread.currentThread().interrupt();
+				throw new SkytapException("Interrupted while waiting.");
+			}
+		}
+	}
+
+	/**
+	 * Outcome of a wait.
+	 */
+	public static final class Result {
+
+		private final boolean met;
+		private final boolean cancelled;
+		private final int attempts;
+		private final long elapsedMillis;
+
+		Result(boolean met, boolean cancelled, int attempts,
+				long elapsedMillis) {
+			this.met = met;
+			this.cancelled = cancelled;
+			this.attempts = attempts;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public boolean isMet() {
+			return met;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+	}
+
+}
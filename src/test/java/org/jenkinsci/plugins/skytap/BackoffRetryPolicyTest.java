@@ -0,0 +1,157 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class BackoffRetryPolicyTest {
+
+	private final BackoffRetryPolicy policy = new BackoffRetryPolicy(2, 30,
+			120, BackoffRetryPolicy.DEFAULT_RETRYABLE_STATUS_CODES);
+
+	@Test
+	public void busyAndThrottledResponsesAreRetriedForAnyMethod() {
+		for (int code : new int[] { 422, 423, 429, 503 }) {
+			assertTrue(policy.isRetryable("GET", code));
+			assertTrue(policy.isRetryable("POST", code));
+		}
+	}
+
+	@Test
+	public void gatewayErrorsAreOnlyRetriedForIdempotentMethods() {
+		for (int code : new int[] { 502, 504 }) {
+			assertTrue(policy.isRetryable("GET", code));
+			assertTrue(policy.isRetryable("PUT", code));
+			assertTrue(policy.isRetryable("DELETE", code));
+			assertFalse(policy.isRetryable("POST", code));
+		}
+	}
+
+	@Test
+	public void otherCodesAreNotRetried() {
+		assertFalse(policy.isRetryable("GET", 200));
+		assertFalse(policy.isRetryable("GET", 404));
+		assertFalse(policy.isRetryable("GET", 500));
+	}
+
+	@Test
+	public void statusCodeListIsParsedLeniently() {
+
+		BackoffRetryPolicy custom = new BackoffRetryPolicy(2, 30, 120,
+				" 409,500  foo, ,423 ");
+
+		assertTrue(custom.isRetryable("GET", 409));
+		assertTrue(custom.isRetryable("GET", 500));
+		assertTrue(custom.isRetryable("GET", 423));
+		assertFalse(custom.isRetryable("GET", 429));
+	}
+
+	@Test
+	public void invalidSettingsFallBackToDefaults() {
+
+		BackoffRetryPolicy custom = new BackoffRetryPolicy(0, 1, -1, null);
+
+		assertEquals(BackoffRetryPolicy.DEFAULT_BASE_DELAY_SECONDS,
+				custom.getBaseDelaySeconds());
+		assertEquals(BackoffRetryPolicy.DEFAULT_BASE_DELAY_SECONDS,
+				custom.getMaxDelaySeconds());
+		assertEquals(BackoffRetryPolicy.DEFAULT_MAX_ELAPSED_SECONDS,
+				custom.getMaxElapsedSeconds());
+		assertEquals(BackoffRetryPolicy.DEFAULT_RETRYABLE_STATUS_CODES,
+				custom.getRetryableStatusCodes());
+	}
+
+	@Test
+	public void retryAfterTakesPrecedence() {
+		assertEquals(45000, policy.getRetryDelay(1, 0, 45000));
+		assertEquals(0, policy.getRetryDelay(5, 0, 0));
+	}
+
+	@Test
+	public void jitteredDelayStaysWithinTheBackoffCeiling() {
+		for (int i = 0; i < 200; i++) {
+			assertInRange(policy.getRetryDelay(1, 0, -1), 2000);
+			assertInRange(policy.getRetryDelay(2, 0, -1), 4000);
+			assertInRange(policy.getRetryDelay(4, 0, -1), 16000);
+			assertInRange(policy.getRetryDelay(50, 0, -1), 30000);
+		}
+	}
+
+	@Test
+	public void retriesStopOnceTheElapsedCapWouldBePassed() {
+
+		assertEquals(-1, policy.getRetryDelay(1, 100000, 30000));
+		assertEquals(20000, policy.getRetryDelay(1, 100000, 20000));
+		assertEquals(-1, policy.getRetryDelay(1, 120001, -1));
+
+		BackoffRetryPolicy noRetries = new BackoffRetryPolicy(2, 30, 0, null);
+		assertEquals(-1, noRetries.getRetryDelay(1, 0, 1));
+	}
+
+	@Test
+	public void retryAfterInSeconds() {
+		assertEquals(30000, SkytapUtils.getRetryAfterMillis(response(" 30 ")));
+		assertEquals(0, SkytapUtils.getRetryAfterMillis(response("-5")));
+	}
+
+	@Test
+	public void retryAfterAsDate() {
+
+		long delay = SkytapUtils.getRetryAfterMillis(response(DateUtils
+				.formatDate(new Date(System.currentTimeMillis() + 60000))));
+
+		// the date has whole second precision
+		assertTrue(delay > 55000 && delay <= 60000);
+
+		assertEquals(0, SkytapUtils.getRetryAfterMillis(response(DateUtils
+				.formatDate(new Date(System.currentTimeMillis() - 60000)))));
+	}
+
+	@Test
+	public void missingOrUnreadableRetryAfterIsIgnored() {
+		assertEquals(-1, SkytapUtils.getRetryAfterMillis(response(null)));
+		assertEquals(-1, SkytapUtils.getRetryAfterMillis(response("soon")));
+	}
+
+	private static void assertInRange(long delay, long ceiling) {
+		assertTrue(delay + " not below " + ceiling, delay >= 0
+				&& delay < ceiling);
+	}
+
+	private static HttpResponse response(String retryAfter) {
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+				503, "Service Unavailable");
+		if (retryAfter != null) {
+			response.setHeader("Retry-After", retryAfter);
+		}
+		return response;
+	}
+
+}
@@ -0,0 +1,195 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import org.jenkinsci.plugins.skytap.SkytapCircuitBreaker.State;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SkytapCircuitBreakerTest {
+
+	@Before
+	public void setUp() {
+		SkytapCircuitBreaker.reset();
+	}
+
+	@After
+	public void tearDown() {
+		SkytapCircuitBreaker.reset();
+	}
+
+	@Test
+	public void staysClosedUntilEnoughCallsHaveFailed() {
+
+		for (int i = 0; i < 9; i++) {
+			SkytapCircuitBreaker.recordFailure(100);
+		}
+
+		// too few calls to judge the failure rate by
+		assertEquals(State.CLOSED, SkytapCircuitBreaker.getState());
+
+		SkytapCircuitBreaker.recordFailure(100);
+
+		assertEquals(State.OPEN, SkytapCircuitBreaker.getState());
+		assertTrue(SkytapCircuitBreaker.isOpen());
+		assertEquals(1, SkytapCircuitBreaker.getTimesOpened());
+	}
+
+	@Test
+	public void opensAtTheFailureRateThreshold() {
+
+		for (int i = 0; i < 6; i++) {
+			SkytapCircuitBreaker.recordResponse(200, 100);
+		}
+		for (int i = 0; i < 4; i++) {
+			SkytapCircuitBreaker.recordResponse(503, 100);
+		}
+
+		assertEquals(40, SkytapCircuitBreaker.getFailureRate());
+		assertEquals(State.CLOSED, SkytapCircuitBreaker.getState());
+
+		// the oldest success drops out of the window once it is full
+		for (int i = 0; i < 10; i++) {
+			SkytapCircuitBreaker.recordResponse(200, 100);
+		}
+		assertEquals(20, SkytapCircuitBreaker.getBufferedCalls());
+		assertEquals(20, SkytapCircuitBreaker.getFailureRate());
+
+		for (int i = 0; i < 6; i++) {
+			SkytapCircuitBreaker.recordResponse(500, 100);
+		}
+
+		assertEquals(State.OPEN, SkytapCircuitBreaker.getState());
+	}
+
+	@Test
+	public void clientErrorsShowTheApiIsReachable() {
+
+		for (int i = 0; i < 20; i++) {
+			SkytapCircuitBreaker.recordResponse(404, 100);
+		}
+
+		assertEquals(State.CLOSED, SkytapCircuitBreaker.getState());
+		assertEquals(0, SkytapCircuitBreaker.getFailureRate());
+	}
+
+	@Test
+	public void opensWhenCallsAreSlow() {
+
+		for (int i = 0; i < 9; i++) {
+			SkytapCircuitBreaker.recordResponse(200, 30000);
+		}
+
+		assertEquals(100, SkytapCircuitBreaker.getSlowCallRate());
+		assertEquals(0, SkytapCircuitBreaker.getFailureRate());
+		assertEquals(State.CLOSED, SkytapCircuitBreaker.getState());
+
+		SkytapCircuitBreaker.recordResponse(200, 30000);
+
+		assertEquals(State.OPEN, SkytapCircuitBreaker.getState());
+	}
+
+	@Test
+	public void rejectsCallsWhileOpen() {
+
+		open();
+
+		try {
+			SkytapCircuitBreaker.acquirePermission();
+			fail("permission granted while open");
+		} catch (SkytapCircuitOpenException e) {
+			// expected
+		}
+
+		assertEquals(1, SkytapCircuitBreaker.getRejectedCalls());
+	}
+
+	@Test
+	public void closesAfterSuccessfulTrialCalls() throws Exception {
+
+		open();
+		SkytapCircuitBreaker.endOpenPeriod();
+
+		assertEquals(State.HALF_OPEN, SkytapCircuitBreaker.getState());
+		assertFalse(SkytapCircuitBreaker.isOpen());
+
+		for (int i = 0; i < 3; i++) {
+			SkytapCircuitBreaker.acquirePermission();
+		}
+
+		// every trial call is in flight
+		try {
+			SkytapCircuitBreaker.acquirePermission();
+			fail("more trial calls permitted than allowed");
+		} catch (SkytapCircuitOpenException e) {
+			// expected
+		}
+
+		SkytapCircuitBreaker.recordResponse(200, 100);
+		SkytapCircuitBreaker.recordResponse(200, 100);
+		assertEquals(State.HALF_OPEN, SkytapCircuitBreaker.getState());
+
+		SkytapCircuitBreaker.recordResponse(200, 100);
+		assertEquals(State.CLOSED, SkytapCircuitBreaker.getState());
+		assertEquals(0, SkytapCircuitBreaker.getBufferedCalls());
+	}
+
+	@Test
+	public void reopensWhenATrialCallFails() throws Exception {
+
+		open();
+		SkytapCircuitBreaker.endOpenPeriod();
+
+		SkytapCircuitBreaker.acquirePermission();
+		SkytapCircuitBreaker.recordFailure(100);
+
+		assertEquals(State.OPEN, SkytapCircuitBreaker.getState());
+		assertTrue(SkytapCircuitBreaker.isOpen());
+		assertEquals(2, SkytapCircuitBreaker.getTimesOpened());
+	}
+
+	@Test
+	public void ignoredTrialCallsFreeTheirSlot() throws Exception {
+
+		open();
+		SkytapCircuitBreaker.endOpenPeriod();
+
+		for (int i = 0; i < 3; i++) {
+			SkytapCircuitBreaker.acquirePermission();
+		}
+		SkytapCircuitBreaker.recordIgnored();
+
+		// the aborted call's slot can be used again
+		SkytapCircuitBreaker.acquirePermission();
+	}
+
+	private static void open() {
+		for (int i = 0; i < 10; i++) {
+			SkytapCircuitBreaker.recordFailure(100);
+		}
+		assertEquals(State.OPEN, SkytapCircuitBreaker.getState());
+	}
+
+}
@@ -0,0 +1,207 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SkytapIdStoreTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("skytap-cache", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void emptyDirectoryHasNoRecords() {
+		assertTrue(new SkytapIdStore(directory).load().isEmpty());
+	}
+
+	@Test
+	public void replaysChangesInOrder() throws Exception {
+
+		SkytapIdStore store = new SkytapIdStore(directory);
+		store.load();
+		store.put("project\nabc\nalpha", "1", 1000);
+		store.put("project\nabc\nbeta", "2", 2000);
+		store.remove("project\nabc\nalpha");
+		store.put("project\nabc\nbeta", "3", 3000);
+		store.awaitWrites();
+
+		SkytapIdStore reloaded = new SkytapIdStore(directory);
+		List<SkytapIdStore.Record> records = reloaded.load();
+
+		assertEquals(4, records.size());
+		assertEquals(4, reloaded.getRecordCount());
+
+		Map<String, SkytapIdStore.Record> live = replay(records);
+		assertEquals(1, live.size());
+		assertEquals("3", live.get("project\nabc\nbeta").getId());
+		assertEquals(3000, live.get("project\nabc\nbeta").getStoredAt());
+	}
+
+	@Test
+	public void keysMayHoldAnyCharacter() throws Exception {
+
+		String key = "project\nabc\ntab\there, back\\slash\r\nand newline";
+
+		SkytapIdStore store = new SkytapIdStore(directory);
+		store.put(key, "42", 1000);
+		store.awaitWrites();
+
+		List<SkytapIdStore.Record> records = new SkytapIdStore(directory)
+				.load();
+
+		assertEquals(1, records.size());
+		assertEquals(key, records.get(0).getKey());
+		assertEquals("42", records.get(0).getId());
+	}
+
+	@Test
+	public void skipsMalformedAndUnfinishedLines() throws Exception {
+
+		write(new File(directory, "ids.log"), "P\t1000\tkey1\t1\n"
+				+ "garbage\n" + "P\tnot a time\tkey2\t2\n" + "R\tkey1\n"
+				+ "P\t2000\tkey3\t3");
+
+		List<SkytapIdStore.Record> records = new SkytapIdStore(directory)
+				.load();
+
+		// the last line was cut off while it was being written
+		assertEquals(2, records.size());
+		assertEquals("key1", records.get(0).getKey());
+		assertEquals("key1", records.get(1).getKey());
+		assertNull(records.get(1).getId());
+	}
+
+	@Test
+	public void rewriteKeepsOnlyTheGivenRecords() throws Exception {
+
+		SkytapIdStore store = new SkytapIdStore(directory);
+		for (int i = 0; i < 10; i++) {
+			store.put("key" + i, String.valueOf(i), i);
+		}
+
+		List<SkytapIdStore.Record> live = new ArrayList<SkytapIdStore.Record>();
+		live.add(new SkytapIdStore.Record("key9", "9", 9));
+		store.rewrite(live);
+		assertEquals(1, store.getRecordCount());
+
+		store.put("key10", "10", 10);
+		store.awaitWrites();
+
+		List<SkytapIdStore.Record> records = new SkytapIdStore(directory)
+				.load();
+
+		assertEquals(2, records.size());
+		assertEquals("key9", records.get(0).getKey());
+		assertEquals("key10", records.get(1).getKey());
+		assertFalse(new File(directory, "ids.log.tmp").exists());
+		assertFalse(new File(directory, "ids.log.bak").exists());
+	}
+
+	@Test
+	public void recoversTheBackupOfAnInterruptedRewrite() throws Exception {
+
+		// the old log was moved aside, but the new one never took its place
+		write(new File(directory, "ids.log.bak"), "P\t1000\tkey1\t1\n");
+
+		SkytapIdStore store = new SkytapIdStore(directory);
+		List<SkytapIdStore.Record> records = store.load();
+
+		assertEquals(1, records.size());
+		assertEquals("1", records.get(0).getId());
+		assertTrue(new File(directory, "ids.log").isFile());
+		assertFalse(new File(directory, "ids.log.bak").exists());
+
+		// and changes are appended to the restored log
+		store.put("key2", "2", 2000);
+		store.awaitWrites();
+		assertEquals(2, new SkytapIdStore(directory).load().size());
+	}
+
+	@Test
+	public void prefersTheLogToAStaleBackup() throws Exception {
+
+		write(new File(directory, "ids.log"), "P\t2000\tkey1\t2\n");
+		write(new File(directory, "ids.log.bak"), "P\t1000\tkey1\t1\n");
+
+		List<SkytapIdStore.Record> records = new SkytapIdStore(directory)
+				.load();
+
+		assertEquals(1, records.size());
+		assertEquals("2", records.get(0).getId());
+	}
+
+	private static Map<String, SkytapIdStore.Record> replay(
+			List<SkytapIdStore.Record> records) {
+
+		Map<String, SkytapIdStore.Record> live = new LinkedHashMap<String, SkytapIdStore.Record>();
+
+		for (SkytapIdStore.Record record : records) {
+			if (record.getId() == null) {
+				live.remove(record.getKey());
+			} else {
+				live.put(record.getKey(), record);
+			}
+		}
+
+		return live;
+	}
+
+	private static void write(File file, String content) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+}
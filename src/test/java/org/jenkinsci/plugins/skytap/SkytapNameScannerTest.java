@@ -0,0 +1,145 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class SkytapNameScannerTest {
+
+	private static final String PAGE = "[{\"id\":\"1\",\"name\":\"alpha\",\"vms\":[{\"id\":\"9\",\"name\":\"beta\"}]},"
+			+ "{\"name\":\"beta\",\"id\":\"2\"},"
+			+ "{\"id\":\"3\",\"name\":null},"
+			+ "{\"id\":\"4\",\"name\":\"beta\"}]";
+
+	@Test
+	public void findsTheFirstItemWithTheName() throws Exception {
+
+		SkytapNameScanner scanner = new SkytapNameScanner("beta");
+		SkytapNameScanner.Result result = scanner.handleResponse(response(
+				200, PAGE));
+
+		// nested items with the name do not count
+		assertEquals("2", result.getId());
+		assertEquals(2, result.getItemCount());
+
+		// a match ends the listing
+		assertEquals(-1, scanner.getItemCount(result));
+	}
+
+	@Test
+	public void countsEveryItemWhenThereIsNoMatch() throws Exception {
+
+		SkytapNameScanner scanner = new SkytapNameScanner("gamma");
+		SkytapNameScanner.Result result = scanner.handleResponse(response(
+				200, PAGE));
+
+		assertNull(result.getId());
+		assertEquals(4, result.getItemCount());
+		assertEquals(4, scanner.getItemCount(result));
+	}
+
+	@Test
+	public void indexesEveryNameOnThePage() throws Exception {
+
+		Map<String, String> index = new LinkedHashMap<String, String>();
+		SkytapNameScanner.Result result = new SkytapNameScanner("beta", index)
+				.handleResponse(response(200, PAGE));
+
+		// the whole page is read, and the first id of a name wins
+		assertEquals("2", result.getId());
+		assertEquals(4, result.getItemCount());
+		assertEquals(2, index.size());
+		assertEquals("1", index.get("alpha"));
+		assertEquals("2", index.get("beta"));
+	}
+
+	@Test
+	public void rejectedQueriesAreToldApart() throws Exception {
+
+		for (int statusCode : new int[] { 400, 404, 422 }) {
+			try {
+				new SkytapNameScanner("beta").handleResponse(response(
+						statusCode, "{\"error\":\"unknown filter\"}"));
+				fail("no exception for " + statusCode);
+			} catch (SkytapRejectedRequestException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void otherErrorsAreNotRejections() throws Exception {
+
+		try {
+			new SkytapNameScanner("beta").handleResponse(response(500,
+					"{\"error\":\"internal error\"}"));
+			fail("no exception");
+		} catch (SkytapRejectedRequestException e) {
+			fail("treated as a rejected query");
+		} catch (SkytapException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = SkytapException.class)
+	public void unexpectedResponse() throws Exception {
+		new SkytapNameScanner("beta").handleResponse(response(200,
+				"{\"id\":\"1\"}"));
+	}
+
+	@Test
+	public void rejectionsAreNotRetriedByTheQuery() {
+
+		RetryPolicy policy = SkytapUtils
+				.withoutRejections(new BackoffRetryPolicy(2, 30, 120,
+						"400, 404, 422, 423, 503"));
+
+		assertFalse(policy.isRetryable("GET", 400));
+		assertFalse(policy.isRetryable("GET", 404));
+		assertFalse(policy.isRetryable("GET", 422));
+
+		// busy and unavailable responses still back off
+		assertTrue(policy.isRetryable("GET", 423));
+		assertTrue(policy.isRetryable("GET", 503));
+		assertFalse(policy.isRetryable("GET", 500));
+		assertEquals(1000, policy.getRetryDelay(1, 0, 1000));
+	}
+
+	private static HttpResponse response(int statusCode, String body)
+			throws Exception {
+
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+				statusCode, "Status " + statusCode);
+		response.setEntity(new StringEntity(body, "UTF-8"));
+		return response;
+	}
+
+}
@@ -0,0 +1,101 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SkytapNegativeCacheTest {
+
+	private static final String AUTH = "dXNlcjprZXk=";
+
+	@Test
+	public void remembersMissingNames() {
+
+		SkytapNegativeCache.putMissing("test-remember", "", "web", AUTH);
+
+		assertTrue(SkytapNegativeCache.isMissing("test-remember", "", "web",
+				AUTH));
+		assertFalse(SkytapNegativeCache.isMissing("test-remember", "", "db",
+				AUTH));
+		assertFalse(SkytapNegativeCache.isMissing("test-remember", "", "web",
+				"b3RoZXI6a2V5"));
+	}
+
+	@Test
+	public void invalidateForgetsTheScopeAndScopesWithinIt() {
+
+		SkytapNegativeCache.putMissing("test-scope", "1234", "web", AUTH);
+		SkytapNegativeCache.putMissing("test-scope", "1234/5678", "web", AUTH);
+
+		SkytapNegativeCache.invalidate("test-scope", "1234");
+
+		assertFalse(SkytapNegativeCache.isMissing("test-scope", "1234",
+				"web", AUTH));
+		assertFalse(SkytapNegativeCache.isMissing("test-scope", "1234/5678",
+				"web", AUTH));
+	}
+
+	@Test
+	public void invalidateLeavesScopesWhichOnlyShareAPrefix() {
+
+		SkytapNegativeCache.putMissing("test-prefix", "1234", "web", AUTH);
+		SkytapNegativeCache.putMissing("test-prefix", "12345", "web", AUTH);
+
+		SkytapNegativeCache.invalidate("test-prefix", "1234");
+
+		assertFalse(SkytapNegativeCache.isMissing("test-prefix", "1234",
+				"web", AUTH));
+		assertTrue(SkytapNegativeCache.isMissing("test-prefix", "12345",
+				"web", AUTH));
+	}
+
+	@Test
+	public void invalidateLeavesOtherTypes() {
+
+		SkytapNegativeCache.putMissing("test-type-a", "1234", "web", AUTH);
+		SkytapNegativeCache.putMissing("test-type-b", "1234", "web", AUTH);
+
+		SkytapNegativeCache.invalidate("test-type-a", "1234");
+
+		assertFalse(SkytapNegativeCache.isMissing("test-type-a", "1234",
+				"web", AUTH));
+		assertTrue(SkytapNegativeCache.isMissing("test-type-b", "1234",
+				"web", AUTH));
+	}
+
+	@Test
+	public void invalidatingAccountWideObjectsForgetsOnlyThose() {
+
+		SkytapNegativeCache.putMissing("test-account", "", "team", AUTH);
+		SkytapNegativeCache.putMissing("test-account", "1234", "team", AUTH);
+
+		SkytapNegativeCache.invalidate("test-account", "");
+
+		assertFalse(SkytapNegativeCache.isMissing("test-account", "", "team",
+				AUTH));
+		assertTrue(SkytapNegativeCache.isMissing("test-account", "1234",
+				"team", AUTH));
+	}
+
+}
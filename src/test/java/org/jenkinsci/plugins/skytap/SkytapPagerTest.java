@@ -0,0 +1,200 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpResponse;
+import org.junit.Test;
+
+public class SkytapPagerTest {
+
+	private static final Pattern PAGE = Pattern
+			.compile("count=(\\d+)&offset=(\\d+)");
+
+	/**
+	 * Item counts of pages, read as { offset, count }.
+	 */
+	private static final SkytapPager.PageReader<int[]> READER = new SkytapPager.PageReader<int[]>() {
+
+		public int[] handleResponse(HttpResponse response) {
+			return null;
+		}
+
+		public int getItemCount(int[] page) {
+			return page[1];
+		}
+	};
+
+	@Test
+	public void shortListIsReadInOnePage() throws Exception {
+
+		FakeList list = new FakeList(40, Integer.MAX_VALUE);
+
+		assertEquals(40, readAll(list.pager()));
+		assertEquals(1, list.requests.size());
+	}
+
+	@Test
+	public void longListIsReadInGrowingPages() throws Exception {
+
+		FakeList list = new FakeList(1234, Integer.MAX_VALUE);
+
+		assertEquals(1234, readAll(list.pager()));
+		assertEquals(100, list.requestedCount(0));
+		assertEquals(200, list.requestedCount(1));
+	}
+
+	@Test
+	public void pageSizeCapMatchingTheInitialSize() throws Exception {
+
+		FakeList list = new FakeList(1000, 100);
+
+		assertEquals(1000, readAll(list.pager()));
+	}
+
+	@Test
+	public void pageSizeCapIsDetectedAndHonoured() throws Exception {
+
+		FakeList list = new FakeList(1000, 150);
+
+		assertEquals(1000, readAll(list.pager()));
+
+		// once the cap is seen, no larger page is asked for
+		boolean capped = false;
+		for (int i = 0; i < list.requests.size(); i++) {
+			capped |= list.requestedCount(i) == 150;
+			assertTrue(list.requests.get(i),
+					!capped || list.requestedCount(i) == 150);
+		}
+		assertTrue(capped);
+	}
+
+	@Test
+	public void listWhichEndsOnAPageBoundary() throws Exception {
+
+		FakeList list = new FakeList(100, Integer.MAX_VALUE);
+
+		assertEquals(100, readAll(list.pager()));
+	}
+
+	@Test
+	public void readerCanStopEarly() throws Exception {
+
+		FakeList list = new FakeList(1000, Integer.MAX_VALUE);
+		SkytapPager<int[]> pager = list.pager(new SkytapPager.PageReader<int[]>() {
+
+			public int[] handleResponse(HttpResponse response) {
+				return null;
+			}
+
+			public int getItemCount(int[] page) {
+				return -1;
+			}
+		});
+
+		assertNotNull(pager.nextPage());
+		assertFalse(pager.hasNextPage());
+		assertNull(pager.nextPage());
+	}
+
+	/**
+	 * Reads every page, checking that they follow on from each other.
+	 *
+	 * @return number of items read
+	 */
+	private static int readAll(SkytapPager<int[]> pager) throws Exception {
+
+		int items = 0;
+
+		while (pager.hasNextPage()) {
+			int[] page = pager.nextPage();
+			assertEquals(items, page[0]);
+			items += page[1];
+		}
+
+		return items;
+	}
+
+	/**
+	 * List of a number of items, served in pages of at most the cap.
+	 */
+	private static final class FakeList {
+
+		private final int size;
+		private final int cap;
+		private final List<String> requests = new ArrayList<String>();
+
+		FakeList(int size, int cap) {
+			this.size = size;
+			this.cap = cap;
+		}
+
+		SkytapPager<int[]> pager() {
+			return pager(READER);
+		}
+
+		SkytapPager<int[]> pager(SkytapPager.PageReader<int[]> reader) {
+			return new SkytapPager<int[]>("https://cloud.skytap.com/v2/projects",
+					"dXNlcjprZXk=", reader) {
+
+				@Override
+				Future<int[]> fetchPage(String pageUrl) {
+					requests.add(pageUrl);
+
+					Matcher m = PAGE.matcher(pageUrl);
+					assertTrue(pageUrl, m.find());
+
+					int count = Integer.parseInt(m.group(1));
+					int offset = Integer.parseInt(m.group(2));
+
+					final int[] page = { offset,
+							Math.max(0, Math.min(Math.min(count, cap), size - offset)) };
+
+					FutureTask<int[]> future = new FutureTask<int[]>(
+							new Callable<int[]>() {
+								public int[] call() {
+									return page;
+								}
+							});
+					future.run();
+					return future;
+				}
+			};
+		}
+
+		int requestedCount(int request) {
+			Matcher m = PAGE.matcher(requests.get(request));
+			assertTrue(m.find());
+			return Integer.parseInt(m.group(1));
+		}
+	}
+
+}
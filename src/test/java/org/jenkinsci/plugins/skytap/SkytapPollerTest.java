@@ -0,0 +1,174 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SkytapPollerTest {
+
+	private static final String AUTH = "dXNlcjprZXk=";
+
+	private static final SkytapPoller.Condition RUNNING = new SkytapPoller.Condition() {
+		public boolean isSatisfied(JsonElement resource) {
+			return resource.getAsJsonObject().get("runstate").getAsString()
+					.equals("running");
+		}
+	};
+
+	private HttpServer server;
+	private volatile String body;
+	private final AtomicInteger reads = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				reads.incrementAndGet();
+				byte[] bytes = body.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, bytes.length == 0 ? -1
+						: bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		SkytapCircuitBreaker.reset();
+	}
+
+	@Test(timeout = 10000)
+	public void completesOnceTheConditionHolds() throws Exception {
+
+		body = "{\"runstate\":\"running\"}";
+
+		SkytapPoller.Watch watch = SkytapPoller.watch(url("running"), AUTH,
+				RUNNING);
+
+		assertTrue(watch.await(5000));
+		assertEquals("running", watch.get().getAsJsonObject().get("runstate")
+				.getAsString());
+	}
+
+	@Test(timeout = 10000)
+	public void keepsWaitingWhileTheConditionDoesNotHold() throws Exception {
+
+		body = "{\"runstate\":\"busy\"}";
+
+		SkytapPoller.Watch watch = SkytapPoller.watch(url("busy"), AUTH,
+				RUNNING);
+
+		awaitRead(watch);
+
+		assertFalse(watch.isDone());
+		assertNull(watch.getLastError());
+		assertEquals(1, reads.get());
+
+		watch.cancel(false);
+		assertTrue(watch.isCancelled());
+	}
+
+	@Test(timeout = 10000)
+	public void emptyResponseIsAFailedRead() throws Exception {
+
+		// what the client returns after an I/O error or a final timeout
+		body = "";
+
+		SkytapPoller.Watch watch = SkytapPoller.watch(url("empty"), AUTH,
+				RUNNING);
+
+		awaitRead(watch);
+
+		// the watch waits for the next read rather than failing
+		assertFalse(watch.isDone());
+		assertNotNull(watch.getLastError());
+		assertNull(watch.getLastResponse());
+		assertTrue(watch.getLastError().getMessage().startsWith(
+				"No response received"));
+		assertFalse(watch.await(100));
+
+		watch.cancel(false);
+	}
+
+	@Test(timeout = 10000)
+	public void watchesOnTheSameResourceShareOneRead() throws Exception {
+
+		body = "{\"runstate\":\"busy\"}";
+
+		// the delay holds off the first look until the next tick
+		SkytapPoller.Watch first = SkytapPoller.watch(url("shared"), AUTH,
+				RUNNING, 60000);
+		SkytapPoller.Watch second = SkytapPoller.watch(url("shared"), AUTH,
+				RUNNING, 60000);
+		int before = SkytapPoller.size();
+
+		SkytapPoller.Watch third = SkytapPoller.watch(url("other"), AUTH,
+				RUNNING, 60000);
+
+		assertEquals(before + 1, SkytapPoller.size());
+
+		first.cancel(false);
+		second.cancel(false);
+		third.cancel(false);
+		assertEquals(0, reads.get());
+	}
+
+	/**
+	 * Waits for the first look at the resource to be over.
+	 */
+	private static void awaitRead(SkytapPoller.Watch watch)
+			throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (watch.getLastResponse() == null && watch.getLastError() == null
+				&& !watch.isDone() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private String url(String name) {
+		return "http://127.0.0.1:" + server.getAddress().getPort()
+				+ "/v2/configurations/" + name;
+	}
+
+}
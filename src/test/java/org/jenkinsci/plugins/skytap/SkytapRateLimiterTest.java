@@ -0,0 +1,107 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SkytapRateLimiterTest {
+
+	private static final double RATE = 10;
+	private static final int BURST = 5;
+
+	private final SkytapRateLimiter.Bucket bucket = new SkytapRateLimiter.Bucket(
+			"user");
+
+	@Test
+	public void burstIsServedWithoutWaiting() {
+
+		for (int i = 0; i < BURST; i++) {
+			assertEquals(0, reserve(0));
+		}
+	}
+
+	@Test
+	public void requestsBeyondTheBurstAreSpacedAtTheRate() {
+
+		for (int i = 0; i < BURST; i++) {
+			reserve(0);
+		}
+
+		// the request after the burst takes the next free slot, and each
+		// further one waits an interval longer
+		assertEquals(0, reserve(0));
+		assertEquals(100, reserve(0));
+		assertEquals(200, reserve(0));
+		assertEquals(300, reserve(0));
+	}
+
+	@Test
+	public void waitsShrinkAsTimePasses() {
+
+		for (int i = 0; i < BURST + 3; i++) {
+			reserve(0);
+		}
+
+		// slots were reserved up to 300ms; at 150ms the next one is at 300ms
+		assertEquals(150, reserve(150));
+	}
+
+	@Test
+	public void idleTimeRefillsTheBucketGradually() {
+
+		for (int i = 0; i < BURST + 1; i++) {
+			reserve(0);
+		}
+
+		// the next free slot is at 100ms; 250ms later two and a half
+		// tokens have been refilled
+		assertEquals(0, reserve(350));
+		assertEquals(0, reserve(350));
+		assertEquals(0, reserve(350));
+		assertEquals(50, reserve(350));
+	}
+
+	@Test
+	public void refillIsCappedAtTheBurst() {
+
+		for (int i = 0; i < BURST + 1; i++) {
+			reserve(0);
+		}
+
+		long later = TimeUnit.HOURS.toMillis(1);
+
+		for (int i = 0; i < BURST + 1; i++) {
+			assertEquals(0, reserve(later));
+		}
+		assertEquals(100, reserve(later));
+	}
+
+	private long reserve(long nowMillis) {
+		return TimeUnit.NANOSECONDS.toMillis(bucket.reserve(RATE, BURST,
+				TimeUnit.MILLISECONDS.toNanos(nowMillis)));
+	}
+
+}
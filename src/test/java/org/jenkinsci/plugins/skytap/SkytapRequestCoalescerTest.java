@@ -0,0 +1,247 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SkytapRequestCoalescerTest {
+
+	private static final int FOLLOWERS = 4;
+
+	/**
+	 * Counts its calls and blocks until released.
+	 */
+	private static class Request implements Callable<String> {
+
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		private final String response;
+		private final Exception failure;
+
+		Request(String response, Exception failure) {
+			this.response = response;
+			this.failure = failure;
+		}
+
+		public String call() throws Exception {
+			calls.incrementAndGet();
+			started.countDown();
+			release.await();
+			if (failure != null) {
+				throw failure;
+			}
+			return response;
+		}
+	}
+
+	/**
+	 * Runs a request through the coalescer on its own thread.
+	 */
+	private static final class Caller extends Thread {
+
+		private final String key;
+		private final Callable<String> request;
+		private volatile String response;
+		private volatile Exception failure;
+
+		Caller(String key, Callable<String> request) {
+			this.key = key;
+			this.request = request;
+		}
+
+		@Override
+		public void run() {
+			try {
+				response = SkytapRequestCoalescer.execute(key, request);
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void identicalRequestsInFlightShareOneResponse() throws Exception {
+
+		Request request = new Request("{\"id\":\"1\"}", null);
+		long sharedBefore = SkytapRequestCoalescer.getSharedResponses();
+
+		List<Caller> callers = startCallers("GET /shared", request);
+		release(request);
+
+		for (Caller caller : callers) {
+			caller.join();
+			assertNull(caller.failure);
+			assertEquals("{\"id\":\"1\"}", caller.response);
+		}
+
+		assertEquals(1, request.calls.get());
+		assertEquals(sharedBefore + FOLLOWERS,
+				SkytapRequestCoalescer.getSharedResponses());
+	}
+
+	@Test(timeout = 10000)
+	public void followersShareTheFailure() throws Exception {
+
+		Request request = new Request(null, new SkytapException("busy"));
+
+		List<Caller> callers = startCallers("GET /failing", request);
+		release(request);
+
+		for (Caller caller : callers) {
+			caller.join();
+			assertTrue(caller.failure instanceof SkytapException);
+			assertEquals("busy", caller.failure.getMessage());
+		}
+
+		assertEquals(1, request.calls.get());
+	}
+
+	@Test(timeout = 10000)
+	public void otherExceptionsAreWrapped() throws Exception {
+
+		Request request = new Request(null, new java.io.IOException("reset"));
+		request.release.countDown();
+
+		try {
+			SkytapRequestCoalescer.execute("GET /io", request);
+			fail("no exception");
+		} catch (SkytapException e) {
+			assertTrue(e.getMessage().contains("reset"));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void requestsWithOtherKeysAreNotShared() throws Exception {
+
+		Request first = new Request("first", null);
+		Request second = new Request("second", null);
+
+		Caller a = new Caller("GET /a user1", first);
+		Caller b = new Caller("GET /a user2", second);
+		a.start();
+		b.start();
+		first.started.await();
+		second.started.await();
+		release(first);
+		release(second);
+		a.join();
+		b.join();
+
+		assertEquals("first", a.response);
+		assertEquals("second", b.response);
+		assertEquals(1, first.calls.get());
+		assertEquals(1, second.calls.get());
+	}
+
+	@Test
+	public void completedRequestsAreNotShared() throws Exception {
+
+		Request request = new Request("response", null);
+		request.release.countDown();
+
+		SkytapRequestCoalescer.execute("GET /sequential", request);
+		SkytapRequestCoalescer.execute("GET /sequential", request);
+
+		assertEquals(2, request.calls.get());
+	}
+
+	@Test(timeout = 10000)
+	public void followersOfAnInterruptedRequestSendTheirOwn() throws Exception {
+
+		final Request leaderRequest = new Request(null, null) {
+			@Override
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				started.countDown();
+				release.await();
+				// an aborted build interrupts its thread mid-request
+				Thread.currentThread().interrupt();
+				return "";
+			}
+		};
+		Request followerRequest = new Request("own", null);
+		followerRequest.release.countDown();
+
+		Caller leader = new Caller("GET /aborted", leaderRequest);
+		leader.start();
+		leaderRequest.started.await();
+
+		Caller follower = new Caller("GET /aborted", followerRequest);
+		follower.start();
+		waitUntilWaiting(follower);
+		release(leaderRequest);
+
+		leader.join();
+		follower.join();
+
+		assertEquals("own", follower.response);
+		assertEquals(1, followerRequest.calls.get());
+	}
+
+	/**
+	 * Starts a leader, then followers once the leader's request is in
+	 * flight, and waits for the followers to be waiting on it.
+	 */
+	private static List<Caller> startCallers(String key, Request request)
+			throws InterruptedException {
+
+		List<Caller> callers = new ArrayList<Caller>();
+
+		Caller leader = new Caller(key, request);
+		leader.start();
+		request.started.await();
+		callers.add(leader);
+
+		for (int i = 0; i < FOLLOWERS; i++) {
+			Caller follower = new Caller(key, request);
+			follower.start();
+			callers.add(follower);
+		}
+
+		for (int i = 1; i < callers.size(); i++) {
+			waitUntilWaiting(callers.get(i));
+		}
+
+		return callers;
+	}
+
+	private static void waitUntilWaiting(Thread thread)
+			throws InterruptedException {
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(5);
+		}
+	}
+
+	private static void release(Request request) {
+		request.release.countDown();
+	}
+
+}
@@ -0,0 +1,238 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SkytapResponseCacheTest {
+
+	private static final String URL = "https://cloud.skytap.com/configurations/1";
+
+	@Before
+	public void setUp() {
+		SkytapResponseCache.setSizeMB(SkytapResponseCache.DEFAULT_SIZE_MB);
+		SkytapResponseCache.clear();
+	}
+
+	@After
+	public void tearDown() {
+		setUp();
+	}
+
+	@Test
+	public void notModifiedIsAnsweredFromTheCache() throws Exception {
+
+		assertEquals("{\"id\":\"1\"}",
+				handle(get(URL, "user1"), response(200, "{\"id\":\"1\"}", "\"v1\"")));
+
+		HttpGet revalidation = get(URL, "user1");
+		SkytapResponseHandler<String> handler = SkytapResponseCache
+				.newResponseHandler(revalidation);
+
+		assertEquals("\"v1\"", revalidation.getFirstHeader("If-None-Match")
+				.getValue());
+
+		long hits = SkytapResponseCache.getHits();
+		assertEquals("{\"id\":\"1\"}",
+				handler.handleResponse(response(304, null, null)));
+		assertEquals(hits + 1, SkytapResponseCache.getHits());
+	}
+
+	@Test
+	public void lastModifiedIsSentAsIfModifiedSince() throws Exception {
+
+		HttpResponse response = response(200, "body", null);
+		response.setHeader("Last-Modified", "Wed, 21 Oct 2026 07:28:00 GMT");
+		handle(get(URL, "user1"), response);
+
+		HttpGet revalidation = get(URL, "user1");
+		SkytapResponseCache.newResponseHandler(revalidation);
+
+		assertNull(revalidation.getFirstHeader("If-None-Match"));
+		assertEquals("Wed, 21 Oct 2026 07:28:00 GMT", revalidation
+				.getFirstHeader("If-Modified-Since").getValue());
+	}
+
+	@Test
+	public void changedResponsesReplaceTheCachedOne() throws Exception {
+
+		handle(get(URL, "user1"), response(200, "old", "\"v1\""));
+		handle(get(URL, "user1"), response(200, "new", "\"v2\""));
+
+		assertEquals(1, SkytapResponseCache.getEntryCount());
+		assertEquals(6, SkytapResponseCache.getSizeBytes());
+
+		HttpGet revalidation = get(URL, "user1");
+		SkytapResponseHandler<String> handler = SkytapResponseCache
+				.newResponseHandler(revalidation);
+
+		assertEquals("\"v2\"", revalidation.getFirstHeader("If-None-Match")
+				.getValue());
+		assertEquals("new", handler.handleResponse(response(304, null, null)));
+	}
+
+	@Test
+	public void responsesWithoutValidatorsAreNotCached() throws Exception {
+
+		handle(get(URL, "user1"), response(200, "old", "\"v1\""));
+		handle(get(URL, "user1"), response(200, "new", null));
+
+		assertEquals(0, SkytapResponseCache.getEntryCount());
+		assertEquals(0, SkytapResponseCache.getSizeBytes());
+	}
+
+	@Test
+	public void otherUsersDoNotSeeTheCachedResponse() throws Exception {
+
+		handle(get(URL, "user1"), response(200, "body", "\"v1\""));
+
+		long misses = SkytapResponseCache.getMisses();
+		HttpGet request = get(URL, "user2");
+		SkytapResponseCache.newResponseHandler(request);
+
+		assertNull(request.getFirstHeader("If-None-Match"));
+		assertEquals(misses + 1, SkytapResponseCache.getMisses());
+	}
+
+	@Test
+	public void onlySuccessfulGetResponsesAreCached() throws Exception {
+
+		handle(get(URL, "user1"), response(404, "not found", "\"v1\""));
+
+		HttpPut put = new HttpPut(URL);
+		handle(put, response(200, "body", "\"v1\""));
+
+		assertEquals(0, SkytapResponseCache.getEntryCount());
+	}
+
+	@Test
+	public void staleValidatorsAreRemovedFromReusedRequests() throws Exception {
+
+		handle(get(URL, "user1"), response(200, "body", "\"v1\""));
+
+		HttpGet request = get(URL, "user1");
+		SkytapResponseCache.newResponseHandler(request);
+		SkytapResponseCache.clear();
+		SkytapResponseCache.newResponseHandler(request);
+
+		assertNull(request.getFirstHeader("If-None-Match"));
+	}
+
+	@Test
+	public void leastRecentlyUsedResponsesAreEvicted() throws Exception {
+
+		SkytapResponseCache.setSizeMB(1);
+
+		// each body takes up 400000 of the 1048576 bytes
+		String body = repeat('x', 200000);
+
+		handle(get(URL + "/a", "user1"), response(200, body, "\"a\""));
+		handle(get(URL + "/b", "user1"), response(200, body, "\"b\""));
+
+		// touch a, so b is the least recently used
+		SkytapResponseCache.newResponseHandler(get(URL + "/a", "user1"));
+
+		handle(get(URL + "/c", "user1"), response(200, body, "\"c\""));
+
+		assertEquals(2, SkytapResponseCache.getEntryCount());
+		assertEquals(800000, SkytapResponseCache.getSizeBytes());
+		assertNotNull(validator(URL + "/a"));
+		assertNull(validator(URL + "/b"));
+		assertNotNull(validator(URL + "/c"));
+	}
+
+	@Test
+	public void responsesLargerThanTheCacheAreNotCached() throws Exception {
+
+		SkytapResponseCache.setSizeMB(1);
+
+		handle(get(URL, "user1"), response(200, repeat('x', 600000), "\"v1\""));
+
+		assertEquals(0, SkytapResponseCache.getEntryCount());
+	}
+
+	@Test
+	public void sizeZeroDisablesTheCache() throws Exception {
+
+		handle(get(URL, "user1"), response(200, "body", "\"v1\""));
+		SkytapResponseCache.setSizeMB(0);
+
+		assertEquals(0, SkytapResponseCache.getEntryCount());
+
+		handle(get(URL, "user1"), response(200, "body", "\"v1\""));
+
+		assertEquals(0, SkytapResponseCache.getEntryCount());
+		assertNull(validator(URL));
+	}
+
+	private static String handle(HttpRequestBase request, HttpResponse response)
+			throws Exception {
+		return SkytapResponseCache.newResponseHandler(request).handleResponse(
+				response);
+	}
+
+	private static String validator(String url) {
+		HttpGet request = get(url, "user1");
+		SkytapResponseCache.newResponseHandler(request);
+		return request.getFirstHeader("If-None-Match") == null ? null
+				: request.getFirstHeader("If-None-Match").getValue();
+	}
+
+	private static HttpGet get(String url, String user) {
+		HttpGet request = new HttpGet(url);
+		request.setHeader("Authorization", "Basic " + user);
+		return request;
+	}
+
+	private static HttpResponse response(int code, String body, String etag)
+			throws Exception {
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+				code, "");
+		if (body != null) {
+			response.setEntity(new StringEntity(body, "UTF-8"));
+		}
+		if (etag != null) {
+			response.setHeader("ETag", etag);
+		}
+		return response;
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder sb = new StringBuilder(count);
+		for (int i = 0; i < count; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+}
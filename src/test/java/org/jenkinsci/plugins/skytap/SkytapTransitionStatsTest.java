@@ -0,0 +1,142 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SkytapTransitionStatsTest {
+
+	private static final long TICK = SkytapPoller.TICK_MILLIS;
+
+	@Test
+	public void percentilesOfTheSamples() {
+
+		SkytapTransitionStats.Samples samples = new SkytapTransitionStats.Samples();
+
+		// added out of order
+		for (long duration : new long[] { 7, 3, 10, 1, 5, 9, 2, 8, 4, 6 }) {
+			samples.add(duration, 0);
+		}
+
+		assertEquals(1, samples.getPercentile(0));
+		assertEquals(5, samples.getPercentile(50));
+		assertEquals(9, samples.getPercentile(90));
+		assertEquals(10, samples.getPercentile(100));
+	}
+
+	@Test
+	public void percentileOfASingleSample() {
+
+		SkytapTransitionStats.Samples samples = new SkytapTransitionStats.Samples();
+		samples.add(42, 0);
+
+		assertEquals(42, samples.getPercentile(50));
+		assertEquals(42, samples.getPercentile(90));
+	}
+
+	@Test
+	public void onlyTheMostRecentSamplesAreKept() {
+
+		SkytapTransitionStats.Samples samples = new SkytapTransitionStats.Samples();
+
+		for (long duration = 1; duration <= 60; duration++) {
+			samples.add(duration, 0);
+		}
+
+		// the first ten were overwritten
+		assertEquals(11, samples.getPercentile(0));
+		assertEquals(60, samples.getPercentile(100));
+	}
+
+	@Test
+	public void readsSparselyUntilHalfWayToTheMedian() {
+
+		// median 4 minutes, dense reads from 2 minutes
+		SkytapTransitionStats.AdaptiveSchedule schedule = schedule(240, 400);
+
+		assertEquals(seconds(30), schedule.getNextPollDelay(0));
+		assertEquals(seconds(30), schedule.getNextPollDelay(seconds(30)));
+
+		// the last sparse read lands on the start of the dense window
+		assertEquals(seconds(20), schedule.getNextPollDelay(seconds(100)));
+	}
+
+	@Test
+	public void readsEveryTickAroundTheExpectedDuration() {
+
+		// dense until 400s + 100s + a tick
+		SkytapTransitionStats.AdaptiveSchedule schedule = schedule(240, 400);
+
+		assertEquals(TICK, schedule.getNextPollDelay(seconds(120)));
+		assertEquals(TICK, schedule.getNextPollDelay(seconds(300)));
+		assertEquals(TICK, schedule.getNextPollDelay(seconds(500) + TICK - 1));
+	}
+
+	@Test
+	public void backsOffWhenTheTransitionIsUnusuallySlow() {
+
+		SkytapTransitionStats.AdaptiveSchedule schedule = schedule(240, 400);
+		long denseUntil = seconds(500) + TICK;
+
+		assertEquals(TICK, schedule.getNextPollDelay(denseUntil));
+		assertEquals(seconds(45), schedule.getNextPollDelay(denseUntil
+				+ seconds(90)));
+
+		// never more than two minutes between reads
+		assertEquals(seconds(120),
+				schedule.getNextPollDelay(TimeUnit.HOURS.toMillis(1)));
+	}
+
+	@Test
+	public void shortTransitionsAreReadAtTheStartOfTheWindow() {
+
+		// the window opens after 5 seconds, sooner than a tick
+		SkytapTransitionStats.AdaptiveSchedule schedule = schedule(10, 20);
+
+		assertEquals(seconds(5), schedule.getNextPollDelay(0));
+		assertEquals(TICK, schedule.getNextPollDelay(seconds(5)));
+	}
+
+	@Test
+	public void sparseReadsAreAtMostTwoMinutesApart() {
+
+		// median 2 hours, dense reads from 1 hour
+		SkytapTransitionStats.AdaptiveSchedule schedule = schedule(7200, 9000);
+
+		assertEquals(seconds(120), schedule.getNextPollDelay(0));
+	}
+
+	private static SkytapTransitionStats.AdaptiveSchedule schedule(
+			long p50Seconds, long p90Seconds) {
+		return new SkytapTransitionStats.AdaptiveSchedule(seconds(p50Seconds),
+				seconds(p90Seconds));
+	}
+
+	private static long seconds(long seconds) {
+		return TimeUnit.SECONDS.toMillis(seconds);
+	}
+
+}
@@ -0,0 +1,224 @@
+//
+// Copyright (c) 2013, Skytap, Inc
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+package org.jenkinsci.plugins.skytap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WaiterTest {
+
+	/**
+	 * Records the pauses instead of sleeping.
+	 */
+	private static final class RecordingPause implements Waiter.Pause {
+
+		private final List<Long> delays = new ArrayList<Long>();
+
+		public void pause(long delayMillis, Waiter.Cancellation cancellation) {
+			delays.add(delayMillis);
+		}
+	}
+
+	/**
+	 * Met on the given attempt, counting the calls.
+	 */
+	private static final class MetOn implements Waiter.Condition {
+
+		private final int attempt;
+		private int calls;
+
+		MetOn(int attempt) {
+			this.attempt = attempt;
+		}
+
+		public boolean isMet(int attempt) {
+			calls++;
+			assertEquals(calls, attempt);
+			return attempt >= this.attempt;
+		}
+	}
+
+	private final RecordingPause pause = new RecordingPause();
+
+	@After
+	public void tearDown() {
+		SkytapCircuitBreaker.reset();
+	}
+
+	@Test
+	public void stopsOnceTheConditionIsMet() throws Exception {
+
+		MetOn condition = new MetOn(3);
+		Waiter.Result result = new Waiter("test", condition, Waiter.every(5),
+				10, 0, pause).waitUntil();
+
+		assertTrue(result.isMet());
+		assertFalse(result.isCancelled());
+		assertEquals(3, result.getAttempts());
+		assertEquals(3, condition.calls);
+
+		// no pause before the first attempt
+		assertEquals(Arrays.asList(5000L, 5000L), pause.delays);
+	}
+
+	@Test
+	public void givesUpAfterTheMaximumAttempts() throws Exception {
+
+		MetOn condition = new MetOn(Integer.MAX_VALUE);
+		Waiter.Result result = new Waiter("test", condition, Waiter.every(5),
+				4, 0, pause).waitUntil();
+
+		assertFalse(result.isMet());
+		assertFalse(result.isCancelled());
+		assertEquals(4, result.getAttempts());
+		assertEquals(4, condition.calls);
+	}
+
+	@Test
+	public void doublingSchedule() throws Exception {
+
+		new Waiter("test", new MetOn(Integer.MAX_VALUE), Waiter.doubling(2),
+				3, 0, pause).waitUntil();
+
+		assertEquals(Arrays.asList(4000L, 8000L, 16000L), pause.delays);
+	}
+
+	@Test
+	public void linearSchedule() throws Exception {
+
+		new Waiter("test", new MetOn(Integer.MAX_VALUE), Waiter.linear(10),
+				3, 0, pause).waitUntil();
+
+		assertEquals(Arrays.asList(10000L, 20000L, 30000L), pause.delays);
+	}
+
+	@Test
+	public void delayedSchedule() throws Exception {
+
+		new Waiter("test", new MetOn(Integer.MAX_VALUE), Waiter.delayed(30,
+				Waiter.every(5)), 3, 0, pause).waitUntil();
+
+		assertEquals(Arrays.asList(30000L, 5000L, 5000L), pause.delays);
+	}
+
+	@Test
+	public void pausesAreCutShortByTheDeadline() throws Exception {
+
+		new Waiter("test", new MetOn(Integer.MAX_VALUE), Waiter.every(60),
+				2, 1000, pause).waitUntil();
+
+		// only the pause before the second attempt, at most a second long
+		assertEquals(1, pause.delays.size());
+		assertTrue(pause.delays.get(0) > 0);
+		assertTrue(pause.delays.get(0) <= 1000);
+	}
+
+	@Test(timeout = 10000)
+	public void stopsAtTheDeadline() throws Exception {
+
+		MetOn condition = new MetOn(Integer.MAX_VALUE);
+		Waiter.Result result = new Waiter("test", condition, new Waiter.Schedule() {
+			public long getDelayMillis(int attempt) {
+				return 100;
+			}
+		}, Integer.MAX_VALUE, 500).waitUntil();
+
+		assertFalse(result.isMet());
+		assertFalse(result.isCancelled());
+		assertTrue(result.getAttempts() >= 1);
+		assertTrue(result.getAttempts() <= 5);
+		assertTrue(result.getElapsedMillis() >= 500);
+	}
+
+	@Test(timeout = 10000)
+	public void cancellationWakesASleepingWaiter() throws Exception {
+
+		final Waiter.Cancellation cancellation = new Waiter.Cancellation();
+		MetOn condition = new MetOn(Integer.MAX_VALUE);
+
+		Thread canceller = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					return;
+				}
+				cancellation.cancel();
+			}
+		};
+		canceller.start();
+
+		Waiter.Result result = new Waiter("test", condition, Waiter.every(60),
+				10, 0, Waiter.SLEEP, cancellation).waitUntil();
+		canceller.join();
+
+		assertFalse(result.isMet());
+		assertTrue(result.isCancelled());
+		assertEquals(1, result.getAttempts());
+		assertTrue(result.getElapsedMillis() < 60000);
+	}
+
+	@Test
+	public void cancelledWaitMakesNoAttempt() throws Exception {
+
+		Waiter.Cancellation cancellation = new Waiter.Cancellation();
+		cancellation.cancel();
+
+		MetOn condition = new MetOn(1);
+		Waiter.Result result = new Waiter("test", condition, Waiter.every(5),
+				10, 0, pause, cancellation).waitUntil();
+
+		assertFalse(result.isMet());
+		assertTrue(result.isCancelled());
+		assertEquals(0, result.getAttempts());
+		assertEquals(0, condition.calls);
+	}
+
+	@Test(expected = SkytapException.class)
+	public void conditionCanGiveUp() throws Exception {
+
+		new Waiter("test", new Waiter.Condition() {
+			public boolean isMet(int attempt) throws SkytapException {
+				throw new SkytapException("gone");
+			}
+		}, Waiter.every(5), 10, 0, pause).waitUntil();
+	}
+
+	@Test(expected = SkytapCircuitOpenException.class)
+	public void stopsWhileTheApiIsDown() throws Exception {
+
+		for (int i = 0; i < 10; i++) {
+			SkytapCircuitBreaker.recordFailure(100);
+		}
+
+		new Waiter("test", new MetOn(1), Waiter.every(5), 10, 0, pause)
+				.waitUntil();
+	}
+
+}